@@ -3,6 +3,26 @@
  * Allows admin to monitor and access all conversations
  */
 
+// Current page, sort and filters of the conversations table
+const conversationsQuery = {
+    page: 0,
+    size: 20,
+    sort: 'lastMessageAt',
+    direction: 'desc',
+    participantId: '',
+    role: ''
+};
+
+const ROLE_NAMES = {
+    'admin': 'Administrator',
+    'frontend': 'Frontend Developer',
+    'medical': 'Medical Advisor',
+    'designer': 'Designer',
+    'java': 'Java Developer',
+    'database': 'Database & Auth',
+    'homeo': 'Homeo Advisor'
+};
+
 document.addEventListener('DOMContentLoaded', function() {
     // Check if user is admin
     const currentUser = API.auth.getCurrentUser();
@@ -54,15 +74,23 @@ function addMessagingMonitoringCard() {
                             <p id="online-users-count">Loading...</p>
                         </div>
                     </div>
-                    <div class="stat-item">
-                        <div class="stat-icon">
-                            <i class="fas fa-comment-dots"></i>
-                        </div>
-                        <div class="stat-details">
-                            <h4>Total Messages</h4>
-                            <p id="total-messages-count">Loading...</p>
-                        </div>
-                    </div>
+                </div>
+                <div class="conversations-filters">
+                    <select id="conversations-participant-filter">
+                        <option value="">All participants</option>
+                    </select>
+                    <select id="conversations-role-filter">
+                        <option value="">All roles</option>
+                        ${Object.entries(ROLE_NAMES).map(([role, name]) => `<option value="${role}">${name}</option>`).join('')}
+                    </select>
+                    <select id="conversations-sort">
+                        <option value="lastMessageAt">Last activity</option>
+                        <option value="createdAt">Created</option>
+                    </select>
+                    <select id="conversations-direction">
+                        <option value="desc">Newest first</option>
+                        <option value="asc">Oldest first</option>
+                    </select>
                 </div>
                 <div class="conversations-table-container">
                     <table class="data-table conversations-table">
@@ -70,7 +98,7 @@ function addMessagingMonitoringCard() {
                             <tr>
                                 <th>Participants</th>
                                 <th>Last Message</th>
-                                <th>Messages</th>
+                                <th>Unread</th>
                                 <th>Last Activity</th>
                                 <th>Actions</th>
                             </tr>
@@ -82,6 +110,11 @@ function addMessagingMonitoringCard() {
                         </tbody>
                     </table>
                 </div>
+                <div class="conversations-pagination">
+                    <button id="conversations-prev-btn" disabled><i class="fas fa-chevron-left"></i> Previous</button>
+                    <span id="conversations-page-info"></span>
+                    <button id="conversations-next-btn" disabled>Next <i class="fas fa-chevron-right"></i></button>
+                </div>
             </div>
         `;
         
@@ -97,17 +130,70 @@ function addMessagingMonitoringCard() {
             refreshBtn.addEventListener('click', loadAllConversations);
         }
         
+        // Any change to the filters or sort starts again from the first page
+        [
+            ['#conversations-participant-filter', 'participantId'],
+            ['#conversations-role-filter', 'role'],
+            ['#conversations-sort', 'sort'],
+            ['#conversations-direction', 'direction']
+        ].forEach(([selector, option]) => {
+            card.querySelector(selector).addEventListener('change', function() {
+                conversationsQuery[option] = this.value;
+                conversationsQuery.page = 0;
+                loadAllConversations();
+            });
+        });
+        
+        card.querySelector('#conversations-prev-btn').addEventListener('click', function() {
+            conversationsQuery.page = Math.max(conversationsQuery.page - 1, 0);
+            loadAllConversations();
+        });
+        
+        card.querySelector('#conversations-next-btn').addEventListener('click', function() {
+            conversationsQuery.page++;
+            loadAllConversations();
+        });
+        
+        loadParticipantFilter();
+        
         // Add styles
         addAdminMessagingStyles();
     }
 }
 
-// Load all conversations
+// Fill the participant filter with every user
+function loadParticipantFilter() {
+    API.users.getAll(true)
+        .then(users => {
+            const select = document.getElementById('conversations-participant-filter');
+            if (!select) return;
+            
+            users.forEach(user => {
+                const option = document.createElement('option');
+                option.value = user.id;
+                option.textContent = user.name;
+                select.appendChild(option);
+            });
+        })
+        .catch(error => {
+            console.error('Error loading users:', error);
+        });
+}
+
+// Load the current page of conversations
 function loadAllConversations() {
-    API.messaging.getAllConversations()
-        .then(conversations => {
-            updateConversationsTable(conversations);
-            updateMessagingStats(conversations);
+    API.messaging.getAllConversations(conversationsQuery)
+        .then(page => {
+            // The last page may have emptied since it was requested
+            if (page.conversations.length === 0 && page.page > 0) {
+                conversationsQuery.page = Math.max(page.totalPages - 1, 0);
+                loadAllConversations();
+                return;
+            }
+            
+            updateConversationsTable(page.conversations);
+            updateMessagingStats(page);
+            updatePagination(page);
         })
         .catch(error => {
             console.error('Error loading conversations:', error);
@@ -126,7 +212,7 @@ function loadAllConversations() {
         });
     
     // Get online users
-    API.users.getOnlineUsers()
+    API.users.getOnlineUsers(true)
         .then(users => {
             updateOnlineUsersCount(users.length);
         })
@@ -183,7 +269,7 @@ function updateConversationsTable(conversations) {
                     </div>
                 </td>
                 <td>${lastMessageText}</td>
-                <td>${conversation.messageCount}</td>
+                <td>${conversation.unreadCount}</td>
                 <td>${lastActivity}</td>
                 <td>
                     <button class="view-conversation-btn" data-id="${conversation.id}">
@@ -207,21 +293,29 @@ function updateConversationsTable(conversations) {
 }
 
 // Update messaging stats
-function updateMessagingStats(conversations) {
-    // Update active conversations count
+function updateMessagingStats(page) {
+    // Conversations matching the current filters, across all pages
     const activeConversationsCount = document.getElementById('active-conversations-count');
     if (activeConversationsCount) {
-        activeConversationsCount.textContent = conversations.length;
+        activeConversationsCount.textContent = page.totalElements;
+    }
+}
+
+// Update the page position and the previous and next buttons
+function updatePagination(page) {
+    const pageInfo = document.getElementById('conversations-page-info');
+    if (pageInfo) {
+        pageInfo.textContent = page.totalPages > 0 ? `Page ${page.page + 1} of ${page.totalPages}` : '';
     }
     
-    // Update total messages count
-    const totalMessagesCount = document.getElementById('total-messages-count');
-    if (totalMessagesCount) {
-        const totalMessages = conversations.reduce((total, conversation) => {
-            return total + conversation.messageCount;
-        }, 0);
-        
-        totalMessagesCount.textContent = totalMessages;
+    const prevBtn = document.getElementById('conversations-prev-btn');
+    if (prevBtn) {
+        prevBtn.disabled = page.page === 0;
+    }
+    
+    const nextBtn = document.getElementById('conversations-next-btn');
+    if (nextBtn) {
+        nextBtn.disabled = page.page + 1 >= page.totalPages;
     }
 }
 
@@ -278,14 +372,8 @@ function viewConversation(conversationId) {
     });
     
     // Get conversation details
-    API.messaging.getAllConversations()
-        .then(conversations => {
-            const conversation = conversations.find(c => c.id === conversationId);
-            
-            if (!conversation) {
-                throw new Error('Conversation not found');
-            }
-            
+    API.messaging.getConversation(conversationId)
+        .then(conversation => {
             // Get messages
             return API.messaging.getMessages(conversationId)
                 .then(messages => {
@@ -392,17 +480,7 @@ function updateConversationModal(modal, conversation, messages) {
 
 // Format role for display
 function formatRole(role) {
-    const roles = {
-        'admin': 'Administrator',
-        'frontend': 'Frontend Developer',
-        'medical': 'Medical Advisor',
-        'designer': 'Designer',
-        'java': 'Java Developer',
-        'database': 'Database & Auth',
-        'homeo': 'Homeo Advisor'
-    };
-    
-    return roles[role] || role;
+    return ROLE_NAMES[role] || role;
 }
 
 // Format last active time
@@ -573,10 +651,31 @@ function addAdminMessagingStyles() {
             font-weight: 600;
         }
         
+        .conversations-filters {
+            display: flex;
+            flex-wrap: wrap;
+            gap: var(--spacing-sm);
+            margin-bottom: var(--spacing-md);
+        }
+        
+        .conversations-filters select {
+            padding: var(--spacing-xs) var(--spacing-sm);
+            border: 1px solid var(--medium-gray);
+            border-radius: var(--border-radius-sm);
+        }
+        
         .conversations-table-container {
             overflow-x: auto;
         }
         
+        .conversations-pagination {
+            display: flex;
+            justify-content: flex-end;
+            align-items: center;
+            gap: var(--spacing-md);
+            margin-top: var(--spacing-md);
+        }
+        
         .conversations-table {
             min-width: 800px;
         }
@@ -8,6 +8,90 @@
 // API Base URL
 const API_BASE_URL = 'http://localhost:8080/api';
 
+// Lists kept up to date with ?since= delta requests, keyed by URL; the version is the ETag of the last response
+let syncedLists = {};
+
+// Fetch a list, after the first time only the entries changed since the version held
+function fetchSyncedList(url, keyOf, compare, errorMessage) {
+    const synced = syncedLists[url];
+    return fetch(synced ? `${url}&since=${synced.version}` : url)
+        .then(response => {
+            // Nothing changed
+            if (response.status === 304 && synced) {
+                return synced.items.slice();
+            }
+            if (!response.ok) {
+                throw new Error(errorMessage);
+            }
+            
+            const version = (response.headers.get('ETag') || '').replace(/"/g, '');
+            return response.json().then(changed => {
+                const byKey = new Map(synced ? synced.items.map(item => [keyOf(item), item]) : []);
+                changed.forEach(item => byKey.set(keyOf(item), item));
+                
+                const items = Array.from(byKey.values()).sort(compare);
+                if (version) {
+                    syncedLists[url] = { version: version, items: items };
+                }
+                return items.slice();
+            });
+        });
+}
+
+// Read receipts for messages that arrive in a burst go out once per conversation, for the newest message
+const READ_RECEIPT_DELAY_MS = 500;
+let pendingReadReceipts = new Map();
+let readReceiptTimer = null;
+
+function queueReadReceipt(conversationId, messageId) {
+    pendingReadReceipts.set(conversationId, Math.max(pendingReadReceipts.get(conversationId) || 0, messageId));
+    if (!readReceiptTimer) {
+        readReceiptTimer = setTimeout(sendReadReceipts, READ_RECEIPT_DELAY_MS);
+    }
+}
+
+function sendReadReceipts() {
+    const receipts = pendingReadReceipts;
+    pendingReadReceipts = new Map();
+    readReceiptTimer = null;
+    receipts.forEach((messageId, conversationId) => {
+        API.messaging.markMessagesAsRead(conversationId);
+        WebSocketAPI.sendReadReceipt(conversationId, messageId);
+    });
+}
+
+// Newest first by the given timestamp field, entries without one last
+function newestFirst(field) {
+    return (a, b) => (b[field] || '').localeCompare(a[field] || '');
+}
+
+// Apply inbox conversation changes to the synced conversation list; null when it does not hold them all
+function applyInboxChanges(changes) {
+    const currentUser = API.auth.getCurrentUser();
+    const synced = currentUser && syncedLists[`${API_BASE_URL}/conversations?userId=${currentUser.id}`];
+    if (!synced) return null;
+    
+    for (const change of changes) {
+        const conversation = synced.items.find(item => item.id === change.conversationId);
+        if (!conversation) return null;
+        
+        conversation.unreadCount = change.unreadCount;
+        if (change.lastMessage) {
+            conversation.lastMessage = change.lastMessage;
+            conversation.lastMessageAt = change.lastMessage.timestamp;
+        }
+    }
+    
+    // The held version is unchanged, so the next delta request still returns these entries as the server has them
+    synced.items.sort(newestFirst('lastMessageAt'));
+    return synced.items.slice();
+}
+
+// Start over with full lists, e.g. after the server could not replay what was missed
+function resetSyncedLists() {
+    syncedLists = {};
+}
+
 // API Object
 const API = {
     // Authentication
@@ -73,9 +157,9 @@ const API = {
     
     // Users
     users: {
-        // Get all users
-        getAll: function() {
-            return fetch(`${API_BASE_URL}/users`)
+        // Get all users; slim skips unread counts, for pickers
+        getAll: function(slim = false) {
+            return fetch(`${API_BASE_URL}/users?slim=${slim}`)
                 .then(response => {
                     if (!response.ok) {
                         throw new Error('Failed to fetch users');
@@ -96,14 +180,25 @@ const API = {
         },
         
         // Get online users
-        getOnlineUsers: function() {
-            return fetch(`${API_BASE_URL}/users/online`)
+        getOnlineUsers: function(slim = false) {
+            return fetch(`${API_BASE_URL}/users/online?slim=${slim}`)
                 .then(response => {
                     if (!response.ok) {
                         throw new Error('Failed to fetch online users');
                     }
                     return response.json();
                 });
+        },
+        
+        // Get the presence snapshot that /topic/presence deltas apply to
+        getPresence: function() {
+            return fetch(`${API_BASE_URL}/users/presence`)
+                .then(response => {
+                    if (!response.ok) {
+                        throw new Error('Failed to fetch presence');
+                    }
+                    return response.json();
+                });
         }
     },
     
@@ -146,15 +241,12 @@ const API = {
             });
         },
         
-        // Get notifications for user
+        // Get notifications for user; broadcast ids are their own sequence
         getForUser: function(userId) {
-            return fetch(`${API_BASE_URL}/notifications?userId=${userId}`)
-                .then(response => {
-                    if (!response.ok) {
-                        throw new Error('Failed to fetch notifications');
-                    }
-                    return response.json();
-                });
+            return fetchSyncedList(`${API_BASE_URL}/notifications?userId=${userId}`,
+                notification => (notification.broadcast ? 'b' : 'n') + notification.id,
+                newestFirst('timestamp'),
+                'Failed to fetch notifications');
         },
         
         // Get unread notifications for user
@@ -169,8 +261,9 @@ const API = {
         },
         
         // Mark notification as read
-        markAsRead: function(notificationId, userId) {
-            return fetch(`${API_BASE_URL}/notifications/${notificationId}/read?userId=${userId}`, {
+        markAsRead: function(notificationId, userId, broadcast = false) {
+            const path = broadcast ? `broadcast/${notificationId}` : notificationId;
+            return fetch(`${API_BASE_URL}/notifications/${path}/read?userId=${userId}`, {
                 method: 'POST'
             })
             .then(response => {
@@ -248,26 +341,56 @@ const API = {
             const currentUser = API.auth.getCurrentUser();
             if (!currentUser) return Promise.reject('User not logged in');
             
-            return fetch(`${API_BASE_URL}/conversations?userId=${currentUser.id}`)
+            return fetchSyncedList(`${API_BASE_URL}/conversations?userId=${currentUser.id}`,
+                conversation => conversation.id,
+                newestFirst('lastMessageAt'),
+                'Failed to fetch conversations')
+                .then(conversations => {
+                    // Unchanged entries keep the presence they were fetched with; use the live view instead
+                    const presence = typeof WebSocketAPI !== 'undefined' && WebSocketAPI.isConnected() ? WebSocketAPI.getPresence() : null;
+                    if (presence) {
+                        conversations.forEach(conversation => conversation.participants.forEach(participant => {
+                            participant.online = presence[participant.id] !== undefined;
+                        }));
+                    }
+                    return conversations;
+                });
+        },
+        
+        // Get one page of all conversations (admin only); options are page, size, sort, direction, participantId and role
+        getAllConversations: function(options = {}) {
+            const currentUser = API.auth.getCurrentUser();
+            if (!currentUser || currentUser.role !== 'admin') {
+                return Promise.reject('Unauthorized');
+            }
+            
+            const params = new URLSearchParams();
+            Object.entries(options).forEach(([name, value]) => {
+                if (value !== undefined && value !== null && value !== '') {
+                    params.append(name, value);
+                }
+            });
+            
+            return fetch(`${API_BASE_URL}/conversations/all?${params}`)
                 .then(response => {
                     if (!response.ok) {
-                        throw new Error('Failed to fetch conversations');
+                        throw new Error('Failed to fetch all conversations');
                     }
                     return response.json();
                 });
         },
         
-        // Get all conversations (admin only)
-        getAllConversations: function() {
+        // Get a single conversation with all its participants (admin only)
+        getConversation: function(conversationId) {
             const currentUser = API.auth.getCurrentUser();
             if (!currentUser || currentUser.role !== 'admin') {
                 return Promise.reject('Unauthorized');
             }
             
-            return fetch(`${API_BASE_URL}/conversations/all`)
+            return fetch(`${API_BASE_URL}/conversations/${conversationId}`)
                 .then(response => {
                     if (!response.ok) {
-                        throw new Error('Failed to fetch all conversations');
+                        throw new Error('Conversation not found');
                     }
                     return response.json();
                 });
@@ -301,7 +424,8 @@ const API = {
                         throw new Error('Failed to fetch messages');
                     }
                     return response.json();
-                });
+                })
+                .then(page => page.messages);
         },
         
         // Send message
@@ -320,23 +444,12 @@ const API = {
                     // Get the other participant
                     const otherParticipant = conversation.participants[0];
                     
-                    // Send message via WebSocket
+                    // Send message via WebSocket; resolves with the stored message once the server confirms it
                     return WebSocketAPI.sendMessage(
                         conversationId,
                         otherParticipant.id,
                         message.text
-                    ).then(() => {
-                        // Return a placeholder message object
-                        return {
-                            id: Date.now(),
-                            conversationId: conversationId,
-                            senderId: currentUser.id,
-                            recipientId: otherParticipant.id,
-                            text: message.text,
-                            timestamp: new Date().toISOString(),
-                            read: false
-                        };
-                    });
+                    );
                 });
         },
         
@@ -372,8 +485,8 @@ document.addEventListener('DOMContentLoaded', function() {
                 addMessageToUI(message);
             }
             
-            // Mark message as read
-            API.messaging.markMessagesAsRead(message.conversationId);
+            // Mark message as read, and let the sender see it live
+            queueReadReceipt(message.conversationId, message.id);
         }
     });
     
@@ -393,7 +506,19 @@ document.addEventListener('DOMContentLoaded', function() {
         
         // Update message badge
         if (typeof updateMessageBadge === 'function') {
-            updateMessageBadge();
+            updateMessageBadge(count);
+        }
+    });
+    
+    // Listen for inbox conversation changes
+    document.addEventListener('inbox-updated', function(event) {
+        const conversations = applyInboxChanges(event.detail.conversations);
+        
+        // Redraw from the held list, or fetch it when a conversation is new to this client
+        if (conversations && typeof updateConversationsList === 'function') {
+            updateConversationsList(conversations);
+        } else if (typeof loadConversations === 'function') {
+            loadConversations();
         }
     });
     
@@ -407,11 +532,10 @@ document.addEventListener('DOMContentLoaded', function() {
         }
     });
     
-    // Listen for WebSocket connected events
-    document.addEventListener('websocket-connected', function() {
-        console.log('WebSocket connected');
+    // Refresh data that might have changed while disconnected
+    function reloadAfterDisconnect() {
+        resetSyncedLists();
         
-        // Refresh data that might have changed while disconnected
         const currentUser = API.auth.getCurrentUser();
         if (currentUser) {
             // Refresh conversations
@@ -424,7 +548,20 @@ document.addEventListener('DOMContentLoaded', function() {
                 loadNotifications();
             }
         }
+    }
+    
+    // Listen for WebSocket connected events
+    document.addEventListener('websocket-connected', function(event) {
+        console.log('WebSocket connected');
+        
+        // A resumed connection has the missed events replayed instead
+        if (!event.detail || !event.detail.resumed) {
+            reloadAfterDisconnect();
+        }
     });
+    
+    // The server could not replay what was missed
+    document.addEventListener('websocket-resync', reloadAfterDisconnect);
 });
 
 // Initialize data store
@@ -290,6 +290,15 @@ const API = {
             });
         },
         
+        // Get a presence snapshot in the server's shape; changes made in other tabs arrive as presence-changed events
+        getPresence: function() {
+            return new Promise((resolve) => {
+                setTimeout(() => {
+                    resolve({ version: 0, statuses: presenceFromStore() });
+                }, 300);
+            });
+        },
+        
         // Update unread message count
         updateUnreadCount: function(userId, count) {
             return new Promise((resolve) => {
@@ -752,8 +761,8 @@ const API = {
             });
         },
         
-        // Get all conversations (admin only)
-        getAllConversations: function() {
+        // Get one page of all conversations (admin only); options are page, size, sort, direction, participantId and role
+        getAllConversations: function(options = {}) {
             return new Promise((resolve, reject) => {
                 setTimeout(() => {
                     const currentUser = API.auth.getCurrentUser();
@@ -768,60 +777,106 @@ const API = {
                         return;
                     }
                     
-                    // Get conversations
-                    const conversations = JSON.parse(localStorage.getItem('conversations'));
-                    
-                    // Get users for participant info
-                    const users = JSON.parse(localStorage.getItem('users'));
-                    
-                    // Get messages for last message
-                    const messages = JSON.parse(localStorage.getItem('messages'));
-                    
-                    // Enhance conversations with participant info and last message
-                    const enhancedConversations = conversations.map(conversation => {
-                        // Get participants
-                        const participants = conversation.participants.map(id => {
-                            const user = users.find(u => u.id === id);
-                            return user ? {
-                                id: user.id,
-                                name: user.name,
-                                avatar: user.avatar,
-                                isOnline: user.isOnline,
-                                role: user.role
-                            } : null;
-                        }).filter(p => p !== null);
-                        
-                        // Get last message
-                        const conversationMessages = messages.filter(m => m.conversationId === conversation.id);
-                        const lastMessage = conversationMessages.length > 0 
-                            ? conversationMessages.sort((a, b) => new Date(b.timestamp) - new Date(a.timestamp))[0]
-                            : null;
-                        
-                        // Count messages
-                        const messageCount = conversationMessages.length;
-                        
-                        return {
-                            ...conversation,
-                            participants: participants,
-                            lastMessage: lastMessage,
-                            messageCount: messageCount
-                        };
+                    const page = Math.max(parseInt(options.page) || 0, 0);
+                    const size = Math.max(1, Math.min(parseInt(options.size) || 20, 100));
+                    const participantId = options.participantId ? parseInt(options.participantId) : null;
+                    
+                    // Filter, then sort, like the server
+                    const conversations = JSON.parse(localStorage.getItem('conversations'))
+                        .filter(conversation => participantId === null || conversation.participants.includes(participantId))
+                        .map(enhanceConversation)
+                        .filter(conversation => !options.role || conversation.participants.some(p => p.role === options.role));
+                    
+                    const sortTime = options.sort === 'createdAt'
+                        ? conversation => new Date(conversation.createdAt)
+                        : conversation => conversation.lastMessage ? new Date(conversation.lastMessage.timestamp) : new Date(conversation.lastMessageAt);
+                    const direction = options.direction === 'asc' ? 1 : -1;
+                    conversations.sort((a, b) => direction * (sortTime(a) - sortTime(b)) || direction * (a.id - b.id));
+                    
+                    resolve({
+                        conversations: conversations.slice(page * size, (page + 1) * size),
+                        page: page,
+                        size: size,
+                        totalElements: conversations.length,
+                        totalPages: Math.ceil(conversations.length / size)
                     });
+                }, 300);
+            });
+        },
+        
+        // Get a single conversation with all its participants (admin only)
+        getConversation: function(conversationId) {
+            return new Promise((resolve, reject) => {
+                setTimeout(() => {
+                    const currentUser = API.auth.getCurrentUser();
+                    if (!currentUser || currentUser.role !== 'admin') {
+                        reject(new Error('Only admin can access all conversations'));
+                        return;
+                    }
                     
-                    // Sort by last message time (newest first)
-                    enhancedConversations.sort((a, b) => {
-                        const aTime = a.lastMessage ? new Date(a.lastMessage.timestamp) : new Date(a.lastMessageAt);
-                        const bTime = b.lastMessage ? new Date(b.lastMessage.timestamp) : new Date(b.lastMessageAt);
-                        return bTime - aTime;
-                    });
+                    const conversation = JSON.parse(localStorage.getItem('conversations')).find(c => c.id === conversationId);
+                    if (!conversation) {
+                        reject(new Error('Conversation not found'));
+                        return;
+                    }
                     
-                    resolve(enhancedConversations);
+                    resolve(enhanceConversation(conversation));
                 }, 300);
             });
         }
     }
 };
 
+// Add participant info, last message and counts to a stored conversation
+function enhanceConversation(conversation) {
+    const users = JSON.parse(localStorage.getItem('users'));
+    const messages = JSON.parse(localStorage.getItem('messages'));
+    
+    // Get participants
+    const participants = conversation.participants.map(id => {
+        const user = users.find(u => u.id === id);
+        return user ? {
+            id: user.id,
+            name: user.name,
+            avatar: user.avatar,
+            isOnline: user.isOnline,
+            role: user.role
+        } : null;
+    }).filter(p => p !== null);
+    
+    // Get last message
+    const conversationMessages = messages.filter(m => m.conversationId === conversation.id);
+    const lastMessage = conversationMessages.length > 0
+        ? conversationMessages.sort((a, b) => new Date(b.timestamp) - new Date(a.timestamp))[0]
+        : null;
+    
+    return {
+        ...conversation,
+        participants: participants,
+        lastMessage: lastMessage,
+        messageCount: conversationMessages.length,
+        unreadCount: conversationMessages.filter(m => !m.read).length
+    };
+}
+
+// Online users by id, as in the server's presence snapshot
+function presenceFromStore() {
+    const statuses = {};
+    JSON.parse(localStorage.getItem('onlineUsers') || '[]').forEach(id => {
+        statuses[id] = 'ONLINE';
+    });
+    return statuses;
+}
+
+// Other tabs share the store, so their logins and logouts are this mock's presence deltas
+window.addEventListener('storage', function(e) {
+    if (e.key === 'onlineUsers') {
+        document.dispatchEvent(new CustomEvent('presence-changed', {
+            detail: { statuses: presenceFromStore() }
+        }));
+    }
+});
+
 // Initialize data store when script loads
 initializeDataStore();
 
@@ -0,0 +1,43 @@
+package com.aimpact.messaging.benchmarks;
+
+/**
+ * Data volumes the database-backed benchmarks are run against.
+ * <p>
+ * Conversations are spread evenly over the users, so the inbox of a user grows
+ * with {@code conversations / users} and a conversation page is always cut
+ * from {@code messagesPerConversation} rows.
+ */
+public enum BenchmarkDataset {
+    
+    SMALL(50, 100, 20),
+    MEDIUM(200, 1000, 100),
+    LARGE(500, 4000, 250);
+    
+    private final int users;
+    
+    private final int conversations;
+    
+    private final int messagesPerConversation;
+    
+    BenchmarkDataset(int users, int conversations, int messagesPerConversation) {
+        this.users = users;
+        this.conversations = conversations;
+        this.messagesPerConversation = messagesPerConversation;
+    }
+    
+    public int getUsers() {
+        return users;
+    }
+    
+    public int getConversations() {
+        return conversations;
+    }
+    
+    public int getMessagesPerConversation() {
+        return messagesPerConversation;
+    }
+    
+    public static BenchmarkDataset of(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,111 @@
+package com.aimpact.messaging.benchmarks;
+
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.ConversationSummary;
+import com.aimpact.messaging.model.Message;
+import com.aimpact.messaging.repository.ConversationRepository;
+import com.aimpact.messaging.repository.ConversationSummaryRepository;
+import com.aimpact.messaging.repository.MessageRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw repository queries behind the conversation view and the inbox, without
+ * any DTO conversion. Compare with {@link ServiceBenchmark} to see what the
+ * conversion adds on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageQueryBenchmark {
+    
+    private static final Pageable PAGE = PageRequest.of(0, 50);
+    
+    @Param({"small", "medium", "large"})
+    private String dataset;
+    
+    private SeededApplication application;
+    
+    private MessageRepository messageRepository;
+    
+    private ConversationSummaryRepository summaryRepository;
+    
+    private final List<Conversation> conversations = new ArrayList<>();
+    
+    // Keyset cursors halfway into each conversation
+    private final List<Message> cursors = new ArrayList<>();
+    
+    private List<Long> userIds;
+    
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        application = SeededApplication.start(BenchmarkDataset.of(dataset));
+        messageRepository = application.getBean(MessageRepository.class);
+        summaryRepository = application.getBean(ConversationSummaryRepository.class);
+        userIds = application.getUserIds();
+        
+        ConversationRepository conversationRepository = application.getBean(ConversationRepository.class);
+        int middle = BenchmarkDataset.of(dataset).getMessagesPerConversation() / 2;
+        for (Long conversationId : application.getConversationIds()) {
+            Conversation conversation = conversationRepository.findById(conversationId).orElseThrow();
+            conversations.add(conversation);
+            List<Message> latest = messageRepository.findLatestInConversation(conversation, PageRequest.of(0, middle + 1));
+            cursors.add(latest.get(latest.size() - 1));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        application.close();
+    }
+    
+    @Benchmark
+    public List<Message> latestPage() {
+        return messageRepository.findLatestInConversation(conversations.get(nextIndex(conversations.size())), PAGE);
+    }
+    
+    @Benchmark
+    public List<Message> olderPage() {
+        int index = nextIndex(conversations.size());
+        Message cursor = cursors.get(index);
+        return messageRepository.findBeforeInConversation(conversations.get(index), cursor.getTimestamp(), cursor.getId(), PAGE);
+    }
+    
+    @Benchmark
+    public List<ConversationSummary> inbox() {
+        return summaryRepository.findInboxForUser(userIds.get(nextIndex(userIds.size())));
+    }
+    
+    @Benchmark
+    public List<Object[]> unreadCounts() {
+        return messageRepository.countUnreadMessagesByRecipientAndConversation();
+    }
+    
+    // Rotate through the dataset so one hot row does not stand in for all of them
+    private int nextIndex(int size) {
+        next = (next + 1) % size;
+        return next;
+    }
+}
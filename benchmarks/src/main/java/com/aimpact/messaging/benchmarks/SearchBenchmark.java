@@ -0,0 +1,90 @@
+package com.aimpact.messaging.benchmarks;
+
+import com.aimpact.messaging.dto.MessagePageDTO;
+import com.aimpact.messaging.service.MessageSearchIndex;
+import com.aimpact.messaging.service.MessageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message search through the in-memory index, which is rebuilt from the
+ * seeded messages table before measuring. Queries cover a term every message
+ * of the caller contains, a rare term combined with a common one, and a bare
+ * prefix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SearchBenchmark {
+    
+    private static final int PAGE_SIZE = 20;
+    
+    @Param({"small", "medium", "large"})
+    private String dataset;
+    
+    private SeededApplication application;
+    
+    private MessageService messageService;
+    
+    private MessageSearchIndex searchIndex;
+    
+    private List<Long> userIds;
+    
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        application = SeededApplication.start(BenchmarkDataset.of(dataset));
+        messageService = application.getBean(MessageService.class);
+        searchIndex = application.getBean(MessageSearchIndex.class);
+        searchIndex.rebuild();
+        userIds = application.getUserIds();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        application.close();
+    }
+    
+    @Benchmark
+    public MessagePageDTO commonTerm() {
+        return messageService.searchMessages(nextUser(), "benchmark", null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public MessagePageDTO rareAndCommonTerm() {
+        return messageService.searchMessages(nextUser(), "message 17", null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public MessagePageDTO prefix() {
+        return messageService.searchMessages(nextUser(), "conv", null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public MessageSearchIndex.Hits indexOnly() {
+        return searchIndex.search(nextUser(), "message 17", null, PAGE_SIZE + 1);
+    }
+    
+    private Long nextUser() {
+        next = (next + 1) % userIds.size();
+        return userIds.get(next);
+    }
+}
@@ -0,0 +1,184 @@
+package com.aimpact.messaging.benchmarks;
+
+import com.aimpact.messaging.MessagingServerApplication;
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.ConversationReadStateRepository;
+import com.aimpact.messaging.repository.ConversationRepository;
+import com.aimpact.messaging.repository.ConversationSummaryRepository;
+import com.aimpact.messaging.repository.UserRepository;
+import com.aimpact.messaging.service.ChangeVersionAllocator;
+import com.aimpact.messaging.service.ConversationService;
+import com.aimpact.messaging.service.MessageIdAllocator;
+import com.aimpact.messaging.service.UnreadCounterService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Boots the messaging server against its own in-memory H2 database and seeds
+ * it with a {@link BenchmarkDataset}.
+ * <p>
+ * Users and conversations go through the regular repositories and services so
+ * that read states and summaries exist exactly as in production; messages are
+ * batch-inserted the way the write-behind persistence flushes them, followed by
+ * one summary update per conversation.
+ */
+public class SeededApplication {
+    
+    private static final String INSERT_MESSAGE_SQL =
+            "INSERT INTO messages (id, conversation_id, sender_id, recipient_id, text, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
+    
+    private static final int INSERT_BATCH = 1000;
+    
+    // Trailing messages of each conversation left unread by their recipient
+    private static final int UNREAD_PER_CONVERSATION = 3;
+    
+    private final ConfigurableApplicationContext context;
+    
+    private final List<Long> userIds = new ArrayList<>();
+    
+    private final List<Long> conversationIds = new ArrayList<>();
+    
+    // The participant each conversation is read as, and the other one
+    private final List<Long> conversationUserIds = new ArrayList<>();
+    
+    private final List<Long> conversationPartnerIds = new ArrayList<>();
+    
+    private SeededApplication(ConfigurableApplicationContext context) {
+        this.context = context;
+    }
+    
+    public static SeededApplication start(BenchmarkDataset dataset) {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(MessagingServerApplication.class)
+                .run("--server.port=0",
+                        "--spring.main.banner-mode=off",
+                        "--spring.datasource.url=jdbc:h2:mem:benchmark-" + dataset.name().toLowerCase() + ";DB_CLOSE_ON_EXIT=FALSE",
+                        "--spring.jpa.show-sql=false",
+                        "--spring.h2.console.enabled=false",
+                        "--logging.level.root=WARN",
+                        "--logging.level.com.aimpact.messaging=WARN",
+                        // Keep background jobs out of the measurements
+                        "--messaging.unread-counters.reconcile-interval-ms=86400000",
+                        "--messaging.presence.flush-interval-ms=86400000",
+                        "--messaging.presence.coalesce-window-ms=86400000");
+        SeededApplication application = new SeededApplication(context);
+        application.seed(dataset);
+        return application;
+    }
+    
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+    
+    public List<Long> getUserIds() {
+        return userIds;
+    }
+    
+    public List<Long> getConversationIds() {
+        return conversationIds;
+    }
+    
+    public List<Long> getConversationUserIds() {
+        return conversationUserIds;
+    }
+    
+    public void close() {
+        context.close();
+    }
+    
+    private void seed(BenchmarkDataset dataset) {
+        UserRepository userRepository = getBean(UserRepository.class);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < dataset.getUsers(); i++) {
+            User user = new User();
+            user.setEmail("bench" + i + "@example.com");
+            user.setPassword("password");
+            user.setName("Bench User " + i);
+            user.setRole("user");
+            user.setCreatedAt(LocalDateTime.now());
+            users.add(user);
+        }
+        userRepository.saveAll(users).forEach(user -> userIds.add(user.getId()));
+        
+        // Pair every user with its next neighbours so inboxes are evenly sized
+        ConversationService conversationService = getBean(ConversationService.class);
+        for (int i = 0; i < dataset.getConversations(); i++) {
+            int first = i % userIds.size();
+            int second = (first + 1 + i / userIds.size()) % userIds.size();
+            ConversationDTO conversation = conversationService.getOrCreateConversation(userIds.get(first), userIds.get(second));
+            conversationIds.add(conversation.getId());
+            conversationUserIds.add(userIds.get(first));
+            conversationPartnerIds.add(userIds.get(second));
+        }
+        
+        seedMessages(dataset);
+        getBean(UnreadCounterService.class).reconcile();
+    }
+    
+    private void seedMessages(BenchmarkDataset dataset) {
+        JdbcTemplate jdbcTemplate = getBean(JdbcTemplate.class);
+        MessageIdAllocator idAllocator = getBean(MessageIdAllocator.class);
+        ChangeVersionAllocator changeVersions = getBean(ChangeVersionAllocator.class);
+        ConversationRepository conversationRepository = getBean(ConversationRepository.class);
+        ConversationSummaryRepository summaryRepository = getBean(ConversationSummaryRepository.class);
+        ConversationReadStateRepository readStateRepository = getBean(ConversationReadStateRepository.class);
+        UserRepository userRepository = getBean(UserRepository.class);
+        
+        LocalDateTime start = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS).minusMinutes(dataset.getMessagesPerConversation());
+        // Seeding finishes before any client reads, so the version need not stay in flight while it is written
+        long version = changeVersions.stamp(seedVersion -> seedVersion);
+        List<Object[]> rows = new ArrayList<>();
+        for (int c = 0; c < conversationIds.size(); c++) {
+            Long conversationId = conversationIds.get(c);
+            Long firstId = conversationUserIds.get(c);
+            Long secondId = conversationPartnerIds.get(c);
+            
+            long lastId = 0;
+            long readUpToId = 0;
+            LocalDateTime readUpToTimestamp = null;
+            Long lastSender = null;
+            Long lastRecipient = null;
+            String lastText = null;
+            LocalDateTime lastTimestamp = null;
+            for (int i = 0; i < dataset.getMessagesPerConversation(); i++) {
+                lastId = idAllocator.nextId();
+                lastSender = i % 2 == 0 ? firstId : secondId;
+                lastRecipient = i % 2 == 0 ? secondId : firstId;
+                lastText = "Benchmark message " + i + " in conversation " + conversationId;
+                lastTimestamp = start.plusMinutes(i);
+                rows.add(new Object[] {lastId, conversationId, lastSender, lastRecipient, lastText, Timestamp.valueOf(lastTimestamp)});
+                if (i == dataset.getMessagesPerConversation() - 1 - UNREAD_PER_CONVERSATION) {
+                    readUpToId = lastId;
+                    readUpToTimestamp = lastTimestamp;
+                }
+                if (rows.size() == INSERT_BATCH) {
+                    jdbcTemplate.batchUpdate(INSERT_MESSAGE_SQL, rows);
+                    rows.clear();
+                }
+            }
+            
+            Conversation conversation = conversationRepository.getReferenceById(conversationId);
+            summaryRepository.recordMessage(conversation, lastId, lastSender, lastRecipient, lastText, lastTimestamp, version);
+            conversationRepository.touchLastMessageAt(conversationId, lastTimestamp);
+            
+            // Both participants have read all but the newest messages; the counters are rebuilt from this
+            if (readUpToTimestamp != null) {
+                readStateRepository.advanceWatermark(conversation, userRepository.getReferenceById(firstId),
+                        readUpToTimestamp, readUpToId);
+                readStateRepository.advanceWatermark(conversation, userRepository.getReferenceById(secondId),
+                        readUpToTimestamp, readUpToId);
+            }
+        }
+        if (!rows.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_MESSAGE_SQL, rows);
+        }
+    }
+}
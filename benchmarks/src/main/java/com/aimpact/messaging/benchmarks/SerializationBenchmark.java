@@ -0,0 +1,99 @@
+package com.aimpact.messaging.benchmarks;
+
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.dto.MessageDTO;
+import com.aimpact.messaging.dto.MessagePageDTO;
+import com.aimpact.messaging.service.ConversationService;
+import com.aimpact.messaging.service.MessageService;
+import com.aimpact.messaging.websocket.WireFormatNegotiator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the DTOs the server sends with Spring Boot's JSON mapper, used
+ * for REST and STOMP, against the CBOR mapper sessions on {@code /stomp} can
+ * negotiate with {@code wire-format:cbor}. The DTOs are taken from the small
+ * dataset so their shape matches real responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    
+    private SeededApplication application;
+    
+    private ObjectMapper jsonMapper;
+    
+    private final ObjectMapper cborMapper = WireFormatNegotiator.createCborMapper();
+    
+    private MessageDTO message;
+    
+    private MessagePageDTO messagePage;
+    
+    private List<ConversationDTO> inbox;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        application = SeededApplication.start(BenchmarkDataset.SMALL);
+        jsonMapper = application.getBean(ObjectMapper.class);
+        
+        Long conversationId = application.getConversationIds().get(0);
+        Long userId = application.getConversationUserIds().get(0);
+        messagePage = application.getBean(MessageService.class).getMessagesForConversation(conversationId, userId, null, null, 50);
+        message = messagePage.getMessages().get(0);
+        inbox = application.getBean(ConversationService.class).getConversationsForUser(userId);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        application.close();
+    }
+    
+    @Benchmark
+    public byte[] messageJson() throws JsonProcessingException {
+        return jsonMapper.writeValueAsBytes(message);
+    }
+    
+    @Benchmark
+    public byte[] messageCbor() throws JsonProcessingException {
+        return cborMapper.writeValueAsBytes(message);
+    }
+    
+    @Benchmark
+    public byte[] messagePageJson() throws JsonProcessingException {
+        return jsonMapper.writeValueAsBytes(messagePage);
+    }
+    
+    @Benchmark
+    public byte[] messagePageCbor() throws JsonProcessingException {
+        return cborMapper.writeValueAsBytes(messagePage);
+    }
+    
+    @Benchmark
+    public byte[] inboxJson() throws JsonProcessingException {
+        return jsonMapper.writeValueAsBytes(inbox);
+    }
+    
+    @Benchmark
+    public byte[] inboxCbor() throws JsonProcessingException {
+        return cborMapper.writeValueAsBytes(inbox);
+    }
+}
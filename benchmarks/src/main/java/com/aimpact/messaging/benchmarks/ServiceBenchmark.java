@@ -0,0 +1,86 @@
+package com.aimpact.messaging.benchmarks;
+
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.dto.MessagePageDTO;
+import com.aimpact.messaging.service.ConversationService;
+import com.aimpact.messaging.service.MessageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service entry points the REST API calls: the query plus the conversion
+ * of every row into its DTO ({@code MessageService.convertToDTO} and
+ * {@code ConversationService.convertToDTO}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceBenchmark {
+    
+    private static final int PAGE_SIZE = 50;
+    
+    @Param({"small", "medium", "large"})
+    private String dataset;
+    
+    private SeededApplication application;
+    
+    private MessageService messageService;
+    
+    private ConversationService conversationService;
+    
+    private List<Long> conversationIds;
+    
+    private List<Long> conversationUserIds;
+    
+    private List<Long> userIds;
+    
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        application = SeededApplication.start(BenchmarkDataset.of(dataset));
+        messageService = application.getBean(MessageService.class);
+        conversationService = application.getBean(ConversationService.class);
+        conversationIds = application.getConversationIds();
+        conversationUserIds = application.getConversationUserIds();
+        userIds = application.getUserIds();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        application.close();
+    }
+    
+    @Benchmark
+    public MessagePageDTO messagePage() {
+        int index = nextIndex(conversationIds.size());
+        return messageService.getMessagesForConversation(conversationIds.get(index), conversationUserIds.get(index), null, null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public List<ConversationDTO> conversationInbox() {
+        return conversationService.getConversationsForUser(userIds.get(nextIndex(userIds.size())));
+    }
+    
+    private int nextIndex(int size) {
+        next = (next + 1) % size;
+        return next;
+    }
+}
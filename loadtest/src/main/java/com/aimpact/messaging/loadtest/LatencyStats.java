@@ -0,0 +1,94 @@
+package com.aimpact.messaging.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end delivery latency and counts for one kind of traffic.
+ * <p>
+ * Latency runs from the moment a frame was scheduled to be sent, not from when
+ * a sender thread got round to it, so a server that falls behind shows up in
+ * the percentiles instead of silently lowering the send rate.
+ */
+public class LatencyStats {
+    
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    
+    private final String name;
+    
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+    
+    private final LongAdder sent = new LongAdder();
+    
+    // Deliveries the sent frames should cause, one per subscribed session
+    private final LongAdder expected = new LongAdder();
+    
+    private final LongAdder received = new LongAdder();
+    
+    private volatile boolean measuring;
+    
+    private volatile long measuringSince;
+    
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    // Traffic before this is warm-up and only delivered, not measured
+    public void startMeasuring() {
+        recorder.reset();
+        sent.reset();
+        expected.reset();
+        received.reset();
+        measuringSince = System.nanoTime();
+        measuring = true;
+    }
+    
+    public boolean isMeasuring() {
+        return measuring;
+    }
+    
+    public void sent(long scheduledAt, int deliveries) {
+        if (measuring && scheduledAt - measuringSince >= 0) {
+            sent.increment();
+            expected.add(deliveries);
+        }
+    }
+    
+    public void received(long scheduledAt) {
+        if (measuring && scheduledAt - measuringSince >= 0) {
+            recorder.recordValue(Math.min(System.nanoTime() - scheduledAt, HIGHEST_TRACKABLE_NANOS));
+            received.increment();
+        }
+    }
+    
+    public synchronized Histogram nextInterval() {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        return interval;
+    }
+    
+    public synchronized Histogram getTotal() {
+        return total.copy();
+    }
+    
+    public long getSent() {
+        return sent.sum();
+    }
+    
+    public long getExpected() {
+        return expected.sum();
+    }
+    
+    public long getReceived() {
+        return received.sum();
+    }
+}
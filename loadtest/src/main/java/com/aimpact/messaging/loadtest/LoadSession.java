@@ -0,0 +1,155 @@
+package com.aimpact.messaging.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * One simulated client: a STOMP session for a user, subscribed to the same
+ * destinations as the web client, that chats with a single partner.
+ */
+public class LoadSession extends StompSessionHandlerAdapter {
+    
+    public static final String MESSAGES = "/user/queue/messages";
+    
+    public static final String NOTIFICATIONS = "/user/queue/notifications";
+    
+    // Broadcasts are published once to a shared topic rather than per user
+    public static final String BROADCASTS = "/topic/notifications";
+    
+    private final Long userId;
+    
+    private final Long partnerId;
+    
+    private final Long conversationId;
+    
+    private final String marker;
+    
+    private final LoadTestReport report;
+    
+    private volatile StompSession session;
+    
+    public LoadSession(Long userId, Long partnerId, Long conversationId, String marker, LoadTestReport report) {
+        this.userId = userId;
+        this.partnerId = partnerId;
+        this.conversationId = conversationId;
+        this.marker = marker;
+        this.report = report;
+    }
+    
+    public Long getUserId() {
+        return userId;
+    }
+    
+    public Long getPartnerId() {
+        return partnerId;
+    }
+    
+    public boolean isConnected() {
+        StompSession current = session;
+        return current != null && current.isConnected();
+    }
+    
+    @Override
+    public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+        this.session = session;
+        session.subscribe(MESSAGES, handler(payload -> received(report.getMessages(), payload.path("text").asText())));
+        session.subscribe(NOTIFICATIONS, handler(payload -> received(report.getNotifications(), payload.path("message").asText())));
+        session.subscribe(BROADCASTS, handler(payload -> received(report.getBroadcasts(), payload.path("message").asText())));
+    }
+    
+    public void sendMessage(long scheduledAt) {
+        send("/app/chat.sendMessage", Map.of(
+                "conversationId", conversationId,
+                "recipientId", partnerId,
+                "text", marker + scheduledAt));
+    }
+    
+    public void sendNotification(long scheduledAt) {
+        send("/app/notification.send", Map.of(
+                "title", "Load test",
+                "message", marker + scheduledAt,
+                "type", "info",
+                "recipientIds", List.of(partnerId)));
+    }
+    
+    public void sendBroadcast(long scheduledAt) {
+        send("/app/notification.sendToAll", Map.of(
+                "title", "Load test",
+                "message", marker + scheduledAt,
+                "type", "info"));
+    }
+    
+    public void disconnect() {
+        StompSession current = session;
+        if (current != null && current.isConnected()) {
+            current.disconnect();
+        }
+    }
+    
+    @Override
+    public void handleException(StompSession session, StompCommand command, StompHeaders headers, byte[] payload, Throwable exception) {
+        report.error("frame");
+    }
+    
+    @Override
+    public void handleTransportError(StompSession session, Throwable exception) {
+        report.error("transport");
+    }
+    
+    @Override
+    public void handleFrame(StompHeaders headers, Object payload) {
+        // Only ERROR frames reach the session handler itself
+        report.error("stomp-error");
+    }
+    
+    // The transport allows one write at a time per session
+    private void send(String destination, Object payload) {
+        StompSession current = session;
+        if (current == null || !current.isConnected()) {
+            report.error("send-disconnected");
+            return;
+        }
+        try {
+            synchronized (this) {
+                current.send(destination, payload);
+            }
+        } catch (RuntimeException e) {
+            report.error("send");
+        }
+    }
+    
+    // Frames from other clients or earlier runs carry no marker and are ignored
+    private void received(LatencyStats stats, String text) {
+        if (!text.startsWith(marker)) {
+            return;
+        }
+        try {
+            stats.received(Long.parseLong(text.substring(marker.length())));
+        } catch (NumberFormatException e) {
+            report.error("decode");
+        }
+    }
+    
+    private StompFrameHandler handler(Consumer<JsonNode> consumer) {
+        return new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return JsonNode.class;
+            }
+            
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                consumer.accept((JsonNode) payload);
+            }
+        };
+    }
+}
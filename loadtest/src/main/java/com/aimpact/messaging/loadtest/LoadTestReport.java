@@ -0,0 +1,128 @@
+package com.aimpact.messaging.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the latency of every traffic kind plus error counts, and prints
+ * them per interval and as a final summary. Each interval histogram can also
+ * be written to an HdrHistogram log for later plotting or merging.
+ */
+public class LoadTestReport {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LoadTestReport.class);
+    
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final LatencyStats messages = new LatencyStats("messages");
+    
+    private final LatencyStats notifications = new LatencyStats("notifications");
+    
+    private final LatencyStats broadcasts = new LatencyStats("broadcasts");
+    
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    
+    private HistogramLogWriter logWriter;
+    
+    private long measuringSince;
+    
+    private long sendingUntil;
+    
+    public LatencyStats getMessages() {
+        return messages;
+    }
+    
+    public LatencyStats getNotifications() {
+        return notifications;
+    }
+    
+    public LatencyStats getBroadcasts() {
+        return broadcasts;
+    }
+    
+    public void writeHistogramLog(String path) throws FileNotFoundException {
+        logWriter = new HistogramLogWriter(path);
+        logWriter.outputLogFormatVersion();
+        logWriter.outputStartTime(System.currentTimeMillis());
+        logWriter.outputLegend();
+    }
+    
+    public void error(String kind) {
+        errors.computeIfAbsent(kind, key -> new LongAdder()).increment();
+    }
+    
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((kind, count) -> counts.put(kind, count.sum()));
+        return counts;
+    }
+    
+    public void startMeasuring() {
+        errors.clear();
+        measuringSince = System.nanoTime();
+        for (LatencyStats stats : all()) {
+            stats.startMeasuring();
+        }
+    }
+    
+    // Rates are taken over the sending period; the drain afterwards only collects stragglers
+    public void stopSending() {
+        sendingUntil = System.nanoTime();
+    }
+    
+    public synchronized void reportInterval(double seconds) {
+        StringBuilder line = new StringBuilder();
+        for (LatencyStats stats : all()) {
+            Histogram interval = stats.nextInterval();
+            if (logWriter != null && interval.getTotalCount() > 0) {
+                interval.setTag(stats.getName());
+                logWriter.outputIntervalHistogram(interval);
+            }
+            if (interval.getTotalCount() > 0) {
+                line.append(String.format(" | %s %.0f/s p50=%.2fms p99=%.2fms", stats.getName(),
+                        interval.getTotalCount() / seconds, millis(interval, 50), millis(interval, 99)));
+            }
+        }
+        logger.info("Interval{} | errors={}", line, getErrors());
+    }
+    
+    public synchronized void printSummary() {
+        double seconds = (sendingUntil - measuringSince) / (double) TimeUnit.SECONDS.toNanos(1);
+        logger.info("Measured {} s of sending", String.format("%.1f", seconds));
+        for (LatencyStats stats : all()) {
+            if (stats.getSent() == 0 && stats.getReceived() == 0) {
+                continue;
+            }
+            Histogram total = stats.getTotal();
+            long missing = Math.max(0, stats.getExpected() - stats.getReceived());
+            logger.info(String.format("%-13s sent=%d (%.1f/s) delivered=%d (%.1f/s) missing=%d",
+                    stats.getName(), stats.getSent(), stats.getSent() / seconds,
+                    stats.getReceived(), stats.getReceived() / seconds, missing));
+            logger.info(String.format("%-13s latency ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                    stats.getName(), millis(total, 50), millis(total, 90), millis(total, 99), millis(total, 99.9),
+                    total.getMaxValue() / NANOS_PER_MILLI));
+        }
+        logger.info("Errors {}", getErrors());
+        if (logWriter != null) {
+            logWriter.close();
+        }
+    }
+    
+    private List<LatencyStats> all() {
+        return List.of(messages, notifications, broadcasts);
+    }
+    
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,244 @@
+package com.aimpact.messaging.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a local messaging server with many concurrent STOMP sessions.
+ * <p>
+ * Sessions connect with the {@code userId} handshake parameter for the users
+ * the server already has, each paired with the next user in a conversation
+ * created through the REST API. Chat messages, direct notifications and
+ * broadcasts are then sent at fixed rates for the configured duration while
+ * every session measures the deliveries it receives.
+ */
+@Component
+public class LoadTestRunner implements CommandLineRunner {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LoadTestRunner.class);
+    
+    @Value("${loadtest.url:http://localhost:8080}")
+    private String url;
+    
+    @Value("${loadtest.transport:sockjs}")
+    private String transport;
+    
+    @Value("${loadtest.sessions:100}")
+    private int sessionCount;
+    
+    @Value("${loadtest.connect-timeout-seconds:30}")
+    private int connectTimeoutSeconds;
+    
+    @Value("${loadtest.message-rate:200}")
+    private double messageRate;
+    
+    @Value("${loadtest.notification-rate:20}")
+    private double notificationRate;
+    
+    @Value("${loadtest.broadcast-rate:1}")
+    private double broadcastRate;
+    
+    @Value("${loadtest.sender-threads:8}")
+    private int senderThreads;
+    
+    @Value("${loadtest.warmup-seconds:5}")
+    private int warmupSeconds;
+    
+    @Value("${loadtest.duration-seconds:60}")
+    private int durationSeconds;
+    
+    @Value("${loadtest.drain-seconds:5}")
+    private int drainSeconds;
+    
+    @Value("${loadtest.report-interval-seconds:5}")
+    private int reportIntervalSeconds;
+    
+    @Value("${loadtest.histogram-log:}")
+    private String histogramLog;
+    
+    private final RestTemplate restTemplate = new RestTemplate();
+    
+    @Override
+    public void run(String... args) throws Exception {
+        String host = URI.create(url).getHost();
+        if (!"localhost".equals(host) && !"127.0.0.1".equals(host)) {
+            throw new IllegalArgumentException("Load tests only run against a local server, not " + url);
+        }
+        
+        LoadTestReport report = new LoadTestReport();
+        if (!histogramLog.isEmpty()) {
+            report.writeHistogramLog(histogramLog);
+        }
+        
+        List<LoadSession> sessions = createSessions(report);
+        WebSocketStompClient client = stompClient();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService senders = Executors.newFixedThreadPool(senderThreads);
+        try {
+            List<LoadSession> connected = connect(client, sessions, report);
+            if (connected.isEmpty()) {
+                logger.error("No session could connect to {}", url);
+                return;
+            }
+            run(connected, report, scheduler, senders);
+        } finally {
+            scheduler.shutdownNow();
+            senders.shutdownNow();
+            sessions.forEach(LoadSession::disconnect);
+            client.stop();
+        }
+    }
+    
+    private void run(List<LoadSession> sessions, LoadTestReport report,
+                     ScheduledExecutorService scheduler, ExecutorService senders) throws InterruptedException {
+        // Every session of the partner gets a copy of a message or notification; every session gets a broadcast
+        Map<Long, Integer> sessionsPerUser = new HashMap<>();
+        sessions.forEach(session -> sessionsPerUser.merge(session.getUserId(), 1, Integer::sum));
+        
+        AtomicLong nextMessage = new AtomicLong();
+        Pacer messages = new Pacer(messageRate, scheduledAt -> {
+            LoadSession session = sessions.get((int) (nextMessage.getAndIncrement() % sessions.size()));
+            // A partner whose sessions all failed to connect would receive nothing to measure
+            int copies = sessionsPerUser.getOrDefault(session.getPartnerId(), 0);
+            if (copies > 0) {
+                report.getMessages().sent(scheduledAt, copies);
+                session.sendMessage(scheduledAt);
+            }
+        });
+        AtomicLong nextNotification = new AtomicLong();
+        Pacer notifications = new Pacer(notificationRate, scheduledAt -> {
+            LoadSession session = sessions.get((int) (nextNotification.getAndIncrement() % sessions.size()));
+            int copies = sessionsPerUser.getOrDefault(session.getPartnerId(), 0);
+            if (copies > 0) {
+                report.getNotifications().sent(scheduledAt, copies);
+                session.sendNotification(scheduledAt);
+            }
+        });
+        AtomicLong nextBroadcast = new AtomicLong();
+        Pacer broadcasts = new Pacer(broadcastRate, scheduledAt -> {
+            LoadSession session = sessions.get((int) (nextBroadcast.getAndIncrement() % sessions.size()));
+            report.getBroadcasts().sent(scheduledAt, sessions.size());
+            session.sendBroadcast(scheduledAt);
+        });
+        
+        logger.info("Sending {} messages/s, {} notifications/s and {} broadcasts/s over {} sessions; warming up for {} s",
+                messageRate, notificationRate, broadcastRate, sessions.size(), warmupSeconds);
+        messages.start(scheduler, senders);
+        notifications.start(scheduler, senders);
+        broadcasts.start(scheduler, senders);
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        
+        report.startMeasuring();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < end) {
+            long interval = Math.min(TimeUnit.SECONDS.toNanos(reportIntervalSeconds), end - System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(interval);
+            report.reportInterval(interval / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        
+        messages.stop();
+        notifications.stop();
+        broadcasts.stop();
+        report.stopSending();
+        TimeUnit.SECONDS.sleep(drainSeconds);
+        report.reportInterval(drainSeconds);
+        report.printSummary();
+    }
+    
+    private List<LoadSession> createSessions(LoadTestReport report) {
+        JsonNode users = restTemplate.getForObject(url + "/api/users?slim=true", JsonNode.class);
+        List<Long> userIds = new ArrayList<>();
+        if (users != null) {
+            users.forEach(user -> userIds.add(user.path("id").asLong()));
+        }
+        if (userIds.size() < 2) {
+            throw new IllegalStateException("The server needs at least two users, found " + userIds.size());
+        }
+        
+        String marker = "loadtest:" + UUID.randomUUID() + ":";
+        Map<Long, Long> conversations = new HashMap<>();
+        List<LoadSession> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            Long userId = userIds.get(i % userIds.size());
+            Long partnerId = userIds.get((i + 1) % userIds.size());
+            Long conversationId = conversations.computeIfAbsent(userId, key -> createConversation(userId, partnerId));
+            sessions.add(new LoadSession(userId, partnerId, conversationId, marker, report));
+        }
+        logger.info("Prepared {} sessions for {} users", sessions.size(), Math.min(sessionCount, userIds.size()));
+        return sessions;
+    }
+    
+    private Long createConversation(Long userId, Long partnerId) {
+        JsonNode conversation = restTemplate.postForObject(url + "/api/conversations",
+                Map.of("userId1", userId, "userId2", partnerId), JsonNode.class);
+        return conversation.path("id").asLong();
+    }
+    
+    private List<LoadSession> connect(WebSocketStompClient client, List<LoadSession> sessions, LoadTestReport report) {
+        String endpoint = "native".equals(transport)
+                ? url.replaceFirst("^http", "ws") + "/stomp?userId={userId}"
+                : url + "/ws?userId={userId}";
+        
+        List<CompletableFuture<StompSession>> pending = new ArrayList<>();
+        for (LoadSession session : sessions) {
+            pending.add(client.connect(endpoint, session, session.getUserId()).completable());
+        }
+        
+        List<LoadSession> connected = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(connectTimeoutSeconds);
+        for (int i = 0; i < sessions.size(); i++) {
+            try {
+                pending.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                connected.add(sessions.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                report.error("connect");
+            }
+        }
+        logger.info("Connected {} of {} sessions through {}", connected.size(), sessions.size(), endpoint);
+        return connected;
+    }
+    
+    private WebSocketStompClient stompClient() {
+        WebSocketClient webSocketClient = new StandardWebSocketClient();
+        if (!"native".equals(transport)) {
+            webSocketClient = new SockJsClient(List.of(new WebSocketTransport(webSocketClient)));
+        }
+        WebSocketStompClient client = new WebSocketStompClient(webSocketClient);
+        client.setMessageConverter(new MappingJackson2MessageConverter());
+        
+        ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setThreadNamePrefix("loadtest-stomp-");
+        taskScheduler.initialize();
+        client.setTaskScheduler(taskScheduler);
+        return client;
+    }
+}
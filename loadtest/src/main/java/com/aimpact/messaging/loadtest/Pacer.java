@@ -0,0 +1,52 @@
+package com.aimpact.messaging.loadtest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Issues sends at a fixed rate. Each send is handed the time it was due, and
+ * runs on the sender pool so a slow write never delays the schedule itself.
+ */
+public class Pacer {
+    
+    private static final long TICK_MICROS = 1000;
+    
+    private final double rate;
+    
+    private final LongConsumer send;
+    
+    private ScheduledFuture<?> ticks;
+    
+    private long startedAt;
+    
+    private long issued;
+    
+    public Pacer(double rate, LongConsumer send) {
+        this.rate = rate;
+        this.send = send;
+    }
+    
+    public void start(ScheduledExecutorService scheduler, ExecutorService senders) {
+        if (rate <= 0) {
+            return;
+        }
+        startedAt = System.nanoTime();
+        ticks = scheduler.scheduleAtFixedRate(() -> {
+            // Send k is due at k / rate, so the first one goes out immediately
+            long due = (long) ((System.nanoTime() - startedAt) * rate / TimeUnit.SECONDS.toNanos(1)) + 1;
+            for (; issued < due; issued++) {
+                long scheduledAt = startedAt + (long) (issued * TimeUnit.SECONDS.toNanos(1) / rate);
+                senders.execute(() -> send.accept(scheduledAt));
+            }
+        }, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+    }
+    
+    public void stop() {
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+    }
+}
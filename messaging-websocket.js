@@ -14,6 +14,16 @@ document.addEventListener('DOMContentLoaded', function() {
 
 // Global variables
 let currentConversation = null;
+let typingTimeout = null;
+
+// While the input is busy our typing state is sent again this often, so the other side can expire stale indicators
+const TYPING_REFRESH_MS = 2000;
+const TYPING_TTL_MS = 5000;
+let typingSentAt = 0;
+let typingExpiry = null;
+
+// Online users by id, from the presence snapshot and the deltas applied to it; null until loaded
+let presenceStatuses = null;
 
 // Initialize messaging system
 function initializeMessaging() {
@@ -122,6 +132,7 @@ function createMessagingPanel() {
             sendMessage();
         }
     });
+    panel.querySelector('#message-input').addEventListener('input', notifyTyping);
     
     // Add search functionality
     panel.querySelector('#user-search').addEventListener('input', function() {
@@ -193,6 +204,9 @@ function updateConversationsList(conversations) {
                 const conversationItem = document.createElement('div');
                 conversationItem.className = 'conversation-item';
                 conversationItem.dataset.id = conversation.id;
+                if (conversation.otherParticipant) {
+                    conversationItem.dataset.userId = conversation.otherParticipant.id;
+                }
                 
                 // Add active class if this is the current conversation
                 if (currentConversation && currentConversation.id === conversation.id) {
@@ -215,7 +229,7 @@ function updateConversationsList(conversations) {
                     : 'No messages yet';
                 
                 // Online status indicator
-                const onlineStatus = otherParticipant.isOnline 
+                const onlineStatus = isUserOnline(otherParticipant)
                     ? '<span class="online-indicator"></span>'
                     : '';
                 
@@ -244,8 +258,8 @@ function updateConversationsList(conversations) {
         }
     }
     
-    // Update message badge
-    updateMessageBadge();
+    // Update message badge from the list just shown
+    updateMessageBadge(conversations.reduce((total, conversation) => total + conversation.unreadCount, 0));
 }
 
 // Filter conversations
@@ -333,7 +347,7 @@ function updateConversationHeader(conversation) {
             }
             
             if (userStatus) {
-                if (otherParticipant.isOnline) {
+                if (isUserOnline(otherParticipant)) {
                     userStatus.innerHTML = '<span class="status-indicator online"></span> Online';
                 } else if (otherParticipant.lastActive) {
                     const lastActive = new Date(otherParticipant.lastActive);
@@ -380,7 +394,7 @@ function updateMessagesContainer(messages) {
                     const currentUser = API.auth.getCurrentUser();
                     const isCurrentUser = message.senderId === currentUser.id;
                     
-                    messageItem.className = `message-item ${isCurrentUser ? 'sent' : 'received'}`;
+                    messageItem.className = `message-item ${isCurrentUser ? 'sent' : 'received'}${isCurrentUser && message.read ? ' read' : ''}`;
                     messageItem.dataset.id = message.id;
                     
                     messageItem.innerHTML = `
@@ -423,15 +437,13 @@ function sendMessage() {
         
         // Clear input
         messageInput.value = '';
+        stopTyping();
         
         // Send message
         API.messaging.sendMessage(currentConversation.id, { text: messageText })
             .then(message => {
-                // Add message to UI
+                // Add message to UI; the inbox update moves the conversation's last message
                 addMessageToUI(message);
-                
-                // Refresh conversations list to update last message
-                loadConversations();
             })
             .catch(error => {
                 console.error('Error sending message:', error);
@@ -445,6 +457,66 @@ function sendMessage() {
     }
 }
 
+// Tell the other participant we are typing, until the input has been idle for a few seconds
+function notifyTyping() {
+    if (!currentConversation) return;
+    
+    if (!typingTimeout || Date.now() - typingSentAt >= TYPING_REFRESH_MS) {
+        WebSocketAPI.sendTyping(currentConversation.id, true);
+        typingSentAt = Date.now();
+    }
+    clearTimeout(typingTimeout);
+    typingTimeout = setTimeout(stopTyping, 3000);
+}
+
+// Clear our typing indicator
+function stopTyping() {
+    if (!typingTimeout) return;
+    
+    clearTimeout(typingTimeout);
+    typingTimeout = null;
+    if (currentConversation) {
+        WebSocketAPI.sendTyping(currentConversation.id, false);
+    }
+}
+
+// Show whether the other participant of the open conversation is typing, and how far they have read
+document.addEventListener('conversation-activity', function(event) {
+    const activity = event.detail;
+    if (!currentConversation || currentConversation.id !== activity.conversationId) return;
+    
+    const typing = Object.values(activity.typing).some(value => value);
+    const userStatus = document.querySelector('.conversation-header .user-status');
+    if (typing && userStatus) {
+        userStatus.innerHTML = '<span class="status-indicator online"></span> Typing...';
+        
+        // Cleared if no refresh arrives, e.g. when the typing=false frame was lost
+        clearTimeout(typingExpiry);
+        typingExpiry = setTimeout(clearTypingIndicator, TYPING_TTL_MS);
+    } else if (Object.keys(activity.typing).length > 0) {
+        clearTypingIndicator();
+    }
+    
+    Object.values(activity.readUpTo).forEach(markReadUpTo);
+});
+
+function clearTypingIndicator() {
+    clearTimeout(typingExpiry);
+    typingExpiry = null;
+    if (currentConversation) {
+        updateConversationHeader(currentConversation);
+    }
+}
+
+// Mark our messages up to the given id as read by the other participant
+function markReadUpTo(messageId) {
+    document.querySelectorAll('.messages .message-item.sent:not(.read)').forEach(item => {
+        if (Number(item.dataset.id) <= messageId) {
+            item.classList.add('read');
+        }
+    });
+}
+
 // Add message to UI
 function addMessageToUI(message) {
     const messagesContainer = document.querySelector('.messages');
@@ -472,7 +544,7 @@ function addMessageToUI(message) {
         const currentUser = API.auth.getCurrentUser();
         const isCurrentUser = message.senderId === currentUser.id;
         
-        messageItem.className = `message-item ${isCurrentUser ? 'sent' : 'received'}`;
+        messageItem.className = `message-item ${isCurrentUser ? 'sent' : 'received'}${isCurrentUser && message.read ? ' read' : ''}`;
         messageItem.dataset.id = message.id;
         
         messageItem.innerHTML = `
@@ -489,6 +561,37 @@ function addMessageToUI(message) {
     }
 }
 
+// The websocket client loads the presence snapshot on connect and applies /topic/presence deltas to it
+document.addEventListener('presence-changed', function(event) {
+    applyPresence(event.detail.statuses);
+});
+
+// Update the online indicators in place from a new presence view
+function applyPresence(statuses) {
+    presenceStatuses = statuses;
+    
+    document.querySelectorAll('.conversation-item[data-user-id]').forEach(item => {
+        const avatar = item.querySelector('.conversation-avatar');
+        const indicator = avatar.querySelector('.online-indicator');
+        const online = isUserOnline({ id: item.dataset.userId });
+        
+        if (online && !indicator) {
+            avatar.insertAdjacentHTML('beforeend', '<span class="online-indicator"></span>');
+        } else if (!online && indicator) {
+            indicator.remove();
+        }
+    });
+    
+    if (currentConversation) {
+        updateConversationHeader(currentConversation);
+    }
+}
+
+// Presence view when loaded, otherwise the status the user was fetched with
+function isUserOnline(user) {
+    return presenceStatuses ? presenceStatuses[user.id] !== undefined : !!(user.online || user.isOnline);
+}
+
 // Show new message modal
 function showNewMessageModal() {
     // Create modal if it doesn't exist
@@ -503,7 +606,7 @@ function showNewMessageModal() {
     }
     
     // Get users
-    API.users.getAll()
+    API.users.getAll(true)
         .then(users => {
             // Filter out current user
             const currentUser = API.auth.getCurrentUser();
@@ -525,7 +628,7 @@ function showNewMessageModal() {
                                 <div class="user-item" data-id="${user.id}">
                                     <div class="user-avatar">
                                         <img src="${user.avatar}" alt="${user.name}">
-                                        ${user.isOnline ? '<span class="online-indicator"></span>' : ''}
+                                        ${isUserOnline(user) ? '<span class="online-indicator"></span>' : ''}
                                     </div>
                                     <div class="user-details">
                                         <h4 class="user-name">${user.name}</h4>
@@ -622,34 +725,37 @@ function startConversation(userId) {
         });
 }
 
-// Update message badge
-function updateMessageBadge() {
+// Update message badge, fetching the conversations when no count is given
+function updateMessageBadge(count) {
     const currentUser = API.auth.getCurrentUser();
     if (!currentUser) return;
     
-    API.messaging.getConversations()
-        .then(conversations => {
-            // Count total unread messages
-            const unreadCount = conversations.reduce((total, conversation) => {
-                return total + conversation.unreadCount;
-            }, 0);
-            
-            // Update badge
-            const badge = document.querySelector('.messaging-btn .message-badge');
-            
-            if (badge) {
-                badge.textContent = unreadCount;
-                
-                if (unreadCount > 0) {
-                    badge.style.display = 'flex';
-                } else {
-                    badge.style.display = 'none';
-                }
-            }
-        })
-        .catch(error => {
-            console.error('Error updating message badge:', error);
-        });
+    if (count === undefined) {
+        API.messaging.getConversations()
+            .then(conversations => {
+                // Count total unread messages
+                updateMessageBadge(conversations.reduce((total, conversation) => {
+                    return total + conversation.unreadCount;
+                }, 0));
+            })
+            .catch(error => {
+                console.error('Error updating message badge:', error);
+            });
+        return;
+    }
+    
+    // Update badge
+    const badge = document.querySelector('.messaging-btn .message-badge');
+    
+    if (badge) {
+        badge.textContent = count;
+        
+        if (count > 0) {
+            badge.style.display = 'flex';
+        } else {
+            badge.style.display = 'none';
+        }
+    }
 }
 
 // Set up activity tracking
@@ -1203,6 +1309,10 @@ function addMessagingStyles() {
             opacity: 0.8;
         }
         
+        .message-item.sent.read .message-time::after {
+            content: ' \\2713\\2713';
+        }
+        
         .message-input-container {
             display: flex;
             padding: var(--spacing-md);
@@ -14,7 +14,9 @@ document.addEventListener('DOMContentLoaded', function() {
 // Global variables
 let currentConversation = null;
 let messagePollingInterval = null;
-let onlineUsersPollingInterval = null;
+
+// Online users by id, from the presence snapshot and the deltas applied to it; null until loaded
+let presenceStatuses = null;
 
 // Initialize messaging system
 function initializeMessaging() {
@@ -31,8 +33,12 @@ function initializeMessaging() {
     // Load conversations
     loadConversations();
     
-    // Start polling for online users
-    startOnlineUsersPolling();
+    // Mark this user active, then follow everyone else's presence
+    API.auth.updateActiveStatus();
+    loadPresence();
+    document.addEventListener('presence-changed', function(e) {
+        applyPresence(e.detail.statuses);
+    });
     
     // Add message badge to user dropdown
     updateMessageBadge();
@@ -200,6 +206,9 @@ function updateConversationsList(conversations) {
                 const conversationItem = document.createElement('div');
                 conversationItem.className = 'conversation-item';
                 conversationItem.dataset.id = conversation.id;
+                if (conversation.otherParticipant) {
+                    conversationItem.dataset.userId = conversation.otherParticipant.id;
+                }
                 
                 // Add active class if this is the current conversation
                 if (currentConversation && currentConversation.id === conversation.id) {
@@ -222,7 +231,7 @@ function updateConversationsList(conversations) {
                     : 'No messages yet';
                 
                 // Online status indicator
-                const onlineStatus = otherParticipant.isOnline 
+                const onlineStatus = isUserOnline(otherParticipant)
                     ? '<span class="online-indicator"></span>'
                     : '';
                 
@@ -343,7 +352,7 @@ function updateConversationHeader(conversation) {
             }
             
             if (userStatus) {
-                if (otherParticipant.isOnline) {
+                if (isUserOnline(otherParticipant)) {
                     userStatus.innerHTML = '<span class="status-indicator online"></span> Online';
                 } else if (otherParticipant.lastActive) {
                     const lastActive = new Date(otherParticipant.lastActive);
@@ -535,43 +544,41 @@ function stopMessagePolling() {
     }
 }
 
-// Start polling for online users
-function startOnlineUsersPolling() {
-    // Stop any existing polling
-    if (onlineUsersPollingInterval) {
-        clearInterval(onlineUsersPollingInterval);
-    }
-    
-    // Update user's active status
-    API.auth.updateActiveStatus();
+// Load the presence snapshot; later changes arrive as presence-changed events
+function loadPresence() {
+    API.users.getPresence()
+        .then(snapshot => {
+            applyPresence(snapshot.statuses);
+        })
+        .catch(error => {
+            console.error('Error loading presence:', error);
+        });
+}
+
+// Update the online indicators in place from a new presence view
+function applyPresence(statuses) {
+    presenceStatuses = statuses;
     
-    // Start new polling
-    onlineUsersPollingInterval = setInterval(() => {
-        // Update user's active status
-        API.auth.updateActiveStatus();
+    document.querySelectorAll('.conversation-item[data-user-id]').forEach(item => {
+        const avatar = item.querySelector('.conversation-avatar');
+        const indicator = avatar.querySelector('.online-indicator');
+        const online = isUserOnline({ id: item.dataset.userId });
         
-        // If conversation is open, update online status
-        if (currentConversation) {
-            API.messaging.getConversations()
-                .then(conversations => {
-                    const updatedConversation = conversations.find(c => c.id === currentConversation.id);
-                    
-                    if (updatedConversation) {
-                        // Update conversation header if online status changed
-                        if (updatedConversation.otherParticipant.isOnline !== currentConversation.otherParticipant.isOnline) {
-                            currentConversation = updatedConversation;
-                            updateConversationHeader(currentConversation);
-                        }
-                    }
-                })
-                .catch(error => {
-                    console.error('Error updating online status:', error);
-                });
+        if (online && !indicator) {
+            avatar.insertAdjacentHTML('beforeend', '<span class="online-indicator"></span>');
+        } else if (!online && indicator) {
+            indicator.remove();
         }
-        
-        // Update conversations list to refresh online indicators
-        loadConversations();
-    }, 30000); // Poll every 30 seconds
+    });
+    
+    if (currentConversation) {
+        updateConversationHeader(currentConversation);
+    }
+}
+
+// Presence view when loaded, otherwise the status the user was fetched with
+function isUserOnline(user) {
+    return presenceStatuses ? presenceStatuses[user.id] !== undefined : !!user.isOnline;
 }
 
 // Show new message modal
@@ -610,7 +617,7 @@ function showNewMessageModal() {
                                 <div class="user-item" data-id="${user.id}">
                                     <div class="user-avatar">
                                         <img src="${user.avatar}" alt="${user.name}">
-                                        ${user.isOnline ? '<span class="online-indicator"></span>' : ''}
+                                        ${isUserOnline(user) ? '<span class="online-indicator"></span>' : ''}
                                     </div>
                                     <div class="user-details">
                                         <h4 class="user-name">${user.name}</h4>
@@ -41,6 +41,7 @@ public class DataInitializer implements CommandLineRunner {
         user.setName(name);
         user.setRole(role);
         user.setAvatar("https://ui-avatars.com/api/?name=" + name.replace(" ", "+") + "&background=random");
+        user.setCreatedAt(LocalDateTime.now());
         user.setLastLogin(LocalDateTime.now());
         user.setLastActive(LocalDateTime.now());
         user.setOnline(false);
@@ -1,25 +1,141 @@
 package com.aimpact.messaging.config;
 
+import com.aimpact.messaging.websocket.FanOutCounter;
 import com.aimpact.messaging.websocket.HttpHandshakeInterceptor;
+import com.aimpact.messaging.websocket.SessionOrderedTaskExecutor;
+import com.aimpact.messaging.websocket.SessionTrafficRecorder;
+import com.aimpact.messaging.websocket.SlowConsumerGuard;
+import com.aimpact.messaging.websocket.UserEventBuffer;
+import com.aimpact.messaging.websocket.UserHandshakeHandler;
+import com.aimpact.messaging.websocket.WireFormatNegotiator;
+import com.aimpact.messaging.websocket.WirePayloadMessageConverter;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import java.util.List;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
-
+    
+    // Set by Artemis on every frame it delivers
+    private static final String RELAY_ROUTING_HEADER = "destination-type";
+    
     @Autowired
     private HttpHandshakeInterceptor handshakeInterceptor;
-
+    
+    @Autowired
+    private UserHandshakeHandler handshakeHandler;
+    
+    @Autowired
+    private SlowConsumerGuard slowConsumerGuard;
+    
+    @Autowired
+    private FanOutCounter fanOutCounter;
+    
+    @Autowired
+    private SessionTrafficRecorder sessionTrafficRecorder;
+    
+    @Autowired
+    private UserEventBuffer userEventBuffer;
+    
+    @Autowired
+    private WireFormatNegotiator wireFormatNegotiator;
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    // simple keeps everything in this JVM; relay forwards to an external STOMP broker shared by all nodes
+    @Value("${messaging.broker.mode:simple}")
+    private String brokerMode;
+    
+    @Value("${messaging.broker.relay.host:localhost}")
+    private String relayHost;
+    
+    @Value("${messaging.broker.relay.port:61613}")
+    private int relayPort;
+    
+    @Value("${messaging.broker.relay.client-login:guest}")
+    private String relayClientLogin;
+    
+    @Value("${messaging.broker.relay.client-passcode:guest}")
+    private String relayClientPasscode;
+    
+    @Value("${messaging.broker.relay.system-login:guest}")
+    private String relaySystemLogin;
+    
+    @Value("${messaging.broker.relay.system-passcode:guest}")
+    private String relaySystemPasscode;
+    
+    @Value("${messaging.websocket.send-time-limit-ms:10000}")
+    private int sendTimeLimit;
+    
+    @Value("${messaging.websocket.send-buffer-size-limit:262144}")
+    private int sendBufferSizeLimit;
+    
+    @Value("${messaging.websocket.message-size-limit:65536}")
+    private int messageSizeLimit;
+    
+    // default keeps Spring's channel pools; tuned and virtual use a per-session ordered executor
+    @Value("${messaging.websocket.executor.mode:default}")
+    private String executorMode;
+    
+    @Value("${messaging.websocket.executor.pool-size:32}")
+    private int poolSize;
+    
+    @Value("${messaging.websocket.executor.queue-capacity:10000}")
+    private int queueCapacity;
+    
+    @Value("${messaging.websocket.executor.session-queue-capacity:3000}")
+    private int sessionQueueCapacity;
+    
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        // Enable a simple memory-based message broker to send messages to clients
         // Prefix for messages FROM the server TO the client
-        config.enableSimpleBroker("/topic", "/queue", "/user");
+        if ("relay".equals(brokerMode)) {
+            // Nodes share the external broker; user destinations that no local session
+            // owns, and each node's user registry, are broadcast to the other nodes
+            config.enableStompBrokerRelay("/topic", "/queue")
+                    .setRelayHost(relayHost)
+                    .setRelayPort(relayPort)
+                    .setClientLogin(relayClientLogin)
+                    .setClientPasscode(relayClientPasscode)
+                    .setSystemLogin(relaySystemLogin)
+                    .setSystemPasscode(relaySystemPasscode)
+                    .setUserDestinationBroadcast("/topic/unresolved-user-destination")
+                    .setUserRegistryBroadcast("/topic/simp-user-registry");
+            // Messages resolved from another node's broadcast keep the topic's routing type, which would send /queue destinations multicast
+            config.configureBrokerChannel().interceptors(new ChannelInterceptor() {
+                @Override
+                public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                    MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(message);
+                    if (!(accessor instanceof NativeMessageHeaderAccessor)
+                            || ((NativeMessageHeaderAccessor) accessor).getFirstNativeHeader(RELAY_ROUTING_HEADER) == null) {
+                        return message;
+                    }
+                    ((NativeMessageHeaderAccessor) accessor).removeNativeHeader(RELAY_ROUTING_HEADER);
+                    return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+                }
+            });
+        } else {
+            // Enable a simple memory-based message broker to send messages to clients
+            config.enableSimpleBroker("/topic", "/queue");
+        }
         
         // Prefix for messages FROM the client TO the server
         config.setApplicationDestinationPrefixes("/app");
@@ -27,13 +143,70 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         // Enable user-specific messages
         config.setUserDestinationPrefix("/user");
     }
-
+    
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         // Register the "/ws" endpoint, enabling SockJS fallback options
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*") // For development - restrict in production
+                .setHandshakeHandler(handshakeHandler)
                 .addInterceptors(handshakeInterceptor)
                 .withSockJS();
+        
+        // Native WebSocket endpoint for clients that do not need the SockJS fallback; only it can negotiate CBOR
+        registry.addEndpoint("/stomp")
+                .setAllowedOriginPatterns("*") // For development - restrict in production
+                .setHandshakeHandler(handshakeHandler)
+                .addInterceptors(handshakeInterceptor, wireFormatNegotiator);
+    }
+    
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // Transport-level caps; SlowConsumerGuard budgets what is queued ahead of them
+        registration.setSendTimeLimit(sendTimeLimit)
+                .setSendBufferSizeLimit(sendBufferSizeLimit)
+                .setMessageSizeLimit(messageSizeLimit)
+                .addDecoratorFactory(slowConsumerGuard)
+                .addDecoratorFactory(sessionTrafficRecorder);
+    }
+    
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Ahead of the JSON converter Spring Boot registers; frames crossing the relay's external broker are encoded up front
+        messageConverters.add(0, new WirePayloadMessageConverter(objectMapper, wireFormatNegotiator.getCborMapper(),
+                !"relay".equals(brokerMode)));
+        return false;
+    }
+    
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        // Picks up wire format requests and resume requests, and replays once user-queue subscriptions are registered
+        registration.interceptors(wireFormatNegotiator, userEventBuffer);
+        if (!"default".equals(executorMode)) {
+            registration.taskExecutor(channelExecutor());
+        }
+    }
+    
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        // Encode for the session first so budgets see the bytes that actually go out; frames the guard sheds are not counted as delivered
+        registration.interceptors(wireFormatNegotiator, slowConsumerGuard, fanOutCounter);
+        if (!"default".equals(executorMode)) {
+            registration.taskExecutor(channelExecutor());
+        }
+    }
+    
+    private SessionOrderedTaskExecutor channelExecutor() {
+        SessionOrderedTaskExecutor executor = new SessionOrderedTaskExecutor(executorMode, sessionQueueCapacity);
+        if ("virtual".equals(executor.getMode())) {
+            // Drains run on virtual threads; the pool underneath is left idle
+            executor.setCorePoolSize(1);
+            executor.setMaxPoolSize(1);
+        } else {
+            executor.setCorePoolSize(poolSize);
+            executor.setMaxPoolSize(poolSize);
+            executor.setQueueCapacity(queueCapacity);
+        }
+        return executor;
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,11 @@
 package com.aimpact.messaging.controller;
 
 import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.dto.ConversationPageDTO;
 import com.aimpact.messaging.service.ConversationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -11,20 +14,52 @@ import java.util.Map;
 
 @RestController
 @RequestMapping("/api/conversations")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = HttpHeaders.ETAG)
 public class ConversationController {
     
     @Autowired
     private ConversationService conversationService;
     
+    // The ETag is the list's change version; pass it back as since= to get only what changed after it
     @GetMapping
-    public ResponseEntity<List<ConversationDTO>> getConversationsForUser(@RequestParam Long userId) {
-        return ResponseEntity.ok(conversationService.getConversationsForUser(userId));
+    public ResponseEntity<List<ConversationDTO>> getConversationsForUser(
+            @RequestParam Long userId,
+            @RequestParam(required = false) Long since,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        long version = conversationService.getConversationsVersion(userId);
+        String eTag = "\"" + version + "\"";
+        if ((since != null && version <= since) || eTag.equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        
+        List<ConversationDTO> conversations = since != null
+                ? conversationService.getConversationChangesForUser(userId, since)
+                : conversationService.getConversationsForUser(userId);
+        return ResponseEntity.ok().eTag(eTag).body(conversations);
     }
     
     @GetMapping("/all")
-    public ResponseEntity<List<ConversationDTO>> getAllConversations() {
-        return ResponseEntity.ok(conversationService.getAllConversations());
+    public ResponseEntity<ConversationPageDTO> getAllConversations(
+            @RequestParam(required = false) Long participantId,
+            @RequestParam(required = false) String role,
+            @RequestParam(defaultValue = "lastMessageAt") String sort,
+            @RequestParam(defaultValue = "desc") String direction,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size) {
+        ConversationPageDTO conversations = conversationService.getAllConversations(participantId, role, sort, direction, page, size);
+        if (conversations == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(conversations);
+    }
+    
+    @GetMapping("/{conversationId}")
+    public ResponseEntity<ConversationDTO> getConversation(@PathVariable Long conversationId) {
+        ConversationDTO conversation = conversationService.getConversation(conversationId);
+        if (conversation == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(conversation);
     }
     
     @PostMapping
@@ -1,13 +1,11 @@
 package com.aimpact.messaging.controller;
 
-import com.aimpact.messaging.dto.MessageDTO;
+import com.aimpact.messaging.dto.MessagePageDTO;
 import com.aimpact.messaging.service.MessageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
-
 @RestController
 @RequestMapping("/api/messages")
 @CrossOrigin(origins = "*")
@@ -17,10 +15,28 @@ public class MessageController {
     private MessageService messageService;
     
     @GetMapping("/conversation/{conversationId}")
-    public ResponseEntity<List<MessageDTO>> getMessagesForConversation(
+    public ResponseEntity<MessagePageDTO> getMessagesForConversation(
             @PathVariable Long conversationId,
-            @RequestParam Long userId) {
-        return ResponseEntity.ok(messageService.getMessagesForConversation(conversationId, userId));
+            @RequestParam Long userId,
+            @RequestParam(required = false) Long before,
+            @RequestParam(required = false) Long after,
+            @RequestParam(defaultValue = "50") int size) {
+        if (before != null && after != null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(messageService.getMessagesForConversation(conversationId, userId, before, after, size));
+    }
+    
+    @GetMapping("/search")
+    public ResponseEntity<MessagePageDTO> searchMessages(
+            @RequestParam Long userId,
+            @RequestParam String q,
+            @RequestParam(required = false) Long before,
+            @RequestParam(defaultValue = "20") int size) {
+        if (q.isBlank()) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(messageService.searchMessages(userId, q, before, size));
     }
     
     @GetMapping("/unread/count")
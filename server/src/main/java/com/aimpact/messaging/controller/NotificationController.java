@@ -3,6 +3,8 @@ package com.aimpact.messaging.controller;
 import com.aimpact.messaging.dto.NotificationDTO;
 import com.aimpact.messaging.service.NotificationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -10,15 +12,28 @@ import java.util.List;
 
 @RestController
 @RequestMapping("/api/notifications")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = HttpHeaders.ETAG)
 public class NotificationController {
     
     @Autowired
     private NotificationService notificationService;
     
+    // The ETag is the list's change version; pass it back as since= to get only what changed after it
     @GetMapping
-    public ResponseEntity<List<NotificationDTO>> getNotificationsForUser(@RequestParam Long userId) {
-        return ResponseEntity.ok(notificationService.getNotificationsForUser(userId));
+    public ResponseEntity<List<NotificationDTO>> getNotificationsForUser(
+            @RequestParam Long userId,
+            @RequestParam(required = false) Long since,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        long version = notificationService.getNotificationsVersion(userId);
+        String eTag = "\"" + version + "\"";
+        if ((since != null && version <= since) || eTag.equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        
+        List<NotificationDTO> notifications = since != null
+                ? notificationService.getNotificationChangesForUser(userId, since)
+                : notificationService.getNotificationsForUser(userId);
+        return ResponseEntity.ok().eTag(eTag).body(notifications);
     }
     
     @GetMapping("/unread")
@@ -41,4 +56,15 @@ public class NotificationController {
         }
         return ResponseEntity.ok(notification);
     }
+    
+    @PostMapping("/broadcast/{id}/read")
+    public ResponseEntity<NotificationDTO> markBroadcastAsRead(
+            @PathVariable Long id,
+            @RequestParam Long userId) {
+        NotificationDTO notification = notificationService.markBroadcastAsRead(id, userId);
+        if (notification == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(notification);
+    }
 }
\ No newline at end of file
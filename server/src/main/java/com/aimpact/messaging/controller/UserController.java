@@ -1,7 +1,9 @@
 package com.aimpact.messaging.controller;
 
+import com.aimpact.messaging.dto.PresenceSnapshotDTO;
 import com.aimpact.messaging.dto.UserDTO;
 import com.aimpact.messaging.service.UserService;
+import com.aimpact.messaging.websocket.PresenceBroadcaster;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -17,9 +19,12 @@ public class UserController {
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private PresenceBroadcaster presenceBroadcaster;
+    
     @GetMapping
-    public ResponseEntity<List<UserDTO>> getAllUsers() {
-        return ResponseEntity.ok(userService.getAllUsers());
+    public ResponseEntity<List<UserDTO>> getAllUsers(@RequestParam(defaultValue = "false") boolean slim) {
+        return ResponseEntity.ok(userService.getAllUsers(slim));
     }
     
     @GetMapping("/{id}")
@@ -31,9 +36,14 @@ public class UserController {
         return ResponseEntity.ok(user);
     }
     
+    @GetMapping("/presence")
+    public ResponseEntity<PresenceSnapshotDTO> getPresenceSnapshot() {
+        return ResponseEntity.ok(presenceBroadcaster.snapshot());
+    }
+    
     @GetMapping("/online")
-    public ResponseEntity<List<UserDTO>> getOnlineUsers() {
-        return ResponseEntity.ok(userService.getOnlineUsers());
+    public ResponseEntity<List<UserDTO>> getOnlineUsers(@RequestParam(defaultValue = "false") boolean slim) {
+        return ResponseEntity.ok(userService.getOnlineUsers(slim));
     }
     
     @PostMapping("/login")
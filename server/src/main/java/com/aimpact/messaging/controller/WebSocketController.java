@@ -1,10 +1,12 @@
 package com.aimpact.messaging.controller;
 
-import com.aimpact.messaging.dto.MessageDTO;
 import com.aimpact.messaging.service.MessageService;
 import com.aimpact.messaging.service.NotificationService;
 import com.aimpact.messaging.websocket.ChatMessage;
+import com.aimpact.messaging.websocket.ConversationActivityPublisher;
 import com.aimpact.messaging.websocket.NotificationMessage;
+import com.aimpact.messaging.websocket.ReadReceiptMessage;
+import com.aimpact.messaging.websocket.TypingMessage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
@@ -22,12 +24,16 @@ public class WebSocketController {
     @Autowired
     private NotificationService notificationService;
     
+    @Autowired
+    private ConversationActivityPublisher activityPublisher;
+    
     @MessageMapping("/chat.sendMessage")
-    public MessageDTO sendMessage(@Payload ChatMessage chatMessage, SimpMessageHeaderAccessor headerAccessor) {
+    public void sendMessage(@Payload ChatMessage chatMessage, SimpMessageHeaderAccessor headerAccessor) {
         // Get user ID from session attributes
         Long userId = (Long) headerAccessor.getSessionAttributes().get("userId");
         
-        return messageService.sendMessage(chatMessage, userId);
+        // The sender's copy comes back on /user/queue/sent, or an error on /user/queue/errors
+        messageService.sendMessage(chatMessage, userId);
     }
     
     @MessageMapping("/notification.send")
@@ -45,4 +51,21 @@ public class WebSocketController {
         
         notificationService.sendNotificationToAll(notificationMessage, userId);
     }
+    
+    // Typing indicators and read receipts are ephemeral: coalesced and pushed, never persisted
+    @MessageMapping("/conversation.typing")
+    public void typing(@Payload TypingMessage typingMessage, SimpMessageHeaderAccessor headerAccessor) {
+        // Get user ID from session attributes
+        Long userId = (Long) headerAccessor.getSessionAttributes().get("userId");
+        
+        activityPublisher.typing(typingMessage, userId, headerAccessor.getSessionId());
+    }
+    
+    @MessageMapping("/conversation.read")
+    public void read(@Payload ReadReceiptMessage readReceiptMessage, SimpMessageHeaderAccessor headerAccessor) {
+        // Get user ID from session attributes
+        Long userId = (Long) headerAccessor.getSessionAttributes().get("userId");
+        
+        activityPublisher.read(readReceiptMessage, userId);
+    }
 }
\ No newline at end of file
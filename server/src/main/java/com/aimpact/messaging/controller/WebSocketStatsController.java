@@ -0,0 +1,33 @@
+package com.aimpact.messaging.controller;
+
+import com.aimpact.messaging.dto.SessionTrafficDTO;
+import com.aimpact.messaging.dto.WebSocketStatsDTO;
+import com.aimpact.messaging.service.WebSocketStatsService;
+import com.aimpact.messaging.websocket.SessionTrafficRecorder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/websocket")
+@CrossOrigin(origins = "*")
+public class WebSocketStatsController {
+    
+    @Autowired
+    private WebSocketStatsService webSocketStatsService;
+    
+    @Autowired
+    private SessionTrafficRecorder sessionTrafficRecorder;
+    
+    @GetMapping("/stats")
+    public ResponseEntity<WebSocketStatsDTO> getStats() {
+        return ResponseEntity.ok(webSocketStatsService.getStats());
+    }
+    
+    @GetMapping("/sessions")
+    public ResponseEntity<List<SessionTrafficDTO>> getSessions() {
+        return ResponseEntity.ok(sessionTrafficRecorder.getSessions());
+    }
+}
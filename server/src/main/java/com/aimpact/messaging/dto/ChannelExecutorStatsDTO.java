@@ -0,0 +1,20 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+@Data
+public class ChannelExecutorStatsDTO {
+    private String mode;
+    private int activeCount;
+    // Pool fields stay null in virtual mode, which has no pool to saturate
+    private Integer poolSize;
+    private Integer maxPoolSize;
+    private int queueDepth;
+    private Integer queueCapacity;
+    private Double saturation;
+    private Integer sessionQueues;
+    private Long completedTaskCount;
+    private Long rejectedTaskCount;
+    // Internal: a drain yielding its worker was refused and kept running instead; no message was lost
+    private Long redispatchRejectedCount;
+}
@@ -0,0 +1,17 @@
+package com.aimpact.messaging.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+// Pushed on /user/queue/ephemeral: the other participants' latest typing state and read position, by user id
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConversationActivityDTO {
+    private Long conversationId;
+    private Map<Long, Boolean> typing;
+    private Map<Long, Long> readUpTo;
+}
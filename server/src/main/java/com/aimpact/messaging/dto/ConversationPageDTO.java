@@ -0,0 +1,14 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ConversationPageDTO {
+    private List<ConversationDTO> conversations;
+    private int page;
+    private int size;
+    private long totalElements;
+    private int totalPages;
+}
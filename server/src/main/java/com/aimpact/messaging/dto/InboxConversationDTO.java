@@ -0,0 +1,11 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+@Data
+public class InboxConversationDTO {
+    private Long conversationId;
+    private int unreadCount;
+    // Null when only the unread count changed
+    private MessageDTO lastMessage;
+}
@@ -0,0 +1,13 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+// Pushed on /user/queue/inbox: badge totals plus the conversations that changed since the previous update
+@Data
+public class InboxUpdateDTO {
+    private int unreadMessages;
+    private int unreadNotifications;
+    private List<InboxConversationDTO> conversations;
+}
@@ -1,5 +1,6 @@
 package com.aimpact.messaging.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 import java.time.LocalDateTime;
@@ -13,4 +14,7 @@ public class MessageDTO {
     private String text;
     private LocalDateTime timestamp;
     private boolean read;
+    // Only set on the sender's own copy on /user/queue/sent
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String clientMessageId;
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.aimpact.messaging.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Sent to /user/queue/errors when a chat message could not be sent
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageErrorDTO {
+    private String clientMessageId;
+    private Long conversationId;
+    // not_found, overloaded or persist_failed
+    private String reason;
+}
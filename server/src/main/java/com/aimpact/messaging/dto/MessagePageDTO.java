@@ -0,0 +1,16 @@
+package com.aimpact.messaging.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class MessagePageDTO {
+    private List<MessageDTO> messages;
+    private Long nextCursor;
+    private boolean hasMore;
+    // Only set on search results: true when the index could not search everything
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean partial;
+}
@@ -12,4 +12,7 @@ public class NotificationDTO {
     private String type;
     private LocalDateTime timestamp;
     private boolean read;
+    // Broadcast ids are their own sequence; read them via /api/notifications/broadcast/{id}/read
+    private boolean broadcast;
+    private Long senderId;
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package com.aimpact.messaging.dto;
+
+import com.aimpact.messaging.service.PresenceService;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceDeltaDTO {
+    // Each delta moves the presence view from version - 1 to version
+    private long version;
+    private Map<Long, PresenceService.Status> changes;
+}
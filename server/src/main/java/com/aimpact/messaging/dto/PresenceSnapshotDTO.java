@@ -0,0 +1,17 @@
+package com.aimpact.messaging.dto;
+
+import com.aimpact.messaging.service.PresenceService;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceSnapshotDTO {
+    private long version;
+    // Users missing from the map are offline
+    private Map<Long, PresenceService.Status> statuses;
+}
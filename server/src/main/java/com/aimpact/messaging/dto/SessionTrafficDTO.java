@@ -0,0 +1,18 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+@Data
+public class SessionTrafficDTO {
+    private String sessionId;
+    private Long userId;
+    private String transport;
+    private String endpoint;
+    // Negotiated permessage-deflate extension, or null when frames go out uncompressed
+    private String compression;
+    private long framesSent;
+    private long bytesSent;
+    // Only reported when messaging.websocket.compression-stats is enabled
+    private Long estimatedCompressedBytes;
+    private Double compressionRatio;
+}
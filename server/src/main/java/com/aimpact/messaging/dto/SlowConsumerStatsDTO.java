@@ -0,0 +1,16 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+public class SlowConsumerStatsDTO {
+    private long maxPendingBytes;
+    private int maxPendingFrames;
+    private int sessions;
+    private long pendingBytes;
+    private int pendingFrames;
+    // Action (coalesced, dropped, disconnected) to destination prefix to frame count
+    private Map<String, Map<String, Long>> actions;
+}
@@ -1,5 +1,6 @@
 package com.aimpact.messaging.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 import java.time.LocalDateTime;
@@ -14,5 +15,7 @@ public class UserDTO {
     private LocalDateTime lastLogin;
     private LocalDateTime lastActive;
     private boolean isOnline;
-    private int unreadMessages;
+    // Left null, and omitted from JSON, in the slim profile view
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer unreadMessages;
 }
\ No newline at end of file
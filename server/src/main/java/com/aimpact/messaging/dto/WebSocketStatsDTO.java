@@ -0,0 +1,10 @@
+package com.aimpact.messaging.dto;
+
+import lombok.Data;
+
+@Data
+public class WebSocketStatsDTO {
+    private ChannelExecutorStatsDTO inbound;
+    private ChannelExecutorStatsDTO outbound;
+    private SlowConsumerStatsDTO slowConsumer;
+}
@@ -0,0 +1,40 @@
+package com.aimpact.messaging.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// A notification addressed to every user, stored once; see BroadcastReceipt for per-user read state
+@Entity
+@Table(name = "broadcast_notifications", indexes = {
+        @Index(name = "idx_broadcasts_timestamp", columnList = "timestamp"),
+        @Index(name = "idx_broadcasts_version", columnList = "change_version")
+})
+@Data
+@NoArgsConstructor
+public class BroadcastNotification {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne
+    @JoinColumn(name = "sender_id")
+    private User sender;
+    
+    @Column(nullable = false)
+    private String title;
+    
+    @Column(nullable = false, columnDefinition = "TEXT")
+    private String message;
+    
+    private String type;
+    
+    @Column(nullable = false)
+    private LocalDateTime timestamp;
+    
+    @Column(name = "change_version")
+    private Long changeVersion;
+}
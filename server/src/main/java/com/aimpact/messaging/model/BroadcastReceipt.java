@@ -0,0 +1,42 @@
+package com.aimpact.messaging.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// Created the first time a user reads a broadcast; no row means unread
+@Entity
+@Table(name = "broadcast_receipts",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"user_id", "broadcast_id"}))
+@Data
+@NoArgsConstructor
+public class BroadcastReceipt {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "broadcast_id", nullable = false)
+    private BroadcastNotification broadcast;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id", nullable = false)
+    private User user;
+    
+    @Column(nullable = false)
+    private LocalDateTime readAt;
+    
+    // The broadcast changed for this user when they read it
+    @Column(name = "change_version")
+    private Long changeVersion;
+    
+    public BroadcastReceipt(BroadcastNotification broadcast, User user, long changeVersion) {
+        this.broadcast = broadcast;
+        this.user = user;
+        this.readAt = LocalDateTime.now();
+        this.changeVersion = changeVersion;
+    }
+}
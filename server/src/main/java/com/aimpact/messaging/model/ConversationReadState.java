@@ -0,0 +1,48 @@
+package com.aimpact.messaging.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "conversation_read_states",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"conversation_id", "user_id"}),
+        indexes = @Index(name = "idx_read_states_user", columnList = "user_id"))
+@Data
+@NoArgsConstructor
+public class ConversationReadState {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne
+    @JoinColumn(name = "conversation_id", nullable = false)
+    private Conversation conversation;
+    
+    @ManyToOne
+    @JoinColumn(name = "user_id", nullable = false)
+    private User user;
+    
+    // The last message read, in the (timestamp, id) order of the history; null timestamp when none has been
+    private LocalDateTime lastReadTimestamp;
+    
+    @Column(nullable = false)
+    private long lastReadMessageId;
+    
+    public ConversationReadState(Conversation conversation, User user) {
+        this.conversation = conversation;
+        this.user = user;
+    }
+    
+    // Ids are not allocated in commit order across writers, so the watermark compares timestamps first
+    public boolean hasRead(LocalDateTime timestamp, long messageId) {
+        if (lastReadTimestamp == null) {
+            return false;
+        }
+        int byTime = timestamp.compareTo(lastReadTimestamp);
+        return byTime < 0 || (byTime == 0 && messageId <= lastReadMessageId);
+    }
+}
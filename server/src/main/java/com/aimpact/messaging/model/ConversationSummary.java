@@ -0,0 +1,61 @@
+package com.aimpact.messaging.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// One row per participant, kept up to date on every send and mark-read so
+// an inbox can be listed without touching the messages table. Unread counts
+// live in UnreadCounterService, not here
+@Entity
+@Table(name = "conversation_summaries",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"conversation_id", "user_id"}),
+        indexes = {
+                @Index(name = "idx_summaries_user_activity", columnList = "user_id, last_activity_at"),
+                @Index(name = "idx_summaries_user_version", columnList = "user_id, change_version")
+        })
+@Data
+@NoArgsConstructor
+public class ConversationSummary {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "conversation_id", nullable = false)
+    private Conversation conversation;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id", nullable = false)
+    private User user;
+    
+    private Long lastMessageId;
+    
+    private Long lastMessageSenderId;
+    
+    private Long lastMessageRecipientId;
+    
+    @Column(columnDefinition = "TEXT")
+    private String lastMessageText;
+    
+    private LocalDateTime lastMessageTimestamp;
+    
+    private boolean lastMessageRead;
+    
+    @Column(name = "last_activity_at", nullable = false)
+    private LocalDateTime lastActivityAt;
+    
+    // Stamped on every write so clients can fetch only the rows changed since their last sync
+    @Column(name = "change_version")
+    private Long changeVersion;
+    
+    public ConversationSummary(Conversation conversation, User user, long changeVersion) {
+        this.conversation = conversation;
+        this.user = user;
+        this.lastActivityAt = conversation.getCreatedAt();
+        this.changeVersion = changeVersion;
+    }
+}
@@ -2,18 +2,34 @@ package com.aimpact.messaging.model;
 
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "messages")
+@Table(name = "messages", indexes = {
+        @Index(name = "idx_messages_conversation_timestamp_id", columnList = "conversation_id, timestamp, id"),
+        @Index(name = "idx_messages_conversation_recipient_timestamp_id", columnList = "conversation_id, recipient_id, timestamp, id")
+})
 @Data
 @NoArgsConstructor
 public class Message {
     
+    public static final String ID_SEQUENCE = "message_id_seq";
+    
+    public static final int ID_BLOCK_SIZE = 50;
+    
+    // Ids come from a sequence in blocks (pooled-lo) so MessageIdAllocator can
+    // hand out ids ahead of the insert for write-behind persistence
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "message_id")
+    @GenericGenerator(name = "message_id", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = ID_SEQUENCE),
+            @Parameter(name = "increment_size", value = "" + ID_BLOCK_SIZE),
+            @Parameter(name = "optimizer", value = "pooled-lo")
+    })
     private Long id;
     
     @ManyToOne
@@ -33,6 +49,4 @@ public class Message {
     
     @Column(nullable = false)
     private LocalDateTime timestamp;
-    
-    private boolean read;
 }
\ No newline at end of file
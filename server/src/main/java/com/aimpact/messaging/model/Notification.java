@@ -7,7 +7,7 @@ import javax.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "notifications")
+@Table(name = "notifications", indexes = @Index(name = "idx_notifications_recipient_version", columnList = "recipient_id, change_version"))
 @Data
 @NoArgsConstructor
 public class Notification {
@@ -32,4 +32,8 @@ public class Notification {
     private LocalDateTime timestamp;
     
     private boolean read;
+    
+    // Stamped when created and when read
+    @Column(name = "change_version")
+    private Long changeVersion;
 }
\ No newline at end of file
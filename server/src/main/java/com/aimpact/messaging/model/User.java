@@ -32,6 +32,9 @@ public class User {
     @Column(nullable = false)
     private String role;
     
+    // Broadcasts sent before this are not addressed to the user; null for users from before it was recorded
+    private LocalDateTime createdAt;
+    
     private LocalDateTime lastLogin;
     
     private LocalDateTime lastActive;
@@ -0,0 +1,45 @@
+package com.aimpact.messaging.repository;
+
+import com.aimpact.messaging.model.BroadcastNotification;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface BroadcastNotificationRepository extends JpaRepository<BroadcastNotification, Long> {
+    
+    // Each row is a broadcast paired with the user's receipt, or null when they have not read it; broadcasts
+    // sent before the user joined are left out, unless joinedAt is null
+    @Query("SELECT b, r FROM BroadcastNotification b LEFT JOIN BroadcastReceipt r ON r.broadcast = b AND r.user.id = :userId " +
+            "WHERE (b.sender IS NULL OR b.sender.id <> :userId) AND (:joinedAt IS NULL OR b.timestamp >= :joinedAt) " +
+            "ORDER BY b.timestamp DESC")
+    List<Object[]> findForUserWithReceipts(@Param("userId") Long userId, @Param("joinedAt") LocalDateTime joinedAt);
+    
+    // Broadcasts sent, or read by the user, after the given version
+    @Query("SELECT b, r FROM BroadcastNotification b LEFT JOIN BroadcastReceipt r ON r.broadcast = b AND r.user.id = :userId " +
+            "WHERE (b.sender IS NULL OR b.sender.id <> :userId) AND (:joinedAt IS NULL OR b.timestamp >= :joinedAt) " +
+            "AND (b.changeVersion > :since OR r.changeVersion > :since) " +
+            "ORDER BY b.timestamp DESC")
+    List<Object[]> findChangesForUserWithReceipts(@Param("userId") Long userId, @Param("joinedAt") LocalDateTime joinedAt,
+                                                  @Param("since") long since);
+    
+    @Query("SELECT MAX(b.changeVersion) FROM BroadcastNotification b")
+    Long findLatestChangeVersion();
+    
+    @Query("SELECT b FROM BroadcastNotification b WHERE (b.sender IS NULL OR b.sender.id <> :userId) " +
+            "AND (:joinedAt IS NULL OR b.timestamp >= :joinedAt) " +
+            "AND NOT EXISTS (SELECT r FROM BroadcastReceipt r WHERE r.broadcast = b AND r.user.id = :userId) " +
+            "ORDER BY b.timestamp DESC")
+    List<BroadcastNotification> findUnreadForUser(@Param("userId") Long userId, @Param("joinedAt") LocalDateTime joinedAt);
+    
+    @Query("SELECT b.sender.id, COUNT(b) FROM BroadcastNotification b WHERE b.sender IS NOT NULL GROUP BY b.sender.id")
+    List<Object[]> countBySender();
+    
+    // Per user, the broadcasts sent before they joined, which are never unread for them
+    @Query("SELECT u.id, COUNT(b) FROM User u, BroadcastNotification b WHERE b.timestamp < u.createdAt GROUP BY u.id")
+    List<Object[]> countBeforeJoiningByUser();
+}
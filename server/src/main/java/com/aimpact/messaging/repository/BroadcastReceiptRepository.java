@@ -0,0 +1,21 @@
+package com.aimpact.messaging.repository;
+
+import com.aimpact.messaging.model.BroadcastReceipt;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface BroadcastReceiptRepository extends JpaRepository<BroadcastReceipt, Long> {
+    
+    boolean existsByBroadcastIdAndUserId(Long broadcastId, Long userId);
+    
+    @Query("SELECT MAX(r.changeVersion) FROM BroadcastReceipt r WHERE r.user.id = :userId")
+    Long findLatestChangeVersion(@Param("userId") Long userId);
+    
+    @Query("SELECT r.user.id, COUNT(r) FROM BroadcastReceipt r GROUP BY r.user.id")
+    List<Object[]> countByUser();
+}
@@ -0,0 +1,39 @@
+package com.aimpact.messaging.repository;
+
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.ConversationReadState;
+import com.aimpact.messaging.model.User;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ConversationReadStateRepository extends JpaRepository<ConversationReadState, Long> {
+    
+    List<ConversationReadState> findByConversation(Conversation conversation);
+    
+    Optional<ConversationReadState> findByConversationAndUser(Conversation conversation, User user);
+    
+    @Query("SELECT s FROM ConversationReadState s JOIN FETCH s.conversation JOIN FETCH s.user " +
+            "WHERE s.conversation.id IN :conversationIds")
+    List<ConversationReadState> findByConversationIds(@Param("conversationIds") Collection<Long> conversationIds);
+    
+    // Watermarks only move forward in (timestamp, id) order, so a stale request can never un-read messages
+    @Modifying
+    @Transactional
+    @Query("UPDATE ConversationReadState s SET s.lastReadTimestamp = :timestamp, s.lastReadMessageId = :messageId " +
+            "WHERE s.conversation = :conversation AND s.user = :user AND (s.lastReadTimestamp IS NULL " +
+            "OR s.lastReadTimestamp < :timestamp OR (s.lastReadTimestamp = :timestamp AND s.lastReadMessageId < :messageId))")
+    int advanceWatermark(@Param("conversation") Conversation conversation,
+                         @Param("user") User user,
+                         @Param("timestamp") LocalDateTime timestamp,
+                         @Param("messageId") long messageId);
+}
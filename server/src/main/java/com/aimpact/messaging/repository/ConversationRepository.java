@@ -3,10 +3,13 @@ package com.aimpact.messaging.repository;
 import com.aimpact.messaging.model.Conversation;
 import com.aimpact.messaging.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -18,4 +21,18 @@ public interface ConversationRepository extends JpaRepository<Conversation, Long
     
     @Query("SELECT c FROM Conversation c JOIN c.participants p1 JOIN c.participants p2 WHERE p1 = :user1 AND p2 = :user2 AND SIZE(c.participants) = 2")
     Optional<Conversation> findByTwoParticipants(@Param("user1") User user1, @Param("user2") User user2);
+    
+    @Query("SELECT p.id FROM Conversation c JOIN c.participants p WHERE c.id = :conversationId")
+    List<Long> findParticipantIds(@Param("conversationId") Long conversationId);
+    
+    // Rows of conversation id and user id for participants that have no summary row yet
+    @Query("SELECT c.id, p.id FROM Conversation c JOIN c.participants p WHERE NOT EXISTS " +
+            "(SELECT s.id FROM ConversationSummary s WHERE s.conversation = c AND s.user = p)")
+    List<Object[]> findParticipantsWithoutSummary();
+    
+    @Modifying
+    @Transactional
+    @Query("UPDATE Conversation c SET c.lastMessageAt = :timestamp " +
+            "WHERE c.id = :conversationId AND (c.lastMessageAt IS NULL OR c.lastMessageAt < :timestamp)")
+    int touchLastMessageAt(@Param("conversationId") Long conversationId, @Param("timestamp") LocalDateTime timestamp);
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package com.aimpact.messaging.repository;
+
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.ConversationSummary;
+import com.aimpact.messaging.model.User;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ConversationSummaryRepository extends JpaRepository<ConversationSummary, Long> {
+    
+    String ADMIN_FILTER = "WHERE (:participantId IS NULL OR s.conversation.id IN " +
+            "(SELECT p.conversation.id FROM ConversationSummary p WHERE p.user.id = :participantId)) " +
+            "AND (:role IS NULL OR s.conversation.id IN " +
+            "(SELECT r.conversation.id FROM ConversationSummary r WHERE r.user.role = :role))";
+    
+    @Query("SELECT DISTINCT s FROM ConversationSummary s JOIN FETCH s.conversation c JOIN FETCH c.participants " +
+            "WHERE s.user.id = :userId ORDER BY s.lastActivityAt DESC")
+    List<ConversationSummary> findInboxForUser(@Param("userId") Long userId);
+    
+    @Query("SELECT DISTINCT s FROM ConversationSummary s JOIN FETCH s.conversation c JOIN FETCH c.participants " +
+            "WHERE s.user.id = :userId AND s.changeVersion > :since ORDER BY s.lastActivityAt DESC")
+    List<ConversationSummary> findInboxChangesForUser(@Param("userId") Long userId, @Param("since") long since);
+    
+    @Query("SELECT MAX(s.changeVersion) FROM ConversationSummary s WHERE s.user.id = :userId")
+    Long findLatestChangeVersion(@Param("userId") Long userId);
+    
+    @Query("SELECT s FROM ConversationSummary s JOIN FETCH s.conversation c JOIN FETCH c.participants " +
+            "WHERE s.conversation = :conversation AND s.user = :user")
+    Optional<ConversationSummary> findByConversationAndUser(@Param("conversation") Conversation conversation,
+                                                           @Param("user") User user);
+    
+    @Query(value = "SELECT s.conversation.id FROM ConversationSummary s " + ADMIN_FILTER + " GROUP BY s.conversation.id",
+            countQuery = "SELECT COUNT(DISTINCT s.conversation.id) FROM ConversationSummary s " + ADMIN_FILTER)
+    Page<Long> findConversationIdsForAdmin(@Param("participantId") Long participantId,
+                                           @Param("role") String role,
+                                           Pageable pageable);
+    
+    @Query("SELECT s FROM ConversationSummary s JOIN FETCH s.conversation JOIN FETCH s.user " +
+            "WHERE s.conversation.id IN :conversationIds")
+    List<ConversationSummary> findWithUsersByConversationIds(@Param("conversationIds") Collection<Long> conversationIds);
+    
+    @Modifying
+    @Transactional
+    @Query("UPDATE ConversationSummary s SET s.lastMessageId = :messageId, " +
+            "s.lastMessageSenderId = :senderId, s.lastMessageRecipientId = :recipientId, " +
+            "s.lastMessageText = :text, s.lastMessageTimestamp = :timestamp, " +
+            "s.lastMessageRead = false, s.lastActivityAt = :timestamp, s.changeVersion = :version " +
+            "WHERE s.conversation = :conversation AND (s.lastMessageId IS NULL OR s.lastMessageTimestamp < :timestamp " +
+            "OR (s.lastMessageTimestamp = :timestamp AND s.lastMessageId < :messageId))")
+    int recordMessage(@Param("conversation") Conversation conversation,
+                      @Param("messageId") Long messageId,
+                      @Param("senderId") Long senderId,
+                      @Param("recipientId") Long recipientId,
+                      @Param("text") String text,
+                      @Param("timestamp") LocalDateTime timestamp,
+                      @Param("version") long version);
+    
+    // Puts a participant's row into the next delta sync when only its unread count changed
+    @Modifying
+    @Transactional
+    @Query("UPDATE ConversationSummary s SET s.changeVersion = :version " +
+            "WHERE s.conversation.id = :conversationId AND s.user.id = :userId")
+    int touch(@Param("conversationId") Long conversationId,
+              @Param("userId") Long userId,
+              @Param("version") long version);
+    
+    @Modifying
+    @Transactional
+    @Query("UPDATE ConversationSummary s SET s.lastMessageRead = true, s.changeVersion = :version " +
+            "WHERE s.conversation = :conversation AND s.lastMessageRecipientId = :recipientId AND s.lastMessageRead = false " +
+            "AND (s.lastMessageTimestamp < :timestamp OR (s.lastMessageTimestamp = :timestamp AND s.lastMessageId <= :messageId))")
+    int markLastMessageRead(@Param("conversation") Conversation conversation,
+                            @Param("recipientId") Long recipientId,
+                            @Param("timestamp") LocalDateTime timestamp,
+                            @Param("messageId") Long messageId,
+                            @Param("version") long version);
+}
@@ -2,12 +2,15 @@ package com.aimpact.messaging.repository;
 
 import com.aimpact.messaging.model.Conversation;
 import com.aimpact.messaging.model.Message;
-import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.service.MessageRecord;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -15,11 +18,36 @@ public interface MessageRepository extends JpaRepository<Message, Long> {
     
     List<Message> findByConversationOrderByTimestampAsc(Conversation conversation);
     
-    List<Message> findByRecipientAndReadFalse(User recipient);
+    // Keyset pagination over the (conversation_id, timestamp, id) index
+    @Query("SELECT m FROM Message m WHERE m.conversation = :conversation ORDER BY m.timestamp DESC, m.id DESC")
+    List<Message> findLatestInConversation(@Param("conversation") Conversation conversation, Pageable pageable);
     
-    @Query("SELECT COUNT(m) FROM Message m WHERE m.recipient = :recipient AND m.read = false")
-    int countUnreadMessages(@Param("recipient") User recipient);
+    @Query("SELECT m FROM Message m WHERE m.conversation = :conversation " +
+            "AND (m.timestamp < :timestamp OR (m.timestamp = :timestamp AND m.id < :id)) " +
+            "ORDER BY m.timestamp DESC, m.id DESC")
+    List<Message> findBeforeInConversation(@Param("conversation") Conversation conversation,
+                                           @Param("timestamp") LocalDateTime timestamp,
+                                           @Param("id") Long id,
+                                           Pageable pageable);
     
-    @Query("SELECT COUNT(m) FROM Message m WHERE m.conversation = :conversation AND m.recipient = :recipient AND m.read = false")
-    int countUnreadMessagesInConversation(@Param("conversation") Conversation conversation, @Param("recipient") User recipient);
-}
\ No newline at end of file
+    @Query("SELECT m FROM Message m WHERE m.conversation = :conversation " +
+            "AND (m.timestamp > :timestamp OR (m.timestamp = :timestamp AND m.id > :id)) " +
+            "ORDER BY m.timestamp ASC, m.id ASC")
+    List<Message> findAfterInConversation(@Param("conversation") Conversation conversation,
+                                          @Param("timestamp") LocalDateTime timestamp,
+                                          @Param("id") Long id,
+                                          Pageable pageable);
+    
+    // Unread counts are range counts above each participant's read watermark; no read state row means nothing read
+    @Query("SELECT m.recipient.id, m.conversation.id, COUNT(m) FROM Message m " +
+            "LEFT JOIN ConversationReadState s ON s.conversation = m.conversation AND s.user = m.recipient " +
+            "WHERE s.lastReadTimestamp IS NULL " +
+            "OR m.timestamp > s.lastReadTimestamp OR (m.timestamp = s.lastReadTimestamp AND m.id > s.lastReadMessageId) " +
+            "GROUP BY m.recipient.id, m.conversation.id")
+    List<Object[]> countUnreadMessagesByRecipientAndConversation();
+    
+    // Search hits by id, without loading the conversation and users
+    @Query("SELECT new com.aimpact.messaging.service.MessageRecord(m.id, m.conversation.id, m.sender.id, m.recipient.id, m.text, m.timestamp) " +
+            "FROM Message m WHERE m.id IN :ids")
+    List<MessageRecord> findRecordsByIdIn(@Param("ids") Collection<Long> ids);
+}
@@ -3,9 +3,11 @@ package com.aimpact.messaging.repository;
 import com.aimpact.messaging.model.Notification;
 import com.aimpact.messaging.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
@@ -16,6 +18,17 @@ public interface NotificationRepository extends JpaRepository<Notification, Long
     
     List<Notification> findByRecipientAndReadFalseOrderByTimestampDesc(User recipient);
     
-    @Query("SELECT COUNT(n) FROM Notification n WHERE n.recipient = :recipient AND n.read = false")
-    int countUnreadNotifications(@Param("recipient") User recipient);
+    List<Notification> findByRecipientAndChangeVersionGreaterThanOrderByTimestampDesc(User recipient, Long since);
+    
+    @Query("SELECT MAX(n.changeVersion) FROM Notification n WHERE n.recipient = :recipient")
+    Long findLatestChangeVersion(@Param("recipient") User recipient);
+    
+    @Query("SELECT n.recipient.id, COUNT(n) FROM Notification n WHERE n.read = false GROUP BY n.recipient.id")
+    List<Object[]> countUnreadNotificationsByRecipient();
+    
+    // Conditional on the row still being unread, so of two concurrent marks only one updates it
+    @Modifying
+    @Transactional
+    @Query("UPDATE Notification n SET n.read = true, n.changeVersion = :version WHERE n.id = :id AND n.read = false")
+    int markRead(@Param("id") Long id, @Param("version") long version);
 }
\ No newline at end of file
@@ -2,9 +2,11 @@ package com.aimpact.messaging.repository;
 
 import com.aimpact.messaging.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
-import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -12,5 +14,8 @@ public interface UserRepository extends JpaRepository<User, Long> {
     
     Optional<User> findByEmail(String email);
     
-    List<User> findByIsOnlineTrue();
+    @Modifying
+    @Transactional
+    @Query("UPDATE User u SET u.isOnline = false WHERE u.isOnline = true")
+    int markAllOffline();
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.aimpact.messaging.service;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.LongFunction;
+
+/**
+ * Hands out the change versions stamped on conversation summaries and
+ * notifications, so clients can ask for what changed after the version they
+ * hold.
+ * <p>
+ * Versions come from a database sequence, one value per write, so they
+ * increase across every node sharing the database. The sequence is not tied
+ * to an entity, so it is created here when missing.
+ * <p>
+ * A version is handed out before its write commits, so a slow write can commit
+ * below a version a client has already been given. The versions still being
+ * written on this node are tracked, and {@link #settled} keeps the version
+ * given to clients below all of them; a write that commits late is then
+ * picked up by the client's next {@code since=} request. The sequence is read
+ * outside the lock, and until a draw is recorded {@link #settled} also stays
+ * below any version it could return.
+ */
+@Component
+public class ChangeVersionAllocator {
+    
+    public static final String SEQUENCE = "change_version_seq";
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    
+    private String nextValueSql;
+    
+    // Versions handed out whose writes have not completed yet
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    
+    // Lowest version each draw still reading the sequence can return, with the number of draws sharing it
+    private final TreeMap<Long, Integer> drawing = new TreeMap<>();
+    
+    // A draw that starts after this version was recorded can only return a higher one
+    private long highestDrawn;
+    
+    @PostConstruct
+    public void init() {
+        Dialect dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect();
+        nextValueSql = dialect.getSequenceNextValString(SEQUENCE);
+        try {
+            highestDrawn = jdbcTemplate.queryForObject(nextValueSql, Long.class);
+        } catch (DataAccessException e) {
+            for (String sql : dialect.getCreateSequenceStrings(SEQUENCE, 1, 1)) {
+                jdbcTemplate.execute(sql);
+            }
+        }
+    }
+    
+    // For writes inside a transaction: the version stays in flight until the transaction completes
+    public long next() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Outside a transaction a change version must be taken through stamp()");
+        }
+        long version = allocate();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                release(version);
+            }
+        });
+        return version;
+    }
+    
+    // Runs writes with a new version, which stays in flight until they return or their transaction completes
+    public <T> T stamp(LongFunction<T> writes) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            return writes.apply(next());
+        }
+        long version = allocate();
+        try {
+            return writes.apply(version);
+        } finally {
+            release(version);
+        }
+    }
+    
+    /**
+     * The highest version a client can be given as its cursor, from the
+     * highest committed version it can see: just below the oldest version
+     * still being written, if any. The latest version must be read first.
+     */
+    public synchronized long settled(long latest) {
+        long settled = latest;
+        if (!inFlight.isEmpty()) {
+            settled = Math.min(settled, inFlight.first() - 1);
+        }
+        if (!drawing.isEmpty()) {
+            settled = Math.min(settled, drawing.firstKey() - 1);
+        }
+        return settled;
+    }
+    
+    // Only recording the draw takes the lock, so concurrent writers do not queue behind each other's round trip
+    private long allocate() {
+        long floor = beginDraw();
+        Long version = null;
+        try {
+            version = jdbcTemplate.queryForObject(nextValueSql, Long.class);
+            return version;
+        } finally {
+            endDraw(floor, version);
+        }
+    }
+    
+    private synchronized long beginDraw() {
+        long floor = highestDrawn + 1;
+        drawing.merge(floor, 1, Integer::sum);
+        return floor;
+    }
+    
+    // A failed draw leaves nothing in flight
+    private synchronized void endDraw(long floor, Long version) {
+        drawing.computeIfPresent(floor, (key, count) -> count > 1 ? count - 1 : null);
+        if (version != null) {
+            inFlight.add(version);
+            highestDrawn = Math.max(highestDrawn, version);
+        }
+    }
+    
+    private synchronized void release(long version) {
+        inFlight.remove(version);
+    }
+}
@@ -1,49 +1,91 @@
 package com.aimpact.messaging.service;
 
 import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.dto.ConversationPageDTO;
 import com.aimpact.messaging.dto.MessageDTO;
 import com.aimpact.messaging.dto.UserDTO;
 import com.aimpact.messaging.model.Conversation;
-import com.aimpact.messaging.model.Message;
+import com.aimpact.messaging.model.ConversationReadState;
+import com.aimpact.messaging.model.ConversationSummary;
 import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.ConversationReadStateRepository;
 import com.aimpact.messaging.repository.ConversationRepository;
+import com.aimpact.messaging.repository.ConversationSummaryRepository;
 import com.aimpact.messaging.repository.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.JpaSort;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
 public class ConversationService {
     
+    private static final Logger logger = LoggerFactory.getLogger(ConversationService.class);
+    
+    private static final int MAX_ADMIN_PAGE_SIZE = 100;
+    
+    // Aggregate expressions over the grouped summary rows of each conversation
+    private static final Map<String, String> ADMIN_SORT_EXPRESSIONS = Map.of(
+            "lastMessageAt", "MAX(s.lastActivityAt)",
+            "createdAt", "MAX(s.conversation.createdAt)"
+    );
+    
     @Autowired
     private ConversationRepository conversationRepository;
     
+    @Autowired
+    private ConversationReadStateRepository readStateRepository;
+    
+    @Autowired
+    private ConversationSummaryRepository summaryRepository;
+    
     @Autowired
     private MessageRepository messageRepository;
     
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private ChangeVersionAllocator changeVersions;
+    
+    @Autowired
+    private UnreadCounterService unreadCounterService;
+    
     public List<ConversationDTO> getConversationsForUser(Long userId) {
-        User user = userService.getUserEntityById(userId);
-        if (user == null) {
-            return List.of();
-        }
-        
-        List<Conversation> conversations = conversationRepository.findByParticipant(user);
-        
-        return conversations.stream()
-                .map(conversation -> convertToDTO(conversation, userId))
-                .sorted(Comparator.comparing(ConversationDTO::getLastMessageAt, Comparator.nullsLast(Comparator.reverseOrder())))
+        // Served entirely from the summary projection, already ordered by last activity
+        return summaryRepository.findInboxForUser(userId).stream()
+                .map(summary -> convertToDTO(summary, userId))
+                .collect(Collectors.toList());
+    }
+    
+    // Only the conversations whose summary changed after the given version
+    public List<ConversationDTO> getConversationChangesForUser(Long userId, long since) {
+        return summaryRepository.findInboxChangesForUser(userId, since).stream()
+                .map(summary -> convertToDTO(summary, userId))
                 .collect(Collectors.toList());
     }
     
+    // Highest change version among the user's conversations, held below any still being written; 0 before the first one
+    public long getConversationsVersion(Long userId) {
+        Long version = summaryRepository.findLatestChangeVersion(userId);
+        return changeVersions.settled(version != null ? version : 0);
+    }
+    
     public ConversationDTO getOrCreateConversation(Long userId1, Long userId2) {
         User user1 = userService.getUserEntityById(userId1);
         User user2 = userService.getUserEntityById(userId2);
@@ -56,7 +98,10 @@ public class ConversationService {
         Optional<Conversation> existingConversation = conversationRepository.findByTwoParticipants(user1, user2);
         
         if (existingConversation.isPresent()) {
-            return convertToDTO(existingConversation.get(), userId1);
+            Conversation conversation = existingConversation.get();
+            ConversationSummary summary = summaryRepository.findByConversationAndUser(conversation, user1)
+                    .orElseGet(() -> changeVersions.stamp(version -> createSummary(conversation, user1, version)));
+            return summary != null ? convertToDTO(summary, userId1) : null;
         }
         
         // Create new conversation
@@ -65,54 +110,81 @@ public class ConversationService {
         conversation.setCreatedAt(LocalDateTime.now());
         conversation.setLastMessageAt(LocalDateTime.now());
         
-        conversation = conversationRepository.save(conversation);
+        Conversation created = conversationRepository.save(conversation);
         
-        return convertToDTO(conversation, userId1);
+        // Each participant starts with nothing read
+        readStateRepository.save(new ConversationReadState(created, user1));
+        readStateRepository.save(new ConversationReadState(created, user2));
+        
+        ConversationSummary summary = changeVersions.stamp(version -> {
+            ConversationSummary own = summaryRepository.save(new ConversationSummary(created, user1, version));
+            summaryRepository.save(new ConversationSummary(created, user2, version));
+            return own;
+        });
+        
+        return convertToDTO(summary, userId1);
     }
     
-    public List<ConversationDTO> getAllConversations() {
-        List<Conversation> conversations = conversationRepository.findAll();
-        
-        return conversations.stream()
-                .map(conversation -> {
-                    ConversationDTO dto = new ConversationDTO();
-                    dto.setId(conversation.getId());
-                    
-                    // Convert participants
-                    List<UserDTO> participants = conversation.getParticipants().stream()
-                            .map(user -> userService.getUserById(user.getId()))
-                            .collect(Collectors.toList());
-                    dto.setParticipants(participants);
-                    
-                    // Get last message
-                    List<Message> messages = messageRepository.findByConversationOrderByTimestampAsc(conversation);
-                    if (!messages.isEmpty()) {
-                        Message lastMessage = messages.get(messages.size() - 1);
-                        MessageDTO lastMessageDTO = new MessageDTO();
-                        lastMessageDTO.setId(lastMessage.getId());
-                        lastMessageDTO.setConversationId(lastMessage.getConversation().getId());
-                        lastMessageDTO.setSenderId(lastMessage.getSender().getId());
-                        lastMessageDTO.setRecipientId(lastMessage.getRecipient().getId());
-                        lastMessageDTO.setText(lastMessage.getText());
-                        lastMessageDTO.setTimestamp(lastMessage.getTimestamp());
-                        lastMessageDTO.setRead(lastMessage.isRead());
-                        
-                        dto.setLastMessage(lastMessageDTO);
-                        dto.setLastMessageAt(lastMessage.getTimestamp());
-                    } else {
-                        dto.setLastMessageAt(conversation.getCreatedAt());
-                    }
-                    
-                    dto.setCreatedAt(conversation.getCreatedAt());
-                    dto.setUnreadCount(messages.size());
-                    
-                    return dto;
-                })
-                .sorted(Comparator.comparing(ConversationDTO::getLastMessageAt, Comparator.nullsLast(Comparator.reverseOrder())))
-                .collect(Collectors.toList());
+    // Conversations that predate the summary projection get their rows once the application is ready
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillSummaries() {
+        List<Object[]> missing = conversationRepository.findParticipantsWithoutSummary();
+        if (missing.isEmpty()) {
+            return;
+        }
+        
+        int created = changeVersions.stamp(version -> {
+            int count = 0;
+            for (Object[] row : missing) {
+                Conversation conversation = conversationRepository.findById((Long) row[0]).orElse(null);
+                User user = userService.getUserEntityById((Long) row[1]);
+                if (conversation != null && user != null) {
+                    createSummary(conversation, user, version);
+                    count++;
+                }
+            }
+            return count;
+        });
+        logger.info("Backfilled {} conversation summaries", created);
     }
     
-    private ConversationDTO convertToDTO(Conversation conversation, Long currentUserId) {
+    public ConversationPageDTO getAllConversations(Long participantId, String role, String sort, String direction, int page, int size) {
+        String sortExpression = ADMIN_SORT_EXPRESSIONS.get(sort);
+        if (sortExpression == null) {
+            return null;
+        }
+        
+        Sort.Direction sortDirection = "asc".equalsIgnoreCase(direction) ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Pageable pageable = PageRequest.of(Math.max(page, 0), Math.max(1, Math.min(size, MAX_ADMIN_PAGE_SIZE)),
+                JpaSort.unsafe(sortDirection, sortExpression).andUnsafe(sortDirection, "conversation.id"));
+        
+        // One grouped query picks the page, one more loads every participant row on it
+        Page<Long> conversationIds = summaryRepository.findConversationIdsForAdmin(participantId, role, pageable);
+        Map<Long, List<ConversationSummary>> summariesByConversation = conversationIds.isEmpty()
+                ? Map.of()
+                : summaryRepository.findWithUsersByConversationIds(conversationIds.getContent()).stream()
+                        .collect(Collectors.groupingBy(summary -> summary.getConversation().getId()));
+        
+        ConversationPageDTO pageDTO = new ConversationPageDTO();
+        pageDTO.setConversations(conversationIds.getContent().stream()
+                .map(conversationId -> convertToAdminDTO(summariesByConversation.get(conversationId)))
+                .collect(Collectors.toList()));
+        pageDTO.setPage(conversationIds.getNumber());
+        pageDTO.setSize(conversationIds.getSize());
+        pageDTO.setTotalElements(conversationIds.getTotalElements());
+        pageDTO.setTotalPages(conversationIds.getTotalPages());
+        return pageDTO;
+    }
+    
+    // Admin view of a single conversation, listing every participant
+    public ConversationDTO getConversation(Long conversationId) {
+        List<ConversationSummary> summaries = summaryRepository.findWithUsersByConversationIds(List.of(conversationId));
+        return summaries.isEmpty() ? null : convertToAdminDTO(summaries);
+    }
+    
+    private ConversationDTO convertToDTO(ConversationSummary summary, Long currentUserId) {
+        Conversation conversation = summary.getConversation();
+        
         ConversationDTO dto = new ConversationDTO();
         dto.setId(conversation.getId());
         
@@ -120,37 +192,72 @@ public class ConversationService {
         List<UserDTO> participants = new ArrayList<>();
         for (User participant : conversation.getParticipants()) {
             if (!participant.getId().equals(currentUserId)) {
-                participants.add(userService.getUserById(participant.getId()));
+                participants.add(userService.convertToProfileDTO(participant));
             }
         }
         dto.setParticipants(participants);
         
-        // Get last message
-        List<Message> messages = messageRepository.findByConversationOrderByTimestampAsc(conversation);
-        if (!messages.isEmpty()) {
-            Message lastMessage = messages.get(messages.size() - 1);
-            MessageDTO lastMessageDTO = new MessageDTO();
-            lastMessageDTO.setId(lastMessage.getId());
-            lastMessageDTO.setConversationId(lastMessage.getConversation().getId());
-            lastMessageDTO.setSenderId(lastMessage.getSender().getId());
-            lastMessageDTO.setRecipientId(lastMessage.getRecipient().getId());
-            lastMessageDTO.setText(lastMessage.getText());
-            lastMessageDTO.setTimestamp(lastMessage.getTimestamp());
-            lastMessageDTO.setRead(lastMessage.isRead());
-            
-            dto.setLastMessage(lastMessageDTO);
-            dto.setLastMessageAt(lastMessage.getTimestamp());
-        } else {
-            dto.setLastMessageAt(conversation.getCreatedAt());
-        }
-        
+        dto.setLastMessage(convertLastMessage(summary));
+        dto.setLastMessageAt(summary.getLastActivityAt());
         dto.setCreatedAt(conversation.getCreatedAt());
+        dto.setUnreadCount(unreadCounterService.getUnreadMessages(currentUserId, conversation.getId()));
         
-        // Count unread messages
-        User currentUser = userService.getUserEntityById(currentUserId);
-        int unreadCount = messageRepository.countUnreadMessagesInConversation(conversation, currentUser);
-        dto.setUnreadCount(unreadCount);
+        return dto;
+    }
+    
+    private ConversationDTO convertToAdminDTO(List<ConversationSummary> summaries) {
+        // Every participant row carries the same snapshot; only the unread counters differ
+        ConversationSummary summary = summaries.get(0);
         
+        ConversationDTO dto = new ConversationDTO();
+        dto.setId(summary.getConversation().getId());
+        dto.setParticipants(summaries.stream()
+                .map(participant -> userService.convertToProfileDTO(participant.getUser()))
+                .collect(Collectors.toList()));
+        dto.setLastMessage(convertLastMessage(summary));
+        dto.setLastMessageAt(summary.getLastActivityAt());
+        dto.setCreatedAt(summary.getConversation().getCreatedAt());
+        dto.setUnreadCount(summaries.stream()
+                .mapToInt(participant -> unreadCounterService.getUnreadMessages(participant.getUser().getId(), dto.getId()))
+                .sum());
         return dto;
     }
-}
\ No newline at end of file
+    
+    // Built from the conversation's latest message; null if another request created the row first
+    private ConversationSummary createSummary(Conversation conversation, User user, long version) {
+        ConversationSummary summary = new ConversationSummary(conversation, user, version);
+        messageRepository.findLatestInConversation(conversation, PageRequest.of(0, 1)).stream().findFirst().ifPresent(latest -> {
+            summary.setLastMessageId(latest.getId());
+            summary.setLastMessageSenderId(latest.getSender().getId());
+            summary.setLastMessageRecipientId(latest.getRecipient().getId());
+            summary.setLastMessageText(latest.getText());
+            summary.setLastMessageTimestamp(latest.getTimestamp());
+            summary.setLastMessageRead(readStateRepository.findByConversationAndUser(conversation, latest.getRecipient())
+                    .map(readState -> readState.hasRead(latest.getTimestamp(), latest.getId()))
+                    .orElse(false));
+            summary.setLastActivityAt(latest.getTimestamp());
+        });
+        
+        try {
+            return summaryRepository.save(summary);
+        } catch (DataIntegrityViolationException e) {
+            return summaryRepository.findByConversationAndUser(conversation, user).orElse(null);
+        }
+    }
+    
+    private MessageDTO convertLastMessage(ConversationSummary summary) {
+        if (summary.getLastMessageId() == null) {
+            return null;
+        }
+        
+        MessageDTO lastMessageDTO = new MessageDTO();
+        lastMessageDTO.setId(summary.getLastMessageId());
+        lastMessageDTO.setConversationId(summary.getConversation().getId());
+        lastMessageDTO.setSenderId(summary.getLastMessageSenderId());
+        lastMessageDTO.setRecipientId(summary.getLastMessageRecipientId());
+        lastMessageDTO.setText(summary.getLastMessageText());
+        lastMessageDTO.setTimestamp(summary.getLastMessageTimestamp());
+        lastMessageDTO.setRead(summary.isLastMessageRead());
+        return lastMessageDTO;
+    }
+}
@@ -0,0 +1,51 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.Message;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Hands out message ids before the row is inserted.
+ * <p>
+ * Reads the same sequence Hibernate uses for {@code Message} with the same
+ * pooled-lo interpretation: a sequence value {@code v} reserves the ids
+ * {@code v} to {@code v + ID_BLOCK_SIZE - 1}. Ids allocated here can therefore
+ * never collide with ids Hibernate assigns itself, on this node or another.
+ */
+@Component
+public class MessageIdAllocator {
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    
+    private String nextBlockSql;
+    
+    private long next;
+    
+    private long limit;
+    
+    public synchronized long nextId() {
+        if (next >= limit) {
+            Long blockStart = jdbcTemplate.queryForObject(nextBlockSql(), Long.class);
+            next = blockStart;
+            limit = blockStart + Message.ID_BLOCK_SIZE;
+        }
+        return next++;
+    }
+    
+    private String nextBlockSql() {
+        if (nextBlockSql == null) {
+            Dialect dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect();
+            nextBlockSql = dialect.getSequenceNextValString(Message.ID_SEQUENCE);
+        }
+        return nextBlockSql;
+    }
+}
@@ -0,0 +1,300 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.Message;
+import com.aimpact.messaging.repository.ConversationRepository;
+import com.aimpact.messaging.repository.ConversationSummaryRepository;
+import com.aimpact.messaging.repository.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Writes chat messages and the state derived from them.
+ * <p>
+ * In {@code sync} mode ({@code messaging.persistence.mode}) each message is
+ * written in its own transaction before it is delivered. In
+ * {@code write-behind} mode {@link #enqueue} stamps each message with an id
+ * from {@link MessageIdAllocator} and its timestamp, puts it on a bounded queue
+ * and a single writer thread commits them in groups: one batched JDBC insert
+ * for the messages plus one conversation and summary update per conversation
+ * in the group. If a group fails its messages are retried one per transaction,
+ * so a bad row only fails itself. Each message's commit callback runs on the
+ * writer thread once its outcome is known. A full queue is backpressure:
+ * {@link #enqueue} waits up to {@code messaging.persistence.enqueue-timeout-ms}
+ * and then refuses the message.
+ */
+@Service
+public class MessagePersistenceService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MessagePersistenceService.class);
+    
+    private static final String INSERT_MESSAGE_SQL =
+            "INSERT INTO messages (id, conversation_id, sender_id, recipient_id, text, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
+    
+    @Autowired
+    private MessageRepository messageRepository;
+    
+    @Autowired
+    private ConversationRepository conversationRepository;
+    
+    @Autowired
+    private ConversationSummaryRepository summaryRepository;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private ChangeVersionAllocator changeVersions;
+    
+    @Autowired
+    private MessageIdAllocator messageIdAllocator;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    
+    @Value("${messaging.persistence.mode:sync}")
+    private String mode;
+    
+    @Value("${messaging.persistence.queue-capacity:10000}")
+    private int queueCapacity;
+    
+    @Value("${messaging.persistence.batch-size:500}")
+    private int batchSize;
+    
+    @Value("${messaging.persistence.enqueue-timeout-ms:100}")
+    private long enqueueTimeoutMs;
+    
+    private BlockingQueue<PendingMessage> queue;
+    
+    private Thread writer;
+    
+    private volatile boolean running;
+    
+    // Held while a message is stamped and queued, so queue order is (timestamp, id) order
+    private final ReentrantLock enqueueLock = new ReentrantLock();
+    
+    private LocalDateTime lastTimestamp = LocalDateTime.MIN;
+    
+    public boolean isWriteBehind() {
+        return "write-behind".equals(mode);
+    }
+    
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+    
+    @Transactional
+    public Message saveNow(Message message) {
+        message = messageRepository.save(message);
+        
+        conversationRepository.touchLastMessageAt(message.getConversation().getId(), message.getTimestamp());
+        
+        // Keep the inbox projection in step with the write
+        long version = changeVersions.next();
+        summaryRepository.recordMessage(message.getConversation(), message.getId(), message.getSender().getId(),
+                message.getRecipient().getId(), message.getText(), message.getTimestamp(), version);
+        summaryRepository.touch(message.getConversation().getId(), message.getRecipient().getId(), version);
+        
+        return message;
+    }
+    
+    /**
+     * Stamps a message with its id and timestamp and queues it for the next
+     * group commit. Ids from the allocator are not in commit order across
+     * nodes, so history and read watermarks order by (timestamp, id); stamping
+     * both under one lock keeps this node's commits in that order.
+     *
+     * @param onCommit runs on the writer thread in commit order, with
+     * {@code null} once the message is committed or the failure if it could not be
+     * @return false if the queue stayed full for the whole enqueue timeout
+     */
+    public boolean enqueue(Message message, Consumer<RuntimeException> onCommit) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(enqueueTimeoutMs);
+        try {
+            if (!running || !enqueueLock.tryLock(enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            try {
+                // Stored timestamps keep microseconds, and the in-memory copy must compare equal to them
+                LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+                lastTimestamp = now.isAfter(lastTimestamp) ? now : lastTimestamp;
+                message.setId(messageIdAllocator.nextId());
+                message.setTimestamp(lastTimestamp);
+                return queue.offer(new PendingMessage(message, onCommit), deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } finally {
+                enqueueLock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!isWriteBehind()) {
+            return;
+        }
+        
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::drain, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Write-behind message persistence started (capacity {}, batch size {})", queueCapacity, batchSize);
+    }
+    
+    @EventListener(ContextClosedEvent.class)
+    public void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        
+        // Refuse new messages, then let the writer commit what is already queued
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+    
+    private void drain() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                
+                commitOrRetry(transactionTemplate, batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void commitOrRetry(TransactionTemplate transactionTemplate, List<PendingMessage> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> commit(batch));
+            batch.forEach(pending -> pending.complete(null));
+            return;
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                logger.error("Failed to persist queued message {}", batch.get(0).id, e);
+                batch.get(0).complete(e);
+                return;
+            }
+            logger.warn("Failed to persist {} queued messages together; retrying them one at a time", batch.size(), e);
+        }
+        
+        // One bad row fails the whole batched insert, so only it should fail on its own
+        for (PendingMessage pending : batch) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> commit(List.of(pending)));
+                pending.complete(null);
+            } catch (RuntimeException e) {
+                logger.error("Failed to persist queued message {}", pending.id, e);
+                pending.complete(e);
+            }
+        }
+    }
+    
+    private void commit(List<PendingMessage> batch) {
+        List<Object[]> rows = new ArrayList<>(batch.size());
+        Map<Long, PendingMessage> latestByConversation = new HashMap<>();
+        Map<Long, Set<Long>> recipientsByConversation = new HashMap<>();
+        
+        for (PendingMessage pending : batch) {
+            rows.add(new Object[] {pending.id, pending.conversationId, pending.senderId, pending.recipientId,
+                    pending.text, Timestamp.valueOf(pending.timestamp)});
+            latestByConversation.merge(pending.conversationId, pending,
+                    (current, candidate) -> candidate.isAfter(current) ? candidate : current);
+            recipientsByConversation.computeIfAbsent(pending.conversationId, id -> new HashSet<>())
+                    .add(pending.recipientId);
+        }
+        
+        jdbcTemplate.batchUpdate(INSERT_MESSAGE_SQL, rows);
+        
+        // One set of derived-state updates per conversation, however many messages it received
+        long version = changeVersions.next();
+        latestByConversation.forEach((conversationId, latest) -> {
+            Conversation conversation = conversationRepository.getReferenceById(conversationId);
+            conversationRepository.touchLastMessageAt(conversationId, latest.timestamp);
+            summaryRepository.recordMessage(conversation, latest.id, latest.senderId, latest.recipientId,
+                    latest.text, latest.timestamp, version);
+            recipientsByConversation.get(conversationId).forEach(recipientId ->
+                    summaryRepository.touch(conversationId, recipientId, version));
+        });
+    }
+    
+    private static class PendingMessage {
+        
+        private final long id;
+        
+        private final Long conversationId;
+        
+        private final Long senderId;
+        
+        private final Long recipientId;
+        
+        private final String text;
+        
+        private final LocalDateTime timestamp;
+        
+        private final Consumer<RuntimeException> onCommit;
+        
+        private PendingMessage(Message message, Consumer<RuntimeException> onCommit) {
+            this.id = message.getId();
+            this.conversationId = message.getConversation().getId();
+            this.senderId = message.getSender().getId();
+            this.recipientId = message.getRecipient().getId();
+            this.text = message.getText();
+            this.timestamp = message.getTimestamp();
+            this.onCommit = onCommit;
+        }
+        
+        private boolean isAfter(PendingMessage other) {
+            int byTime = timestamp.compareTo(other.timestamp);
+            return byTime > 0 || (byTime == 0 && id > other.id);
+        }
+        
+        // A failing callback must not stop the writer or the callbacks after it
+        private void complete(RuntimeException failure) {
+            try {
+                onCommit.accept(failure);
+            } catch (RuntimeException e) {
+                logger.error("Commit callback failed for message {}", id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.Message;
+
+import java.time.LocalDateTime;
+
+/**
+ * Compact, immutable copy of a message for the in-memory read paths, holding
+ * ids instead of the entity graph a {@link Message} drags along.
+ */
+public class MessageRecord {
+    
+    private final long id;
+    
+    private final long conversationId;
+    
+    private final long senderId;
+    
+    private final long recipientId;
+    
+    private final String text;
+    
+    private final LocalDateTime timestamp;
+    
+    public MessageRecord(long id, long conversationId, long senderId, long recipientId, String text, LocalDateTime timestamp) {
+        this.id = id;
+        this.conversationId = conversationId;
+        this.senderId = senderId;
+        this.recipientId = recipientId;
+        this.text = text;
+        this.timestamp = timestamp;
+    }
+    
+    public static MessageRecord of(Message message) {
+        return new MessageRecord(message.getId(), message.getConversation().getId(), message.getSender().getId(),
+                message.getRecipient().getId(), message.getText(), message.getTimestamp());
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    public long getConversationId() {
+        return conversationId;
+    }
+    
+    public long getSenderId() {
+        return senderId;
+    }
+    
+    public long getRecipientId() {
+        return recipientId;
+    }
+    
+    public String getText() {
+        return text;
+    }
+    
+    public LocalDateTime getTimestamp() {
+        return timestamp;
+    }
+}
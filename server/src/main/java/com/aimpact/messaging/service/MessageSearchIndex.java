@@ -0,0 +1,345 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over message text, so searching never scans the
+ * messages table.
+ * <p>
+ * Every term maps to the ascending ids of the messages containing it. Each
+ * participant also gets a posting list of its own, so scoping a query to the
+ * caller's conversations is just one more list to intersect. Only ids are
+ * kept; callers load the page of hits by primary key. Queries match all
+ * terms, the last one as a prefix, and walk from the newest id down
+ * whichever side is shorter: the shortest required list, or the merged
+ * expansions of the prefix, checking the others by binary search. Ids are
+ * not in commit order across writers, so hits are only roughly newest first;
+ * {@link MessageService#searchMessages} sorts each page by timestamp. Hits are
+ * flagged incomplete while the startup rebuild is still running, or when the
+ * prefix expands to more terms than are searched. The index is filled from
+ * the database in the background at startup and kept current by
+ * {@link MessageService#sendMessage}; messages only sent through another node
+ * appear after this node restarts.
+ */
+@Component
+public class MessageSearchIndex {
+    
+    private static final Logger logger = LoggerFactory.getLogger(MessageSearchIndex.class);
+    
+    private static final String REBUILD_SQL =
+            "SELECT id, sender_id, recipient_id, text FROM messages WHERE id > ? ORDER BY id LIMIT ?";
+    
+    private static final int REBUILD_BATCH = 10000;
+    
+    // Cannot collide with a term: terms contain only letters and digits
+    private static final String PARTICIPANT_TERM = " user:";
+    
+    private static final int MAX_TERM_LENGTH = 64;
+    
+    // The exact term sorts first, so it is always among them
+    private static final int MAX_PREFIX_EXPANSIONS = 64;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Value("${messaging.search.enabled:true}")
+    private boolean enabled;
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    
+    private int indexed;
+    
+    private volatile boolean ready;
+    
+    public boolean isReady() {
+        return ready;
+    }
+    
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return indexed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public void add(Message message) {
+        if (!enabled) {
+            return;
+        }
+        add(message.getId(), message.getSender().getId(), message.getRecipient().getId(), message.getText());
+    }
+    
+    /**
+     * Ids of the messages of {@code userId} matching every term of
+     * {@code query}, newest first, starting below {@code before} when given.
+     */
+    public Hits search(Long userId, String query, Long before, int limit) {
+        List<String> terms = new ArrayList<>(tokenize(query));
+        if (!enabled || terms.isEmpty()) {
+            return new Hits(List.of(), ready);
+        }
+        String prefix = terms.remove(terms.size() - 1);
+        
+        lock.readLock().lock();
+        try {
+            List<Postings> required = new ArrayList<>();
+            required.add(postings.get(PARTICIPANT_TERM + userId));
+            for (String term : terms) {
+                required.add(postings.get(term));
+            }
+            if (required.contains(null)) {
+                return new Hits(List.of(), ready);
+            }
+            
+            List<Postings> anyOf = new ArrayList<>();
+            long anyOfSize = 0;
+            boolean truncated = false;
+            for (Postings expansion : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+                if (anyOf.size() == MAX_PREFIX_EXPANSIONS) {
+                    truncated = true;
+                    break;
+                }
+                anyOf.add(expansion);
+                anyOfSize += expansion.size;
+            }
+            if (anyOf.isEmpty()) {
+                return new Hits(List.of(), ready);
+            }
+            
+            Postings shortest = required.get(0);
+            for (Postings candidate : required) {
+                if (candidate.size < shortest.size) {
+                    shortest = candidate;
+                }
+            }
+            
+            List<Long> ids = shortest.size <= anyOfSize
+                    ? walk(shortest, required, anyOf, before, limit)
+                    : merge(anyOf, required, before, limit);
+            return new Hits(ids, ready && !truncated);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void startRebuild() {
+        if (!enabled) {
+            return;
+        }
+        Thread rebuild = new Thread(this::rebuild, "message-search-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+    
+    // Returns the number of messages read from the database
+    public int rebuild() {
+        long started = System.currentTimeMillis();
+        long lastId = Long.MIN_VALUE;
+        int read = 0;
+        try {
+            while (true) {
+                List<Long> batch = new ArrayList<>();
+                jdbcTemplate.query(REBUILD_SQL, rs -> {
+                    long id = rs.getLong("id");
+                    add(id, rs.getLong("sender_id"), rs.getLong("recipient_id"), rs.getString("text"));
+                    batch.add(id);
+                }, lastId, REBUILD_BATCH);
+                read += batch.size();
+                if (batch.size() < REBUILD_BATCH) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1);
+            }
+            ready = true;
+            logger.info("Indexed {} messages for search in {} ms", read, System.currentTimeMillis() - started);
+        } catch (RuntimeException e) {
+            logger.error("Failed to rebuild the message search index after {} messages", read, e);
+        }
+        return read;
+    }
+    
+    private void add(long id, long senderId, long recipientId, String text) {
+        Set<String> terms = tokenize(text);
+        String senderTerm = PARTICIPANT_TERM + senderId;
+        terms.add(senderTerm);
+        terms.add(PARTICIPANT_TERM + recipientId);
+        
+        lock.writeLock().lock();
+        try {
+            // Sends during the rebuild may already have indexed this message
+            Postings sent = postings.get(senderTerm);
+            if (sent != null && sent.contains(id)) {
+                return;
+            }
+            for (String term : terms) {
+                postings.computeIfAbsent(term, key -> new Postings()).add(id);
+            }
+            indexed++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Down one list, keeping the ids every required list and some expansion contain
+    private static List<Long> walk(Postings driver, List<Postings> required, List<Postings> anyOf, Long before, int limit) {
+        List<Long> ids = new ArrayList<>();
+        int start = before != null ? driver.indexBefore(before) : driver.size - 1;
+        for (int i = start; i >= 0 && ids.size() < limit; i--) {
+            long id = driver.ids[i];
+            if (containsAll(required, id) && containsAny(anyOf, id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+    
+    // Down the union of the expansions, newest id first, keeping those every required list contains
+    private static List<Long> merge(List<Postings> anyOf, List<Postings> required, Long before, int limit) {
+        int[] positions = new int[anyOf.size()];
+        for (int i = 0; i < positions.length; i++) {
+            Postings list = anyOf.get(i);
+            positions[i] = before != null ? list.indexBefore(before) : list.size - 1;
+        }
+        
+        List<Long> ids = new ArrayList<>();
+        while (ids.size() < limit) {
+            long newest = Long.MIN_VALUE;
+            boolean found = false;
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] >= 0 && (!found || anyOf.get(i).ids[positions[i]] > newest)) {
+                    newest = anyOf.get(i).ids[positions[i]];
+                    found = true;
+                }
+            }
+            if (!found) {
+                break;
+            }
+            // A message containing several expansions is listed once
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] >= 0 && anyOf.get(i).ids[positions[i]] == newest) {
+                    positions[i]--;
+                }
+            }
+            if (containsAll(required, newest)) {
+                ids.add(newest);
+            }
+        }
+        return ids;
+    }
+    
+    private static boolean containsAll(List<Postings> lists, long id) {
+        for (Postings list : lists) {
+            if (!list.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean containsAny(List<Postings> lists, long id) {
+        for (Postings list : lists) {
+            if (list.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Lower-cased runs of letters and digits
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        StringBuilder term = new StringBuilder();
+        text.toLowerCase(Locale.ROOT).codePoints().forEach(codePoint -> {
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(codePoint);
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        });
+        if (term.length() > 0) {
+            terms.add(term.toString());
+        }
+        return terms;
+    }
+    
+    // Ascending message ids; appends are the common case since ids grow over time
+    private static class Postings {
+        
+        private long[] ids = new long[4];
+        
+        private int size;
+        
+        void add(long id) {
+            int index = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0 && index < size) {
+                return;
+            }
+            int insertAt = index < 0 ? -index - 1 : index;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, insertAt, ids, insertAt + 1, size - insertAt);
+            ids[insertAt] = id;
+            size++;
+        }
+        
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+        
+        // Position of the newest id below the cursor, or -1
+        int indexBefore(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return (index >= 0 ? index : -index - 1) - 1;
+        }
+    }
+    
+    public static class Hits {
+        
+        private final List<Long> ids;
+        
+        private final boolean complete;
+        
+        Hits(List<Long> ids, boolean complete) {
+            this.ids = ids;
+            this.complete = complete;
+        }
+        
+        public List<Long> getIds() {
+            return ids;
+        }
+        
+        // False while the index is still being rebuilt, or when the prefix matched too many terms to search them all
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+}
@@ -1,130 +1,430 @@
 package com.aimpact.messaging.service;
 
 import com.aimpact.messaging.dto.MessageDTO;
+import com.aimpact.messaging.dto.MessageErrorDTO;
+import com.aimpact.messaging.dto.MessagePageDTO;
 import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.ConversationReadState;
 import com.aimpact.messaging.model.Message;
 import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.ConversationReadStateRepository;
 import com.aimpact.messaging.repository.ConversationRepository;
+import com.aimpact.messaging.repository.ConversationSummaryRepository;
 import com.aimpact.messaging.repository.MessageRepository;
 import com.aimpact.messaging.websocket.ChatMessage;
+import com.aimpact.messaging.websocket.InboxPublisher;
+import com.aimpact.messaging.websocket.UserEventBuffer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
 public class MessageService {
     
+    private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
+    
+    public static final String SENT_DESTINATION = "/queue/sent";
+    
+    public static final String ERRORS_DESTINATION = "/queue/errors";
+    
+    private static final int MAX_PAGE_SIZE = 200;
+    
+    // History order, newest first; ids alone are not in commit order across writers
+    private static final Comparator<MessageRecord> NEWEST_FIRST =
+            Comparator.comparing(MessageRecord::getTimestamp, Comparator.reverseOrder())
+                    .thenComparing(MessageRecord::getId, Comparator.reverseOrder());
+    
     @Autowired
     private MessageRepository messageRepository;
     
     @Autowired
     private ConversationRepository conversationRepository;
     
+    @Autowired
+    private ConversationReadStateRepository readStateRepository;
+    
+    @Autowired
+    private ConversationSummaryRepository summaryRepository;
+    
     @Autowired
     private UserService userService;
     
     @Autowired
-    private SimpMessagingTemplate messagingTemplate;
+    private UnreadCounterService unreadCounterService;
+    
+    @Autowired
+    private MessagePersistenceService persistenceService;
+    
+    @Autowired
+    private ChangeVersionAllocator changeVersions;
     
-    public List<MessageDTO> getMessagesForConversation(Long conversationId, Long userId) {
+    @Autowired
+    private UserEventBuffer userEventBuffer;
+    
+    @Autowired
+    private InboxPublisher inboxPublisher;
+    
+    @Autowired
+    private MessageSearchIndex searchIndex;
+    
+    @Autowired
+    private RecentMessageCache recentMessageCache;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${messaging.persistence.ack:commit}")
+    private String ackMode;
+    
+    public MessagePageDTO getMessagesForConversation(Long conversationId, Long userId, Long before, Long after, int size) {
         Conversation conversation = conversationRepository.findById(conversationId).orElse(null);
         User user = userService.getUserEntityById(userId);
         
         if (conversation == null || user == null) {
-            return List.of();
+            return emptyPage();
+        }
+        
+        // Reading history never marks it read; clients post to the read endpoint for that
+        Map<Long, ConversationReadState> watermarks = getReadWatermarks(conversation);
+        
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        
+        // Recent history of a busy conversation is answered from memory
+        RecentMessageCache.Window window = recentMessageCache.get(conversation);
+        if (window != null) {
+            MessagePageDTO cached = pageFromWindow(window, before, after, pageSize, watermarks);
+            if (cached != null) {
+                return cached;
+            }
         }
         
-        // Mark messages as read
-        List<Message> messages = messageRepository.findByConversationOrderByTimestampAsc(conversation);
-        messages.forEach(message -> {
-            if (message.getRecipient().getId().equals(userId) && !message.isRead()) {
-                message.setRead(true);
-                messageRepository.save(message);
+        // Fetch one extra row to find out whether another page exists
+        Pageable limit = PageRequest.of(0, pageSize + 1);
+        
+        List<Message> messages;
+        if (after != null) {
+            Message cursor = findCursor(after, conversationId);
+            if (cursor == null) {
+                return emptyPage();
             }
-        });
+            messages = messageRepository.findAfterInConversation(conversation, cursor.getTimestamp(), cursor.getId(), limit);
+        } else if (before != null) {
+            Message cursor = findCursor(before, conversationId);
+            if (cursor == null) {
+                return emptyPage();
+            }
+            messages = messageRepository.findBeforeInConversation(conversation, cursor.getTimestamp(), cursor.getId(), limit);
+        } else {
+            messages = messageRepository.findLatestInConversation(conversation, limit);
+        }
         
-        return messages.stream()
-                .map(this::convertToDTO)
+        boolean hasMore = messages.size() > pageSize;
+        List<MessageDTO> page = messages.stream()
+                .limit(pageSize)
+                .map(message -> convertToDTO(message, watermarks))
                 .collect(Collectors.toList());
+        
+        // Backward pages are fetched newest first; always return oldest first
+        if (after == null) {
+            Collections.reverse(page);
+        }
+        return toPage(page, hasMore, after != null);
     }
     
-    public MessageDTO sendMessage(ChatMessage chatMessage, Long senderId) {
-        User sender = userService.getUserEntityById(senderId);
-        User recipient = userService.getUserEntityById(chatMessage.getRecipientId());
-        Conversation conversation = conversationRepository.findById(chatMessage.getConversationId()).orElse(null);
-        
-        if (sender == null || recipient == null || conversation == null) {
-            return null;
+    public MessagePageDTO searchMessages(Long userId, String query, Long before, int size) {
+        if (userService.getUserEntityById(userId) == null) {
+            return emptyPage();
         }
         
-        Message message = new Message();
-        message.setConversation(conversation);
-        message.setSender(sender);
-        message.setRecipient(recipient);
-        message.setText(chatMessage.getText());
-        message.setTimestamp(LocalDateTime.now());
-        message.setRead(false);
-        
-        message = messageRepository.save(message);
+        Timer.Sample search = Timer.start(meterRegistry);
+        int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        MessageSearchIndex.Hits hits = searchIndex.search(userId, query, before, pageSize + 1);
+        search.stop(meterRegistry.timer("messaging.message.search"));
         
-        // Update conversation last message time
-        conversation.setLastMessageAt(message.getTimestamp());
-        conversationRepository.save(conversation);
+        boolean hasMore = hits.getIds().size() > pageSize;
+        List<Long> pageIds = hasMore ? hits.getIds().subList(0, pageSize) : hits.getIds();
         
-        MessageDTO messageDTO = convertToDTO(message);
+        // The index picks the page by id and only holds ids; the page is loaded by primary key and put in history order.
+        // A message committed out of id order can therefore land one page away from where its timestamp would put it
+        List<MessageRecord> page = pageIds.isEmpty() ? List.of()
+                : messageRepository.findRecordsByIdIn(pageIds).stream()
+                        .sorted(NEWEST_FIRST)
+                        .collect(Collectors.toList());
         
-        // Send message to recipient via WebSocket
-        messagingTemplate.convertAndSendToUser(
-                recipient.getId().toString(),
-                "/queue/messages",
-                messageDTO
-        );
+        // Watermarks of every conversation on the page, keyed by conversation then user
+        Map<Long, Map<Long, ConversationReadState>> watermarks = new HashMap<>();
+        Set<Long> conversationIds = page.stream()
+                .map(MessageRecord::getConversationId)
+                .collect(Collectors.toSet());
+        if (!conversationIds.isEmpty()) {
+            for (ConversationReadState readState : readStateRepository.findByConversationIds(conversationIds)) {
+                watermarks.computeIfAbsent(readState.getConversation().getId(), key -> new HashMap<>())
+                        .put(readState.getUser().getId(), readState);
+            }
+        }
         
-        return messageDTO;
+        // Search results are newest first; the cursor continues below the lowest id on the page
+        MessagePageDTO pageDTO = new MessagePageDTO();
+        pageDTO.setMessages(page.stream()
+                .map(hit -> convertToDTO(hit, watermarks.getOrDefault(hit.getConversationId(), Map.of())))
+                .collect(Collectors.toList()));
+        pageDTO.setHasMore(hasMore);
+        if (hasMore) {
+            pageDTO.setNextCursor(pageIds.get(pageIds.size() - 1));
+        }
+        pageDTO.setPartial(!hits.isComplete());
+        return pageDTO;
     }
     
-    public int countUnreadMessages(Long userId) {
-        User user = userService.getUserEntityById(userId);
-        if (user == null) {
-            return 0;
+    /**
+     * Persists and delivers a chat message. The recipient's copy, the inbox
+     * updates and every piece of derived state (unread counts, search index,
+     * recent message cache) only follow once the message has committed. The
+     * sender gets its own copy on {@code /user/queue/sent}, after the commit or,
+     * with write-behind and {@code ack=enqueue}, once the message is queued, and
+     * an error on {@code /user/queue/errors} if the message is refused or lost.
+     */
+    public void sendMessage(ChatMessage chatMessage, Long senderId) {
+        Timer.Sample send = Timer.start(meterRegistry);
+        String outcome = "unknown";
+        try {
+            Timer.Sample stage = Timer.start(meterRegistry);
+            User sender = userService.getUserEntityById(senderId);
+            User recipient = userService.getUserEntityById(chatMessage.getRecipientId());
+            Conversation conversation = conversationRepository.findById(chatMessage.getConversationId()).orElse(null);
+            stage.stop(stageTimer("lookup"));
+            
+            if (sender == null || recipient == null || conversation == null) {
+                outcome = "not_found";
+                sendError(senderId, chatMessage, "not_found");
+                return;
+            }
+            
+            Message message = new Message();
+            message.setConversation(conversation);
+            message.setSender(sender);
+            message.setRecipient(recipient);
+            message.setText(chatMessage.getText());
+            message.setTimestamp(LocalDateTime.now().truncatedTo(ChronoUnit.MICROS));
+            
+            stage = Timer.start(meterRegistry);
+            if (persistenceService.isWriteBehind()) {
+                boolean commitAcks = "commit".equals(ackMode);
+                Timer.Sample commit = Timer.start(meterRegistry);
+                boolean queued = persistenceService.enqueue(message, failure -> {
+                    commit.stop(stageTimer("commit"));
+                    if (failure != null) {
+                        sendError(senderId, chatMessage, "persist_failed");
+                    } else {
+                        deliver(message, chatMessage.getClientMessageId(), commitAcks);
+                    }
+                });
+                stage.stop(stageTimer("persist"));
+                
+                if (!queued) {
+                    logger.warn("Message persistence queue is full; rejected message from user {}", senderId);
+                    outcome = "rejected";
+                    sendError(senderId, chatMessage, "overloaded");
+                    return;
+                }
+                if (!commitAcks) {
+                    acknowledge(message, chatMessage.getClientMessageId());
+                }
+                outcome = "queued";
+                return;
+            }
+            
+            Message saved;
+            try {
+                saved = persistenceService.saveNow(message);
+            } catch (RuntimeException e) {
+                logger.error("Failed to persist message from user {}", senderId, e);
+                outcome = "failed";
+                sendError(senderId, chatMessage, "persist_failed");
+                return;
+            }
+            stage.stop(stageTimer("persist"));
+            
+            deliver(saved, chatMessage.getClientMessageId(), true);
+            outcome = "success";
+        } finally {
+            send.stop(meterRegistry.timer("messaging.message.send", "outcome", outcome));
         }
-        
-        return messageRepository.countUnreadMessages(user);
+    }
+    
+    public int countUnreadMessages(Long userId) {
+        return unreadCounterService.getUnreadMessages(userId);
     }
     
     public int countUnreadMessagesInConversation(Long conversationId, Long userId) {
+        return unreadCounterService.getUnreadMessages(userId, conversationId);
+    }
+    
+    public void markMessagesAsRead(Long conversationId, Long userId) {
         User user = userService.getUserEntityById(userId);
         Conversation conversation = conversationRepository.findById(conversationId).orElse(null);
         
         if (user == null || conversation == null) {
-            return 0;
+            return;
         }
         
-        return messageRepository.countUnreadMessagesInConversation(conversation, user);
+        advanceReadWatermark(conversation, user);
     }
     
-    public void markMessagesAsRead(Long conversationId, Long userId) {
-        User user = userService.getUserEntityById(userId);
-        Conversation conversation = conversationRepository.findById(conversationId).orElse(null);
+    private void advanceReadWatermark(Conversation conversation, User user) {
+        RecentMessageCache.Window window = recentMessageCache.get(conversation);
+        MessageRecord latest = window != null ? window.latest()
+                : messageRepository.findLatestInConversation(conversation, PageRequest.of(0, 1)).stream()
+                        .findFirst().map(MessageRecord::of).orElse(null);
+        if (latest == null) {
+            return;
+        }
         
-        if (user == null || conversation == null) {
+        // Already read up to the latest message: nothing to write or publish
+        if (readStateRepository.advanceWatermark(conversation, user, latest.getTimestamp(), latest.getId()) == 0
+                && !createReadState(conversation, user, latest)) {
             return;
         }
         
-        List<Message> messages = messageRepository.findByConversationOrderByTimestampAsc(conversation);
-        messages.forEach(message -> {
-            if (message.getRecipient().getId().equals(userId) && !message.isRead()) {
-                message.setRead(true);
-                messageRepository.save(message);
-            }
+        changeVersions.stamp(version -> {
+            summaryRepository.touch(conversation.getId(), user.getId(), version);
+            return summaryRepository.markLastMessageRead(conversation, user.getId(), latest.getTimestamp(), latest.getId(), version);
         });
+        unreadCounterService.conversationRead(user.getId(), conversation.getId());
+        inboxPublisher.conversationRead(user.getId(), conversation.getId());
+    }
+    
+    // Conversations from before read states were created with them may have no row; when two reads race to
+    // insert it, the loser retries the conditional update. False when the watermark did not move
+    private boolean createReadState(Conversation conversation, User user, MessageRecord latest) {
+        if (readStateRepository.findByConversationAndUser(conversation, user).isPresent()) {
+            return false;
+        }
+        ConversationReadState readState = new ConversationReadState(conversation, user);
+        readState.setLastReadTimestamp(latest.getTimestamp());
+        readState.setLastReadMessageId(latest.getId());
+        try {
+            readStateRepository.save(readState);
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            return readStateRepository.advanceWatermark(conversation, user, latest.getTimestamp(), latest.getId()) > 0;
+        }
+    }
+    
+    // Only called with a committed message, so nothing derived from it can outlive a failed write
+    private void deliver(Message message, String clientMessageId, boolean acknowledge) {
+        Timer.Sample stage = Timer.start(meterRegistry);
+        searchIndex.add(message);
+        recentMessageCache.append(message);
+        stage.stop(stageTimer("index"));
+        
+        stage = Timer.start(meterRegistry);
+        Long recipientId = message.getRecipient().getId();
+        unreadCounterService.messageReceived(recipientId, message.getConversation().getId());
+        
+        MessageDTO messageDTO = convertToDTO(message, Map.of());
+        
+        // Send message to recipient via WebSocket, kept for replay if they reconnect
+        userEventBuffer.sendToUser(recipientId, "/queue/messages", messageDTO);
+        inboxPublisher.messageSent(recipientId, messageDTO);
+        inboxPublisher.messageSent(message.getSender().getId(), messageDTO);
+        if (acknowledge) {
+            acknowledge(message, clientMessageId);
+        }
+        stage.stop(stageTimer("deliver"));
+    }
+    
+    private void acknowledge(Message message, String clientMessageId) {
+        MessageDTO sent = convertToDTO(message, Map.of());
+        sent.setClientMessageId(clientMessageId);
+        userEventBuffer.sendToUser(message.getSender().getId(), SENT_DESTINATION, sent);
+    }
+    
+    private void sendError(Long senderId, ChatMessage chatMessage, String reason) {
+        if (senderId != null) {
+            userEventBuffer.sendToUser(senderId, ERRORS_DESTINATION,
+                    new MessageErrorDTO(chatMessage.getClientMessageId(), chatMessage.getConversationId(), reason));
+        }
+    }
+    
+    // Null when the page reaches past the cached window
+    private MessagePageDTO pageFromWindow(RecentMessageCache.Window window, Long before, Long after, int pageSize,
+                                          Map<Long, ConversationReadState> watermarks) {
+        RecentMessageCache.Page cached = window.page(before, after, pageSize);
+        if (cached == null) {
+            return null;
+        }
+        
+        List<MessageDTO> page = cached.getRecords().stream()
+                .map(record -> convertToDTO(record, watermarks))
+                .collect(Collectors.toList());
+        return toPage(page, cached.hasMore(), after != null);
+    }
+    
+    // Pages are oldest first; the cursor continues past the last message forwards, before the first backwards
+    private MessagePageDTO toPage(List<MessageDTO> page, boolean hasMore, boolean forward) {
+        MessagePageDTO pageDTO = new MessagePageDTO();
+        pageDTO.setMessages(page);
+        pageDTO.setHasMore(hasMore);
+        if (hasMore && !page.isEmpty()) {
+            pageDTO.setNextCursor(forward ? page.get(page.size() - 1).getId() : page.get(0).getId());
+        }
+        return pageDTO;
+    }
+    
+    private Map<Long, ConversationReadState> getReadWatermarks(Conversation conversation) {
+        return readStateRepository.findByConversation(conversation).stream()
+                .collect(Collectors.toMap(state -> state.getUser().getId(), state -> state));
+    }
+    
+    private Message findCursor(Long messageId, Long conversationId) {
+        return messageRepository.findById(messageId)
+                .filter(message -> message.getConversation().getId().equals(conversationId))
+                .orElse(null);
+    }
+    
+    private MessagePageDTO emptyPage() {
+        MessagePageDTO page = new MessagePageDTO();
+        page.setMessages(List.of());
+        page.setHasMore(false);
+        return page;
+    }
+    
+    private Timer stageTimer(String stage) {
+        return meterRegistry.timer("messaging.message.send.stage", "stage", stage);
+    }
+    
+    private MessageDTO convertToDTO(MessageRecord message, Map<Long, ConversationReadState> watermarks) {
+        MessageDTO dto = new MessageDTO();
+        dto.setId(message.getId());
+        dto.setConversationId(message.getConversationId());
+        dto.setSenderId(message.getSenderId());
+        dto.setRecipientId(message.getRecipientId());
+        dto.setText(message.getText());
+        dto.setTimestamp(message.getTimestamp());
+        ConversationReadState readState = watermarks.get(message.getRecipientId());
+        dto.setRead(readState != null && readState.hasRead(message.getTimestamp(), message.getId()));
+        return dto;
     }
     
-    private MessageDTO convertToDTO(Message message) {
+    private MessageDTO convertToDTO(Message message, Map<Long, ConversationReadState> watermarks) {
         MessageDTO dto = new MessageDTO();
         dto.setId(message.getId());
         dto.setConversationId(message.getConversation().getId());
@@ -132,7 +432,8 @@ public class MessageService {
         dto.setRecipientId(message.getRecipient().getId());
         dto.setText(message.getText());
         dto.setTimestamp(message.getTimestamp());
-        dto.setRead(message.isRead());
+        ConversationReadState readState = watermarks.get(message.getRecipient().getId());
+        dto.setRead(readState != null && readState.hasRead(message.getTimestamp(), message.getId()));
         return dto;
     }
 }
\ No newline at end of file
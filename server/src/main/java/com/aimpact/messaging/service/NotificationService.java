@@ -1,60 +1,139 @@
 package com.aimpact.messaging.service;
 
 import com.aimpact.messaging.dto.NotificationDTO;
-import com.aimpact.messaging.dto.UserDTO;
+import com.aimpact.messaging.model.BroadcastNotification;
+import com.aimpact.messaging.model.BroadcastReceipt;
 import com.aimpact.messaging.model.Notification;
 import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.BroadcastNotificationRepository;
+import com.aimpact.messaging.repository.BroadcastReceiptRepository;
 import com.aimpact.messaging.repository.NotificationRepository;
+import com.aimpact.messaging.websocket.FanOutCounter;
+import com.aimpact.messaging.websocket.InboxPublisher;
 import com.aimpact.messaging.websocket.NotificationMessage;
+import com.aimpact.messaging.websocket.UserEventBuffer;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class NotificationService {
     
+    public static final String BROADCAST_TOPIC = "/topic/notifications";
+    
+    private static final Comparator<NotificationDTO> NEWEST_FIRST =
+            Comparator.comparing(NotificationDTO::getTimestamp, Comparator.nullsLast(Comparator.reverseOrder()));
+    
     @Autowired
     private NotificationRepository notificationRepository;
     
+    @Autowired
+    private BroadcastNotificationRepository broadcastRepository;
+    
+    @Autowired
+    private BroadcastReceiptRepository receiptRepository;
+    
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private ChangeVersionAllocator changeVersions;
+    
+    @Autowired
+    private UnreadCounterService unreadCounterService;
+    
     @Autowired
     private SimpMessagingTemplate messagingTemplate;
     
+    @Autowired
+    private UserEventBuffer userEventBuffer;
+    
+    @Autowired
+    private InboxPublisher inboxPublisher;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
     public List<NotificationDTO> getNotificationsForUser(Long userId) {
         User user = userService.getUserEntityById(userId);
         if (user == null) {
             return List.of();
         }
         
-        return notificationRepository.findByRecipientOrderByTimestampDesc(user).stream()
-                .map(this::convertToDTO)
+        Stream<NotificationDTO> direct = notificationRepository.findByRecipientOrderByTimestampDesc(user).stream()
+                .map(this::convertToDTO);
+        Stream<NotificationDTO> broadcasts = broadcastRepository.findForUserWithReceipts(userId, user.getCreatedAt()).stream()
+                .map(row -> convertToDTO((BroadcastNotification) row[0], row[1] != null));
+        
+        return Stream.concat(direct, broadcasts)
+                .sorted(NEWEST_FIRST)
                 .collect(Collectors.toList());
     }
     
-    public List<NotificationDTO> getUnreadNotificationsForUser(Long userId) {
+    // Notifications created or read after the given version, in the same order as the full list
+    public List<NotificationDTO> getNotificationChangesForUser(Long userId, long since) {
         User user = userService.getUserEntityById(userId);
         if (user == null) {
             return List.of();
         }
         
-        return notificationRepository.findByRecipientAndReadFalseOrderByTimestampDesc(user).stream()
-                .map(this::convertToDTO)
+        Stream<NotificationDTO> direct = notificationRepository.findByRecipientAndChangeVersionGreaterThanOrderByTimestampDesc(user, since)
+                .stream()
+                .map(this::convertToDTO);
+        Stream<NotificationDTO> broadcasts = broadcastRepository.findChangesForUserWithReceipts(userId, user.getCreatedAt(), since).stream()
+                .map(row -> convertToDTO((BroadcastNotification) row[0], row[1] != null));
+        
+        return Stream.concat(direct, broadcasts)
+                .sorted(NEWEST_FIRST)
                 .collect(Collectors.toList());
     }
     
-    public int countUnreadNotifications(Long userId) {
+    // Highest change version among the user's notifications, broadcasts and broadcast receipts, held below any still being written
+    public long getNotificationsVersion(Long userId) {
         User user = userService.getUserEntityById(userId);
         if (user == null) {
             return 0;
         }
         
-        return notificationRepository.countUnreadNotifications(user);
+        // Each is null until the first row of its kind exists
+        long latest = Stream.of(notificationRepository.findLatestChangeVersion(user),
+                        broadcastRepository.findLatestChangeVersion(),
+                        receiptRepository.findLatestChangeVersion(userId))
+                .filter(Objects::nonNull)
+                .mapToLong(Long::longValue)
+                .max()
+                .orElse(0);
+        return changeVersions.settled(latest);
+    }
+    
+    public List<NotificationDTO> getUnreadNotificationsForUser(Long userId) {
+        User user = userService.getUserEntityById(userId);
+        if (user == null) {
+            return List.of();
+        }
+        
+        Stream<NotificationDTO> direct = notificationRepository.findByRecipientAndReadFalseOrderByTimestampDesc(user).stream()
+                .map(this::convertToDTO);
+        Stream<NotificationDTO> broadcasts = broadcastRepository.findUnreadForUser(userId, user.getCreatedAt()).stream()
+                .map(broadcast -> convertToDTO(broadcast, false));
+        
+        return Stream.concat(direct, broadcasts)
+                .sorted(NEWEST_FIRST)
+                .collect(Collectors.toList());
+    }
+    
+    public int countUnreadNotifications(Long userId) {
+        return unreadCounterService.getUnreadNotifications(userId);
     }
     
     public NotificationDTO markNotificationAsRead(Long notificationId, Long userId) {
@@ -68,17 +147,50 @@ public class NotificationService {
             return null;
         }
         
-        notification.setRead(true);
-        notification = notificationRepository.save(notification);
+        if (!notification.isRead()) {
+            // Only the request whose update marked it read takes it off the counter
+            if (changeVersions.stamp(version -> notificationRepository.markRead(notificationId, version)) > 0) {
+                unreadCounterService.notificationRead(userId);
+                inboxPublisher.countsChanged(userId);
+            }
+            notification.setRead(true);
+        }
         
         return convertToDTO(notification);
     }
     
+    public NotificationDTO markBroadcastAsRead(Long broadcastId, Long userId) {
+        User user = userService.getUserEntityById(userId);
+        if (user == null) {
+            return null;
+        }
+        
+        BroadcastNotification broadcast = broadcastRepository.findById(broadcastId).orElse(null);
+        if (broadcast == null || (broadcast.getSender() != null && broadcast.getSender().getId().equals(userId))
+                || (user.getCreatedAt() != null && broadcast.getTimestamp().isBefore(user.getCreatedAt()))) {
+            return null;
+        }
+        
+        // Read state is only materialized once a user actually reads the broadcast
+        if (!receiptRepository.existsByBroadcastIdAndUserId(broadcastId, userId)) {
+            try {
+                changeVersions.stamp(version -> receiptRepository.save(new BroadcastReceipt(broadcast, user, version)));
+                unreadCounterService.broadcastRead(userId);
+                inboxPublisher.countsChanged(userId);
+            } catch (DataIntegrityViolationException e) {
+                // A concurrent request already recorded the receipt
+            }
+        }
+        
+        return convertToDTO(broadcast, true);
+    }
+    
     public void sendNotification(NotificationMessage notificationMessage, Long senderId) {
         if (notificationMessage.getRecipientIds() == null || notificationMessage.getRecipientIds().isEmpty()) {
             return;
         }
         
+        int delivered = 0;
         for (Long recipientId : notificationMessage.getRecipientIds()) {
             User recipient = userService.getUserEntityById(recipientId);
             if (recipient == null) {
@@ -93,52 +205,45 @@ public class NotificationService {
             notification.setTimestamp(LocalDateTime.now());
             notification.setRead(false);
             
-            notification = notificationRepository.save(notification);
+            Notification saved = changeVersions.stamp(version -> {
+                notification.setChangeVersion(version);
+                return notificationRepository.save(notification);
+            });
+            unreadCounterService.notificationReceived(recipient.getId());
             
-            NotificationDTO notificationDTO = convertToDTO(notification);
+            NotificationDTO notificationDTO = convertToDTO(saved);
             
-            // Send notification to recipient via WebSocket
-            messagingTemplate.convertAndSendToUser(
-                    recipient.getId().toString(),
-                    "/queue/notifications",
-                    notificationDTO
-            );
+            // Send notification to recipient via WebSocket, kept for replay if they reconnect
+            userEventBuffer.sendToUser(recipient.getId(), "/queue/notifications", notificationDTO);
+            inboxPublisher.countsChanged(recipient.getId());
+            delivered++;
         }
+        recordFanOut("direct", delivered);
     }
     
     public void sendNotificationToAll(NotificationMessage notificationMessage, Long senderId) {
-        // Get all users
-        List<UserDTO> users = userService.getAllUsers();
+        // Store the broadcast once; per-user read state is created lazily on read
+        BroadcastNotification broadcast = new BroadcastNotification();
+        broadcast.setSender(senderId != null ? userService.getUserEntityById(senderId) : null);
+        broadcast.setTitle(notificationMessage.getTitle());
+        broadcast.setMessage(notificationMessage.getMessage());
+        broadcast.setType(notificationMessage.getType());
+        broadcast.setTimestamp(LocalDateTime.now());
         
-        for (UserDTO user : users) {
-            if (user.getId().equals(senderId)) {
-                continue; // Skip sender
-            }
-            
-            User recipient = userService.getUserEntityById(user.getId());
-            if (recipient == null) {
-                continue;
-            }
-            
-            Notification notification = new Notification();
-            notification.setRecipient(recipient);
-            notification.setTitle(notificationMessage.getTitle());
-            notification.setMessage(notificationMessage.getMessage());
-            notification.setType(notificationMessage.getType());
-            notification.setTimestamp(LocalDateTime.now());
-            notification.setRead(false);
-            
-            notification = notificationRepository.save(notification);
-            
-            NotificationDTO notificationDTO = convertToDTO(notification);
-            
-            // Send notification to recipient via WebSocket
-            messagingTemplate.convertAndSendToUser(
-                    recipient.getId().toString(),
-                    "/queue/notifications",
-                    notificationDTO
-            );
-        }
+        BroadcastNotification saved = changeVersions.stamp(version -> {
+            broadcast.setChangeVersion(version);
+            return broadcastRepository.save(broadcast);
+        });
+        unreadCounterService.broadcastSent(saved.getSender() != null ? saved.getSender().getId() : null);
+        
+        // Single publish to the shared topic; clients ignore their own broadcasts
+        AtomicInteger recipients = new AtomicInteger();
+        messagingTemplate.convertAndSend(BROADCAST_TOPIC, convertToDTO(saved, false), FanOutCounter.headers(recipients));
+        recordFanOut("broadcast", recipients.get());
+    }
+    
+    private void recordFanOut(String kind, int deliveries) {
+        meterRegistry.summary("messaging.notification.fanout", "kind", kind).record(deliveries);
     }
     
     private NotificationDTO convertToDTO(Notification notification) {
@@ -151,4 +256,19 @@ public class NotificationService {
         dto.setRead(notification.isRead());
         return dto;
     }
+    
+    private NotificationDTO convertToDTO(BroadcastNotification broadcast, boolean read) {
+        NotificationDTO dto = new NotificationDTO();
+        dto.setId(broadcast.getId());
+        dto.setTitle(broadcast.getTitle());
+        dto.setMessage(broadcast.getMessage());
+        dto.setType(broadcast.getType());
+        dto.setTimestamp(broadcast.getTimestamp());
+        dto.setRead(read);
+        dto.setBroadcast(true);
+        if (broadcast.getSender() != null) {
+            dto.setSenderId(broadcast.getSender().getId());
+        }
+        return dto;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,305 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory registry of who is online, keyed by user id.
+ * <p>
+ * A user is online while they hold at least one WebSocket session, or while
+ * they have declared themselves online over REST and keep sending activity
+ * heartbeats within the presence timeout. Connects, disconnects and heartbeats
+ * only touch memory; changed {@code isOnline}/{@code lastActive} values are
+ * written back to the users table in periodic batches, after which offline
+ * users are dropped from the registry.
+ */
+@Service
+public class PresenceService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PresenceService.class);
+    
+    @Autowired
+    private UserRepository userRepository;
+    
+    @Autowired
+    private UserCache userCache;
+    
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    
+    @Value("${messaging.presence.timeout-ms:90000}")
+    private long presenceTimeoutMs;
+    
+    @Value("${messaging.presence.idle-after-ms:300000}")
+    private long idleAfterMs;
+    
+    @Value("${messaging.presence.flush-on-shutdown:true}")
+    private boolean flushOnShutdown;
+    
+    private final ConcurrentHashMap<Long, Presence> registry = new ConcurrentHashMap<>();
+    
+    // Users touched since the last drainStatusChanges(), and the deadlines at which a status changes on its own
+    private final Set<Long> changed = ConcurrentHashMap.newKeySet();
+    
+    private final PriorityBlockingQueue<StatusCheck> checks = new PriorityBlockingQueue<>();
+    
+    public void sessionConnected(Long userId, String sessionId) {
+        update(userId, presence -> {
+            presence.sessions.add(sessionId);
+            presence.lastActive = LocalDateTime.now();
+        });
+    }
+    
+    public void sessionDisconnected(Long userId, String sessionId) {
+        update(userId, presence -> {
+            presence.sessions.remove(sessionId);
+            presence.lastActive = LocalDateTime.now();
+        });
+    }
+    
+    public void declareStatus(Long userId, boolean isOnline) {
+        update(userId, presence -> {
+            presence.declaredOnline = isOnline;
+            presence.lastActive = LocalDateTime.now();
+        });
+    }
+    
+    public void touch(Long userId) {
+        update(userId, presence -> presence.lastActive = LocalDateTime.now());
+    }
+    
+    public boolean isOnline(Long userId) {
+        Presence presence = registry.get(userId);
+        return presence != null && presence.isOnline(LocalDateTime.now(), presenceTimeout());
+    }
+    
+    public LocalDateTime getLastActive(Long userId) {
+        Presence presence = registry.get(userId);
+        return presence == null ? null : presence.lastActive;
+    }
+    
+    public int getSessionCount(Long userId) {
+        Presence presence = registry.get(userId);
+        return presence == null ? 0 : presence.sessions.size();
+    }
+    
+    /**
+     * Current status of every user whose status may have changed since the
+     * last call: users with a connect, disconnect, declaration or heartbeat in
+     * between, and users whose idle or heartbeat deadline has since passed.
+     * Users without an entry are reported offline.
+     */
+    public Map<Long, Status> drainStatusChanges() {
+        LocalDateTime now = LocalDateTime.now();
+        Set<Long> userIds = new HashSet<>();
+        for (Iterator<Long> iterator = changed.iterator(); iterator.hasNext(); ) {
+            userIds.add(iterator.next());
+            iterator.remove();
+        }
+        for (StatusCheck check = checks.peek(); check != null && !check.at.isAfter(now); check = checks.peek()) {
+            userIds.add(checks.poll().userId);
+        }
+        
+        Duration timeout = presenceTimeout();
+        Duration idleAfter = Duration.ofMillis(idleAfterMs);
+        Map<Long, Status> statuses = new HashMap<>();
+        for (Long userId : userIds) {
+            Presence presence = registry.get(userId);
+            if (presence == null) {
+                statuses.put(userId, Status.OFFLINE);
+                continue;
+            }
+            
+            if (!presence.isOnline(now, timeout)) {
+                statuses.put(userId, Status.OFFLINE);
+            } else if (presence.lastActive != null && !presence.lastActive.plus(idleAfter).isAfter(now)) {
+                statuses.put(userId, Status.IDLE);
+            } else {
+                statuses.put(userId, Status.ONLINE);
+            }
+            
+            // One pending check per user, for the next time its status can change without an event
+            LocalDateTime next = presence.nextTransition(now, timeout, idleAfter);
+            if (next != null && !next.equals(presence.checkAt)) {
+                presence.checkAt = next;
+                checks.add(new StatusCheck(next, userId));
+            }
+        }
+        return statuses;
+    }
+    
+    public List<Long> getOnlineUserIds() {
+        LocalDateTime now = LocalDateTime.now();
+        Duration timeout = presenceTimeout();
+        return registry.entrySet().stream()
+                .filter(entry -> entry.getValue().isOnline(now, timeout))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void resetPersistedStatus() {
+        // The registry starts empty, so nobody is online until they connect again
+        userRepository.markAllOffline();
+        userCache.invalidateAll();
+    }
+    
+    // Runs before the datasource is closed, unlike @PreDestroy. Off for the in-memory default
+    // database, which is closed by the JVM's own shutdown hook and discarded anyway
+    @EventListener(ContextClosedEvent.class)
+    public void flushOnShutdown() {
+        if (flushOnShutdown) {
+            flush();
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${messaging.presence.flush-interval-ms:5000}")
+    public void flush() {
+        LocalDateTime now = LocalDateTime.now();
+        Duration timeout = presenceTimeout();
+        
+        Map<Long, Presence> changed = new HashMap<>();
+        registry.forEach((userId, presence) -> {
+            if (presence.isOnline(now, timeout) != presence.persistedOnline
+                    || !Objects.equals(presence.lastActive, presence.persistedLastActive)) {
+                changed.put(userId, presence);
+            }
+        });
+        
+        if (!changed.isEmpty()) {
+            // A template rather than @Transactional, so the shutdown path gets a transaction too
+            Map<Presence, User> written = new TransactionTemplate(transactionManager)
+                    .execute(status -> writeChanges(changed, now, timeout));
+            written.forEach((presence, user) -> {
+                presence.persistedOnline = user.isOnline();
+                presence.persistedLastActive = user.getLastActive();
+            });
+            userCache.invalidate(changed.keySet());
+            logger.debug("Flushed presence for {} users", written.size());
+        }
+        evictOffline(now, timeout);
+    }
+    
+    // The user row written for each presence, recorded as persisted only once the transaction commits
+    private Map<Presence, User> writeChanges(Map<Long, Presence> changed, LocalDateTime now, Duration timeout) {
+        Map<Presence, User> written = new HashMap<>();
+        for (User user : userRepository.findAllById(changed.keySet())) {
+            Presence presence = changed.get(user.getId());
+            user.setOnline(presence.isOnline(now, timeout));
+            user.setLastActive(presence.lastActive);
+            written.put(presence, user);
+        }
+        userRepository.saveAll(written.values());
+        return written;
+    }
+    
+    // Offline users whose state is already in the users table need no entry; their lastActive is read from there
+    private void evictOffline(LocalDateTime now, Duration timeout) {
+        for (Long userId : registry.keySet()) {
+            registry.computeIfPresent(userId, (id, presence) -> presence.isEvictable(now, timeout) ? null : presence);
+        }
+    }
+    
+    // Runs under the map's lock for the user, so an entry is never evicted halfway through a change
+    private void update(Long userId, Consumer<Presence> change) {
+        registry.compute(userId, (id, presence) -> {
+            Presence updated = presence != null ? presence : new Presence();
+            change.accept(updated);
+            return updated;
+        });
+        changed.add(userId);
+    }
+    
+    private Duration presenceTimeout() {
+        return Duration.ofMillis(presenceTimeoutMs);
+    }
+    
+    public enum Status {
+        ONLINE, IDLE, OFFLINE
+    }
+    
+    private static class Presence {
+        
+        private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+        
+        private volatile boolean declaredOnline;
+        
+        private volatile LocalDateTime lastActive;
+        
+        private volatile boolean persistedOnline;
+        
+        private volatile LocalDateTime persistedLastActive;
+        
+        private volatile LocalDateTime checkAt;
+        
+        private boolean isOnline(LocalDateTime now, Duration timeout) {
+            if (!sessions.isEmpty()) {
+                return true;
+            }
+            return declaredOnline && lastActive != null && lastActive.plus(timeout).isAfter(now);
+        }
+        
+        // Going idle, or offline once the heartbeats of a REST-declared presence stop
+        private LocalDateTime nextTransition(LocalDateTime now, Duration timeout, Duration idleAfter) {
+            if (lastActive == null || !isOnline(now, timeout)) {
+                return null;
+            }
+            
+            LocalDateTime idleAt = lastActive.plus(idleAfter);
+            LocalDateTime next = idleAt.isAfter(now) ? idleAt : null;
+            if (sessions.isEmpty()) {
+                LocalDateTime expiresAt = lastActive.plus(timeout);
+                if (next == null || expiresAt.isBefore(next)) {
+                    next = expiresAt;
+                }
+            }
+            return next;
+        }
+        
+        private boolean isEvictable(LocalDateTime now, Duration timeout) {
+            return !isOnline(now, timeout) && !persistedOnline && Objects.equals(lastActive, persistedLastActive);
+        }
+    }
+    
+    private static class StatusCheck implements Comparable<StatusCheck> {
+        
+        private final LocalDateTime at;
+        
+        private final Long userId;
+        
+        private StatusCheck(LocalDateTime at, Long userId) {
+            this.at = at;
+            this.userId = userId;
+        }
+        
+        @Override
+        public int compareTo(StatusCheck other) {
+            return at.compareTo(other.at);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.Message;
+import com.aimpact.messaging.repository.MessageRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The most recent messages of each conversation, so opening a busy thread or
+ * reading its last message does not query the messages table.
+ * <p>
+ * A conversation's window holds its newest {@code messages-per-conversation}
+ * messages encoded in a ring buffer allocated once per window, on the heap
+ * or, in off-heap mode, in direct memory so the payload is invisible to the
+ * garbage collector. Windows are loaded on first read, appended to in place by
+ * {@link MessageService#sendMessage} once a message has committed and evicted
+ * by Caffeine's W-TinyLFU policy once their encoded size exceeds
+ * {@code max-bytes}. A window is never appended to while absent, so it never
+ * holds a message the database does not.
+ */
+@Component
+public class RecentMessageCache {
+    
+    // id, sender id, recipient id, epoch second, nanos and text length ahead of the UTF-8 text
+    private static final int RECORD_HEADER_BYTES = 8 + 8 + 8 + 8 + 4 + 4;
+    
+    // Text size a new window is sized for, per message
+    private static final int EXPECTED_TEXT_BYTES = 64;
+    
+    // Object headers kept on the heap for every window, next to its id and offset rings
+    private static final int WINDOW_OVERHEAD_BYTES = 96;
+    
+    @Autowired
+    private MessageRepository messageRepository;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${messaging.message-cache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${messaging.message-cache.messages-per-conversation:50}")
+    private int messagesPerConversation;
+    
+    @Value("${messaging.message-cache.max-bytes:67108864}")
+    private long maxBytes;
+    
+    @Value("${messaging.message-cache.storage:heap}")
+    private String storage;
+    
+    private boolean offHeap;
+    
+    private Cache<Long, Window> windows;
+    
+    @PostConstruct
+    public void init() {
+        offHeap = "off-heap".equals(storage);
+        windows = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Long conversationId, Window window) -> window.weight())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, windows, "recentMessages");
+    }
+    
+    public int getMessagesPerConversation() {
+        return messagesPerConversation;
+    }
+    
+    /**
+     * The window of a conversation, loaded from the database on a miss, or
+     * null when the cache is disabled.
+     */
+    public Window get(Conversation conversation) {
+        if (!enabled) {
+            return null;
+        }
+        return windows.get(conversation.getId(), conversationId -> load(conversation));
+    }
+    
+    // Returning the window makes Caffeine weigh it again, as appending may have grown its buffer
+    public void append(Message message) {
+        if (!enabled) {
+            return;
+        }
+        MessageRecord record = MessageRecord.of(message);
+        windows.asMap().computeIfPresent(record.getConversationId(), (conversationId, window) -> {
+            window.append(record);
+            return window;
+        });
+    }
+    
+    private Window load(Conversation conversation) {
+        List<Message> newestFirst = messageRepository.findLatestInConversation(conversation,
+                PageRequest.of(0, messagesPerConversation + 1));
+        boolean hasOlder = newestFirst.size() > messagesPerConversation;
+        
+        List<MessageRecord> records = new ArrayList<>();
+        for (Message message : newestFirst.subList(0, Math.min(newestFirst.size(), messagesPerConversation))) {
+            records.add(MessageRecord.of(message));
+        }
+        Collections.reverse(records);
+        return new Window(conversation.getId(), records, hasOlder);
+    }
+    
+    /**
+     * A page of records from a window, oldest first.
+     */
+    public static class Page {
+        
+        private final List<MessageRecord> records;
+        
+        private final boolean hasMore;
+        
+        Page(List<MessageRecord> records, boolean hasMore) {
+            this.records = records;
+            this.hasMore = hasMore;
+        }
+        
+        public List<MessageRecord> getRecords() {
+            return records;
+        }
+        
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+    
+    /**
+     * A conversation's newest messages, oldest first in the same (timestamp,
+     * id) order as the keyset queries.
+     * <p>
+     * Records are encoded back to back into one buffer and wrap around at its
+     * end; appending the newest message writes it in place and drops the
+     * oldest records as the slots or bytes run out. The buffer is only
+     * reallocated when fewer than half the slots fit in it, and a message
+     * committed behind a newer one re-encodes the window. Reads and appends
+     * lock the window, so a page never sees a half-written record.
+     */
+    public class Window {
+        
+        private final long conversationId;
+        
+        private ByteBuffer data;
+        
+        // Ring of record offsets and ids, logically oldest first from head
+        private final int[] offsets;
+        
+        private final long[] ids;
+        
+        private int head;
+        
+        private int count;
+        
+        // Where the next record goes; when wrapped, the oldest records run up to wrapAt and the rest from 0 to end
+        private int end;
+        
+        private int wrapAt;
+        
+        private boolean wrapped;
+        
+        // Whether the conversation has messages older than the window
+        private boolean hasOlder;
+        
+        Window(long conversationId, List<MessageRecord> records, boolean hasOlder) {
+            this.conversationId = conversationId;
+            this.offsets = new int[messagesPerConversation];
+            this.ids = new long[messagesPerConversation];
+            this.hasOlder = hasOlder;
+            
+            int bytes = 0;
+            for (MessageRecord record : records) {
+                bytes += encodedSize(record);
+            }
+            allocate(Math.max(bytes, messagesPerConversation * (RECORD_HEADER_BYTES + EXPECTED_TEXT_BYTES)));
+            for (MessageRecord record : records) {
+                write(record);
+            }
+        }
+        
+        // Null for an empty conversation
+        public synchronized MessageRecord latest() {
+            return count == 0 ? null : read(count - 1);
+        }
+        
+        /**
+         * Up to {@code pageSize} messages after the {@code after} cursor, or
+         * before the {@code before} cursor or the newest message, or null when
+         * the page reaches past the window.
+         */
+        public synchronized Page page(Long before, Long after, int pageSize) {
+            int from;
+            int to;
+            boolean hasMore;
+            if (after != null) {
+                // The window holds everything newer than its oldest message
+                int cursor = indexOf(after);
+                if (cursor < 0) {
+                    return null;
+                }
+                from = cursor + 1;
+                to = Math.min(count, from + pageSize);
+                hasMore = to < count;
+            } else {
+                to = before != null ? indexOf(before) : count;
+                if (to < 0) {
+                    return null;
+                }
+                from = Math.max(0, to - pageSize);
+                if (to - from < pageSize && hasOlder) {
+                    return null;
+                }
+                hasMore = from > 0 || hasOlder;
+            }
+            
+            List<MessageRecord> records = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                records.add(read(i));
+            }
+            return new Page(records, hasMore);
+        }
+        
+        synchronized void append(MessageRecord record) {
+            if (indexOf(record.getId()) >= 0) {
+                return;
+            }
+            if (count > 0 && isAfter(read(count - 1), record)) {
+                insert(record);
+                return;
+            }
+            if (count == offsets.length) {
+                dropOldest();
+            }
+            write(record);
+        }
+        
+        synchronized int weight() {
+            long weight = (long) data.capacity() + 12L * offsets.length + WINDOW_OVERHEAD_BYTES;
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+        
+        private int indexOf(long messageId) {
+            for (int i = 0; i < count; i++) {
+                if (ids[slot(i)] == messageId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        // Appends after the newest record, making room first
+        private void write(MessageRecord record) {
+            byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+            int size = RECORD_HEADER_BYTES + text.length;
+            int offset;
+            while ((offset = reserve(size)) < 0) {
+                if (count * 2 < offsets.length) {
+                    reencode(records(), Math.max(data.capacity() * 2, usedBytes() + size));
+                } else {
+                    dropOldest();
+                }
+            }
+            
+            ByteBuffer target = data.duplicate();
+            target.position(offset);
+            target.putLong(record.getId())
+                    .putLong(record.getSenderId())
+                    .putLong(record.getRecipientId())
+                    .putLong(record.getTimestamp().toEpochSecond(ZoneOffset.UTC))
+                    .putInt(record.getTimestamp().getNano())
+                    .putInt(text.length)
+                    .put(text);
+            int slot = slot(count);
+            offsets[slot] = offset;
+            ids[slot] = record.getId();
+            count++;
+            end = offset + size;
+        }
+        
+        // Offset of a free run of size bytes after the newest record, or -1
+        private int reserve(int size) {
+            if (count == 0) {
+                return size <= data.capacity() ? 0 : -1;
+            }
+            int start = offsets[head];
+            if (wrapped) {
+                return start - end >= size ? end : -1;
+            }
+            if (data.capacity() - end >= size) {
+                return end;
+            }
+            if (start >= size) {
+                wrapped = true;
+                wrapAt = end;
+                return 0;
+            }
+            return -1;
+        }
+        
+        private void dropOldest() {
+            int start = offsets[head];
+            head = slot(1);
+            count--;
+            hasOlder = true;
+            if (count == 0) {
+                end = 0;
+                wrapped = false;
+            } else if (wrapped && offsets[head] < start) {
+                // The records up to wrapAt are gone
+                wrapped = false;
+            }
+        }
+        
+        // A message committed behind a newer one; rare, so the window is simply re-encoded
+        private void insert(MessageRecord record) {
+            List<MessageRecord> records = records();
+            if (hasOlder && isAfter(records.get(0), record)) {
+                // Older than the window, which already reports older messages
+                return;
+            }
+            int insertAt = records.size();
+            while (insertAt > 0 && isAfter(records.get(insertAt - 1), record)) {
+                insertAt--;
+            }
+            records.add(insertAt, record);
+            if (records.size() > offsets.length) {
+                records = records.subList(records.size() - offsets.length, records.size());
+                hasOlder = true;
+            }
+            int bytes = 0;
+            for (MessageRecord kept : records) {
+                bytes += encodedSize(kept);
+            }
+            reencode(records, Math.max(data.capacity(), bytes));
+        }
+        
+        private void reencode(List<MessageRecord> records, int capacity) {
+            if (capacity > data.capacity()) {
+                allocate(capacity);
+            }
+            head = 0;
+            count = 0;
+            end = 0;
+            wrapped = false;
+            for (MessageRecord record : records) {
+                write(record);
+            }
+        }
+        
+        private void allocate(int capacity) {
+            data = offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        
+        private int usedBytes() {
+            if (count == 0) {
+                return 0;
+            }
+            int start = offsets[head];
+            return wrapped ? wrapAt - start + end : end - start;
+        }
+        
+        private List<MessageRecord> records() {
+            List<MessageRecord> records = new ArrayList<>(count + 1);
+            for (int i = 0; i < count; i++) {
+                records.add(read(i));
+            }
+            return records;
+        }
+        
+        private int slot(int index) {
+            return (head + index) % offsets.length;
+        }
+        
+        private MessageRecord read(int index) {
+            ByteBuffer record = data.duplicate();
+            record.position(offsets[slot(index)]);
+            long id = record.getLong();
+            long senderId = record.getLong();
+            long recipientId = record.getLong();
+            LocalDateTime timestamp = LocalDateTime.ofEpochSecond(record.getLong(), record.getInt(), ZoneOffset.UTC);
+            byte[] text = new byte[record.getInt()];
+            record.get(text);
+            return new MessageRecord(id, conversationId, senderId, recipientId, new String(text, StandardCharsets.UTF_8), timestamp);
+        }
+        
+        private boolean isAfter(MessageRecord existing, MessageRecord record) {
+            int byTime = existing.getTimestamp().compareTo(record.getTimestamp());
+            return byTime > 0 || (byTime == 0 && existing.getId() > record.getId());
+        }
+    }
+    
+    private static int encodedSize(MessageRecord record) {
+        return RECORD_HEADER_BYTES + record.getText().getBytes(StandardCharsets.UTF_8).length;
+    }
+}
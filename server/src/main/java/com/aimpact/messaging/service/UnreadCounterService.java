@@ -0,0 +1,228 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.repository.BroadcastNotificationRepository;
+import com.aimpact.messaging.repository.BroadcastReceiptRepository;
+import com.aimpact.messaging.repository.MessageRepository;
+import com.aimpact.messaging.repository.NotificationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory unread counters so badge reads never reach the database.
+ * <p>
+ * Counters are striped {@link LongAdder}s keyed by user (and by conversation
+ * within a user), plus broadcast totals from which each user's unread
+ * broadcasts are derived, seeded from the database once the application is ready and
+ * updated by the send and mark-read paths. Updates are not atomic across the
+ * per-conversation and per-user counters, so the whole set is periodically
+ * corrected against fresh database counts. A counter that moves while the
+ * counts are read is left for the next pass, since they may or may not
+ * include that change.
+ */
+@Service
+public class UnreadCounterService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UnreadCounterService.class);
+    
+    @Autowired
+    private MessageRepository messageRepository;
+    
+    @Autowired
+    private NotificationRepository notificationRepository;
+    
+    @Autowired
+    private BroadcastNotificationRepository broadcastRepository;
+    
+    @Autowired
+    private BroadcastReceiptRepository receiptRepository;
+    
+    private final ConcurrentHashMap<Long, LongAdder> unreadMessagesByUser = new ConcurrentHashMap<>();
+    
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, LongAdder>> unreadMessagesByConversation = new ConcurrentHashMap<>();
+    
+    private final ConcurrentHashMap<Long, LongAdder> unreadNotificationsByUser = new ConcurrentHashMap<>();
+    
+    // Broadcasts are unread for everyone who had joined when they were sent, but their sender, until a receipt exists
+    private final LongAdder broadcasts = new LongAdder();
+    
+    private final ConcurrentHashMap<Long, LongAdder> broadcastsBeforeJoining = new ConcurrentHashMap<>();
+    
+    private final ConcurrentHashMap<Long, LongAdder> broadcastsSentByUser = new ConcurrentHashMap<>();
+    
+    private final ConcurrentHashMap<Long, LongAdder> broadcastsReadByUser = new ConcurrentHashMap<>();
+    
+    public int getUnreadMessages(Long userId) {
+        return read(unreadMessagesByUser.get(userId));
+    }
+    
+    public int getUnreadMessages(Long userId, Long conversationId) {
+        Map<Long, LongAdder> conversations = unreadMessagesByConversation.get(userId);
+        return conversations == null ? 0 : read(conversations.get(conversationId));
+    }
+    
+    public int getUnreadNotifications(Long userId) {
+        long unreadBroadcasts = broadcasts.sum() - sum(broadcastsBeforeJoining.get(userId))
+                - sum(broadcastsSentByUser.get(userId)) - sum(broadcastsReadByUser.get(userId));
+        return read(unreadNotificationsByUser.get(userId)) + (int) Math.max(0, unreadBroadcasts);
+    }
+    
+    public void messageReceived(Long userId, Long conversationId) {
+        conversationCounter(userId, conversationId).increment();
+        unreadMessagesByUser.computeIfAbsent(userId, id -> new LongAdder()).increment();
+    }
+    
+    public void conversationRead(Long userId, Long conversationId) {
+        Map<Long, LongAdder> conversations = unreadMessagesByConversation.get(userId);
+        LongAdder counter = conversations == null ? null : conversations.get(conversationId);
+        if (counter == null) {
+            return;
+        }
+        
+        long cleared = counter.sumThenReset();
+        if (cleared != 0) {
+            unreadMessagesByUser.computeIfAbsent(userId, id -> new LongAdder()).add(-cleared);
+        }
+    }
+    
+    public void notificationReceived(Long userId) {
+        unreadNotificationsByUser.computeIfAbsent(userId, id -> new LongAdder()).increment();
+    }
+    
+    public void notificationRead(Long userId) {
+        unreadNotificationsByUser.computeIfAbsent(userId, id -> new LongAdder()).decrement();
+    }
+    
+    public void broadcastSent(Long senderId) {
+        broadcasts.increment();
+        if (senderId != null) {
+            broadcastsSentByUser.computeIfAbsent(senderId, id -> new LongAdder()).increment();
+        }
+    }
+    
+    public void broadcastRead(Long userId) {
+        broadcastsReadByUser.computeIfAbsent(userId, id -> new LongAdder()).increment();
+    }
+    
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        reconcile();
+    }
+    
+    @Scheduled(fixedDelayString = "${messaging.unread-counters.reconcile-interval-ms:60000}",
+            initialDelayString = "${messaging.unread-counters.reconcile-interval-ms:60000}")
+    public void reconcile() {
+        Map<LongAdder, Long> before = snapshot();
+        
+        Map<Long, Map<Long, Long>> messageCounts = new HashMap<>();
+        for (Object[] row : messageRepository.countUnreadMessagesByRecipientAndConversation()) {
+            messageCounts.computeIfAbsent((Long) row[0], id -> new HashMap<>()).put((Long) row[1], (Long) row[2]);
+        }
+        
+        Map<Long, Long> notificationCounts = toCounts(notificationRepository.countUnreadNotificationsByRecipient());
+        
+        long broadcastCount = broadcastRepository.count();
+        Map<Long, Long> beforeJoining = toCounts(broadcastRepository.countBeforeJoiningByUser());
+        Map<Long, Long> broadcastsSent = toCounts(broadcastRepository.countBySender());
+        Map<Long, Long> broadcastsRead = toCounts(receiptRepository.countByUser());
+        
+        int corrected = 0;
+        
+        // Overwrite every counter we know about, zeroing the ones the database no longer reports
+        for (Long userId : union(unreadMessagesByConversation.keySet(), messageCounts.keySet())) {
+            Map<Long, Long> expected = messageCounts.getOrDefault(userId, Map.of());
+            Map<Long, LongAdder> conversations = unreadMessagesByConversation.computeIfAbsent(userId, id -> new ConcurrentHashMap<>());
+            long total = 0;
+            for (Long conversationId : union(conversations.keySet(), expected.keySet())) {
+                long count = expected.getOrDefault(conversationId, 0L);
+                corrected += reset(conversationCounter(userId, conversationId), count, before);
+                total += count;
+            }
+            corrected += reset(unreadMessagesByUser.computeIfAbsent(userId, id -> new LongAdder()), total, before);
+        }
+        
+        corrected += resetAll(unreadNotificationsByUser, notificationCounts, before);
+        
+        corrected += reset(broadcasts, broadcastCount, before);
+        corrected += resetAll(broadcastsBeforeJoining, beforeJoining, before);
+        corrected += resetAll(broadcastsSentByUser, broadcastsSent, before);
+        corrected += resetAll(broadcastsReadByUser, broadcastsRead, before);
+        
+        if (corrected > 0) {
+            logger.debug("Reconciled {} unread counters against the database", corrected);
+        }
+    }
+    
+    private LongAdder conversationCounter(Long userId, Long conversationId) {
+        return unreadMessagesByConversation
+                .computeIfAbsent(userId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(conversationId, id -> new LongAdder());
+    }
+    
+    // Every counter's value before the database is read; counters created since count as 0
+    private Map<LongAdder, Long> snapshot() {
+        Map<LongAdder, Long> values = new HashMap<>();
+        for (Map<Long, LongAdder> conversations : unreadMessagesByConversation.values()) {
+            conversations.values().forEach(counter -> values.put(counter, counter.sum()));
+        }
+        for (Map<Long, LongAdder> counters : List.of(unreadMessagesByUser, unreadNotificationsByUser, broadcastsBeforeJoining,
+                broadcastsSentByUser, broadcastsReadByUser)) {
+            counters.values().forEach(counter -> values.put(counter, counter.sum()));
+        }
+        values.put(broadcasts, broadcasts.sum());
+        return values;
+    }
+    
+    private static int resetAll(ConcurrentHashMap<Long, LongAdder> counters, Map<Long, Long> expected, Map<LongAdder, Long> before) {
+        int corrected = 0;
+        for (Long userId : union(counters.keySet(), expected.keySet())) {
+            corrected += reset(counters.computeIfAbsent(userId, id -> new LongAdder()), expected.getOrDefault(userId, 0L), before);
+        }
+        return corrected;
+    }
+    
+    private static Map<Long, Long> toCounts(List<Object[]> rows) {
+        Map<Long, Long> counts = new HashMap<>();
+        for (Object[] row : rows) {
+            counts.put((Long) row[0], (Long) row[1]);
+        }
+        return counts;
+    }
+    
+    // Applied as a difference, so an update landing after the counter is read here is kept
+    private static int reset(LongAdder counter, long expected, Map<LongAdder, Long> before) {
+        long actual = counter.sum();
+        if (actual == expected || actual != before.getOrDefault(counter, 0L)) {
+            return 0;
+        }
+        counter.add(expected - actual);
+        return 1;
+    }
+    
+    private static long sum(LongAdder counter) {
+        return counter == null ? 0 : counter.sum();
+    }
+    
+    private static int read(LongAdder counter) {
+        return counter == null ? 0 : (int) Math.max(0, counter.sum());
+    }
+    
+    private static Set<Long> union(Collection<Long> first, Collection<Long> second) {
+        Set<Long> keys = new HashSet<>(first);
+        keys.addAll(second);
+        return keys;
+    }
+}
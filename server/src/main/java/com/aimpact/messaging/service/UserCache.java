@@ -0,0 +1,92 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * User entities by id, so the sender and recipient lookups on every send and
+ * notification do not query the users table.
+ * <p>
+ * Entries are detached and shared between threads, so callers must treat them
+ * as read-only and write through {@link UserRepository} followed by
+ * {@link #invalidate}. Presence and unread counts are not taken from the cached
+ * entity; they stay live in {@link PresenceService} and
+ * {@link UnreadCounterService}. Unknown ids are not cached.
+ */
+@Component
+public class UserCache {
+    
+    @Autowired
+    private UserRepository userRepository;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${messaging.user-cache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${messaging.user-cache.max-size:10000}")
+    private long maxSize;
+    
+    @Value("${messaging.user-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+    
+    private Cache<Long, User> users;
+    
+    @PostConstruct
+    public void init() {
+        users = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "users");
+    }
+    
+    // The user with this id, or null when there is none
+    public User get(Long id) {
+        if (!enabled) {
+            return userRepository.findById(id).orElse(null);
+        }
+        return users.get(id, key -> userRepository.findById(key).orElse(null));
+    }
+    
+    public void invalidate(Long id) {
+        invalidate(List.of(id));
+    }
+    
+    /**
+     * Drops the given users. Inside a transaction they are dropped again once it
+     * commits, so a concurrent read cannot put back the row as it was before.
+     */
+    public void invalidate(Collection<Long> ids) {
+        users.invalidateAll(ids);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    users.invalidateAll(ids);
+                }
+            });
+        }
+    }
+    
+    // After bulk updates that do not name the rows they touch
+    public void invalidateAll() {
+        users.invalidateAll();
+    }
+}
@@ -2,7 +2,6 @@ package com.aimpact.messaging.service;
 
 import com.aimpact.messaging.dto.UserDTO;
 import com.aimpact.messaging.model.User;
-import com.aimpact.messaging.repository.MessageRepository;
 import com.aimpact.messaging.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
@@ -20,20 +19,27 @@ public class UserService {
     private UserRepository userRepository;
     
     @Autowired
-    private MessageRepository messageRepository;
+    private UserCache userCache;
+    
+    @Autowired
+    private UnreadCounterService unreadCounterService;
+    
+    @Autowired
+    private PresenceService presenceService;
     
     private BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
     
     public List<UserDTO> getAllUsers() {
-        return userRepository.findAll().stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+        return getAllUsers(false);
+    }
+    
+    public List<UserDTO> getAllUsers(boolean slim) {
+        return convertToDTOs(userRepository.findAll(), slim);
     }
     
     public UserDTO getUserById(Long id) {
-        return userRepository.findById(id)
-                .map(this::convertToDTO)
-                .orElse(null);
+        User user = userCache.get(id);
+        return user != null ? convertToDTO(user) : null;
     }
     
     public UserDTO getUserByEmail(String email) {
@@ -42,10 +48,9 @@ public class UserService {
                 .orElse(null);
     }
     
-    public List<UserDTO> getOnlineUsers() {
-        return userRepository.findByIsOnlineTrue().stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+    public List<UserDTO> getOnlineUsers(boolean slim) {
+        // Who is online comes from the presence registry; only the profiles are loaded
+        return convertToDTOs(userRepository.findAllById(presenceService.getOnlineUserIds()), slim);
     }
     
     public UserDTO authenticateUser(String email, String password) {
@@ -61,6 +66,8 @@ public class UserService {
                 user.setLastActive(LocalDateTime.now());
                 user.setOnline(true);
                 userRepository.save(user);
+                userCache.invalidate(user.getId());
+                presenceService.declareStatus(user.getId(), true);
                 
                 return convertToDTO(user);
             }
@@ -70,32 +77,40 @@ public class UserService {
     }
     
     public void updateUserStatus(Long userId, boolean isOnline) {
-        userRepository.findById(userId).ifPresent(user -> {
-            user.setOnline(isOnline);
-            user.setLastActive(LocalDateTime.now());
-            userRepository.save(user);
-        });
+        presenceService.declareStatus(userId, isOnline);
     }
     
     public void updateUserActivity(Long userId) {
-        userRepository.findById(userId).ifPresent(user -> {
-            user.setLastActive(LocalDateTime.now());
-            userRepository.save(user);
-        });
+        presenceService.touch(userId);
     }
     
     public void logout(Long userId) {
-        userRepository.findById(userId).ifPresent(user -> {
-            user.setOnline(false);
-            userRepository.save(user);
-        });
+        presenceService.declareStatus(userId, false);
     }
     
+    // Shared with other threads; do not modify the returned entity
     public User getUserEntityById(Long id) {
-        return userRepository.findById(id).orElse(null);
+        return userCache.get(id);
+    }
+    
+    // One query for the users; unread counts come from the in-memory counters, not per-user COUNTs
+    private List<UserDTO> convertToDTOs(List<User> users, boolean slim) {
+        return users.stream()
+                .map(slim ? this::convertToProfileDTO : this::convertToDTO)
+                .collect(Collectors.toList());
     }
     
     private UserDTO convertToDTO(User user) {
+        UserDTO dto = convertToProfileDTO(user);
+        
+        // Get unread messages count
+        dto.setUnreadMessages(unreadCounterService.getUnreadMessages(user.getId()));
+        
+        return dto;
+    }
+    
+    // Profile and presence only, for embedding in lists where per-user counts are not shown
+    public UserDTO convertToProfileDTO(User user) {
         UserDTO dto = new UserDTO();
         dto.setId(user.getId());
         dto.setEmail(user.getEmail());
@@ -103,13 +118,11 @@ public class UserService {
         dto.setAvatar(user.getAvatar());
         dto.setRole(user.getRole());
         dto.setLastLogin(user.getLastLogin());
-        dto.setLastActive(user.getLastActive());
-        dto.setOnline(user.isOnline());
-        
-        // Get unread messages count
-        int unreadCount = messageRepository.countUnreadMessages(user);
-        dto.setUnreadMessages(unreadCount);
         
+        // Presence is authoritative in memory; the users table lags behind by a flush interval
+        LocalDateTime lastActive = presenceService.getLastActive(user.getId());
+        dto.setLastActive(lastActive != null ? lastActive : user.getLastActive());
+        dto.setOnline(presenceService.isOnline(user.getId()));
         return dto;
     }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.aimpact.messaging.service;
+
+import com.aimpact.messaging.dto.ChannelExecutorStatsDTO;
+import com.aimpact.messaging.dto.WebSocketStatsDTO;
+import com.aimpact.messaging.websocket.SessionOrderedTaskExecutor;
+import com.aimpact.messaging.websocket.SlowConsumerGuard;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+@Service
+public class WebSocketStatsService {
+    
+    @Autowired
+    @Qualifier("clientInboundChannelExecutor")
+    private TaskExecutor inboundExecutor;
+    
+    @Autowired
+    @Qualifier("clientOutboundChannelExecutor")
+    private TaskExecutor outboundExecutor;
+    
+    @Autowired
+    private SlowConsumerGuard slowConsumerGuard;
+    
+    public WebSocketStatsDTO getStats() {
+        WebSocketStatsDTO stats = new WebSocketStatsDTO();
+        stats.setInbound(getInboundStats());
+        stats.setOutbound(getOutboundStats());
+        stats.setSlowConsumer(slowConsumerGuard.getStats());
+        return stats;
+    }
+    
+    public ChannelExecutorStatsDTO getInboundStats() {
+        return executorStats(inboundExecutor);
+    }
+    
+    public ChannelExecutorStatsDTO getOutboundStats() {
+        return executorStats(outboundExecutor);
+    }
+    
+    private ChannelExecutorStatsDTO executorStats(TaskExecutor taskExecutor) {
+        if (taskExecutor instanceof SessionOrderedTaskExecutor) {
+            return ((SessionOrderedTaskExecutor) taskExecutor).getStats();
+        }
+        
+        ThreadPoolTaskExecutor executor = (ThreadPoolTaskExecutor) taskExecutor;
+        // Spring's default channel pool has an unbounded queue, so it never grows past its core size
+        ChannelExecutorStatsDTO stats = new ChannelExecutorStatsDTO();
+        stats.setMode("default");
+        stats.setActiveCount(executor.getActiveCount());
+        stats.setPoolSize(executor.getPoolSize());
+        stats.setMaxPoolSize(executor.getMaxPoolSize());
+        stats.setQueueDepth(executor.getThreadPoolExecutor().getQueue().size());
+        stats.setQueueCapacity(executor.getQueueCapacity());
+        stats.setSaturation((double) executor.getActiveCount() / executor.getCorePoolSize());
+        stats.setCompletedTaskCount(executor.getThreadPoolExecutor().getCompletedTaskCount());
+        return stats;
+    }
+}
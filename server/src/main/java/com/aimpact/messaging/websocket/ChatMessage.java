@@ -7,4 +7,6 @@ public class ChatMessage {
     private Long conversationId;
     private Long recipientId;
     private String text;
+    // Chosen by the client; echoed on the sender's ack or error so it can match them up
+    private String clientMessageId;
 }
\ No newline at end of file
@@ -0,0 +1,230 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.ConversationActivityDTO;
+import com.aimpact.messaging.repository.ConversationRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Typing indicators and live read receipts, delivered on
+ * {@code /user/queue/ephemeral}.
+ * <p>
+ * These events only matter while they are current, so they are never
+ * persisted, buffered for replay or counted as unread. Each user may send a
+ * limited number per second and the rest are dropped. Accepted events are held
+ * per conversation, the latest value per user winning, and once per coalescing
+ * window every conversation with changes goes out to its connected
+ * participants as one frame, leaving out each recipient's own entries. The
+ * participants of a conversation are loaded once and cached, so the repositories
+ * are not queried per event. The slow consumer guard sheds frames on this
+ * destination first whenever a session falls behind, so they never delay or
+ * displace chat.
+ * <p>
+ * When a session disconnects, the user stops typing in the conversations that
+ * session was typing in, unless another of their sessions still is. Clients
+ * also expire typing indicators that are not refreshed, in case that frame is
+ * shed.
+ */
+@Component
+public class ConversationActivityPublisher {
+    
+    public static final String EPHEMERAL_DESTINATION = "/queue/ephemeral";
+    
+    @Autowired
+    private ConversationRepository conversationRepository;
+    
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+    
+    @Autowired
+    private SimpUserRegistry userRegistry;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    @Value("${messaging.ephemeral.max-events-per-second:20}")
+    private int maxEventsPerSecond;
+    
+    @Value("${messaging.ephemeral.participant-cache-size:10000}")
+    private long participantCacheSize;
+    
+    // Participants are fixed when a conversation is created
+    private Cache<Long, List<Long>> participants;
+    
+    private Cache<Long, RateWindow> rateWindows;
+    
+    private final ConcurrentHashMap<Long, PendingActivity> pending = new ConcurrentHashMap<>();
+    
+    // Conversations each user last said they were typing in, by the session that said so
+    private final ConcurrentHashMap<Long, Map<String, Set<Long>>> typingIn = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    public void init() {
+        participants = Caffeine.newBuilder()
+                .maximumSize(participantCacheSize)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+        rateWindows = Caffeine.newBuilder()
+                .expireAfterAccess(Duration.ofMinutes(1))
+                .build();
+    }
+    
+    public void typing(TypingMessage typingMessage, Long userId, String sessionId) {
+        Long conversationId = typingMessage.getConversationId();
+        if (accept("typing", conversationId, userId)) {
+            // Under the map's lock for the user, so a disconnect sees every session's state at once
+            typingIn.compute(userId, (key, sessions) -> {
+                Map<String, Set<Long>> updated = sessions != null ? sessions : new HashMap<>();
+                if (typingMessage.isTyping()) {
+                    updated.computeIfAbsent(sessionId, id -> new HashSet<>()).add(conversationId);
+                } else {
+                    Set<Long> conversationIds = updated.get(sessionId);
+                    if (conversationIds != null && conversationIds.remove(conversationId) && conversationIds.isEmpty()) {
+                        updated.remove(sessionId);
+                    }
+                }
+                return updated.isEmpty() ? null : updated;
+            });
+            record(conversationId, activity -> activity.typing.put(userId, typingMessage.isTyping()));
+        }
+    }
+    
+    public void read(ReadReceiptMessage readReceiptMessage, Long userId) {
+        Long conversationId = readReceiptMessage.getConversationId();
+        Long messageId = readReceiptMessage.getMessageId();
+        if (messageId != null && accept("read", conversationId, userId)) {
+            record(conversationId, activity -> activity.readUpTo.merge(userId, messageId, Math::max));
+        }
+    }
+    
+    // A closed session cannot send its own typing=false
+    @EventListener
+    public void handleDisconnect(SessionDisconnectEvent event) {
+        StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
+        Map<String, Object> sessionAttributes = headerAccessor.getSessionAttributes();
+        Long userId = sessionAttributes != null ? (Long) sessionAttributes.get("userId") : null;
+        if (userId == null) {
+            return;
+        }
+        
+        // Conversations the user's other sessions are still typing in keep their indicator
+        Set<Long> stopped = new HashSet<>();
+        typingIn.computeIfPresent(userId, (key, sessions) -> {
+            Set<Long> conversationIds = sessions.remove(event.getSessionId());
+            if (conversationIds != null) {
+                stopped.addAll(conversationIds);
+                sessions.values().forEach(stopped::removeAll);
+            }
+            return sessions.isEmpty() ? null : sessions;
+        });
+        for (Long conversationId : stopped) {
+            record(conversationId, activity -> activity.typing.put(userId, false));
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${messaging.ephemeral.coalesce-window-ms:250}")
+    public void publish() {
+        for (Long conversationId : pending.keySet()) {
+            PendingActivity activity = pending.remove(conversationId);
+            List<Long> participantIds = activity != null ? participantsOf(conversationId) : null;
+            if (participantIds == null) {
+                continue;
+            }
+            
+            for (Long participantId : participantIds) {
+                if (userRegistry.getUser(participantId.toString()) == null) {
+                    continue;
+                }
+                
+                Map<Long, Boolean> typing = new HashMap<>(activity.typing);
+                Map<Long, Long> readUpTo = new HashMap<>(activity.readUpTo);
+                typing.remove(participantId);
+                readUpTo.remove(participantId);
+                if (!typing.isEmpty() || !readUpTo.isEmpty()) {
+                    messagingTemplate.convertAndSendToUser(participantId.toString(), EPHEMERAL_DESTINATION,
+                            new ConversationActivityDTO(conversationId, typing, readUpTo));
+                }
+            }
+            meterRegistry.summary("messaging.ephemeral.coalesced").record(activity.events);
+        }
+    }
+    
+    // Within the sender's rate and from a participant of the conversation
+    private boolean accept(String type, Long conversationId, Long userId) {
+        String outcome;
+        if (userId == null || conversationId == null) {
+            outcome = "rejected";
+        } else if (!rateWindows.get(userId, key -> new RateWindow()).tryAcquire(System.currentTimeMillis(), maxEventsPerSecond)) {
+            outcome = "rate_limited";
+        } else {
+            List<Long> participantIds = participantsOf(conversationId);
+            outcome = participantIds != null && participantIds.contains(userId) ? "accepted" : "rejected";
+        }
+        meterRegistry.counter("messaging.ephemeral.events", "type", type, "outcome", outcome).increment();
+        return "accepted".equals(outcome);
+    }
+    
+    // Null for unknown conversations, which are not cached in case the id is created later
+    private List<Long> participantsOf(Long conversationId) {
+        return participants.get(conversationId, key -> {
+            List<Long> ids = conversationRepository.findParticipantIds(key);
+            return ids.isEmpty() ? null : List.copyOf(ids);
+        });
+    }
+    
+    // Runs under the map's lock for the conversation, so publish() never sees a half-applied event
+    private void record(Long conversationId, Consumer<PendingActivity> change) {
+        pending.compute(conversationId, (key, activity) -> {
+            PendingActivity updated = activity != null ? activity : new PendingActivity();
+            change.accept(updated);
+            updated.events++;
+            return updated;
+        });
+    }
+    
+    private static class PendingActivity {
+        
+        private final Map<Long, Boolean> typing = new HashMap<>();
+        
+        private final Map<Long, Long> readUpTo = new HashMap<>();
+        
+        private int events;
+    }
+    
+    // Fixed one-second windows per user
+    private static class RateWindow {
+        
+        private long second;
+        
+        private int count;
+        
+        synchronized boolean tryAcquire(long now, int limit) {
+            long current = now / 1000;
+            if (current != second) {
+                second = current;
+                count = 0;
+            }
+            return ++count <= limit;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.aimpact.messaging.websocket;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the sessions a single publish actually goes out to.
+ * <p>
+ * The publisher passes {@link #headers(AtomicInteger)} with the message; the
+ * simple broker copies that header onto the copy it makes for each
+ * subscription, and every copy the slow consumer guard lets through bumps the
+ * counter as it is queued on the outbound channel. The broker channel hands
+ * the copies over on the publishing thread, so the count is complete once the
+ * publish returns. With the broker relay the fan-out happens in the external
+ * broker and nothing is counted here.
+ */
+@Component
+public class FanOutCounter implements ChannelInterceptor {
+    
+    public static final String HEADER = "fanOutCounter";
+    
+    public static MessageHeaders headers(AtomicInteger counter) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setHeader(HEADER, counter);
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
+    
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        AtomicInteger counter = message.getHeaders().get(HEADER, AtomicInteger.class);
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+        return message;
+    }
+}
@@ -0,0 +1,130 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.InboxConversationDTO;
+import com.aimpact.messaging.dto.InboxUpdateDTO;
+import com.aimpact.messaging.dto.MessageDTO;
+import com.aimpact.messaging.service.UnreadCounterService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Pushes inbox state to {@code /user/queue/inbox}: the unread badge totals and
+ * the conversations whose last message or unread count changed.
+ * <p>
+ * The send, mark-read and notification paths only record what changed for
+ * whom. Once per coalescing window each user with changes gets one frame,
+ * built from the in-memory unread counters and the messages recorded here, so
+ * a burst of messages into one inbox costs a single update and no database
+ * reads. Frames go through the {@link UserEventBuffer} like chat messages, so a
+ * user who was offline when one was published gets it when their session
+ * resumes. Subscribing to the inbox queues an update with the current totals.
+ */
+@Component
+public class InboxPublisher {
+    
+    public static final String INBOX_DESTINATION = "/queue/inbox";
+    
+    @Autowired
+    private UnreadCounterService unreadCounterService;
+    
+    @Autowired
+    private UserEventBuffer userEventBuffer;
+    
+    @Autowired
+    private MeterRegistry meterRegistry;
+    
+    private final ConcurrentHashMap<Long, PendingInbox> pending = new ConcurrentHashMap<>();
+    
+    // For both participants: the conversation's last message moved
+    public void messageSent(Long userId, MessageDTO message) {
+        record(userId, inbox -> {
+            inbox.conversationIds.add(message.getConversationId());
+            inbox.lastMessages.merge(message.getConversationId(), message,
+                    (current, candidate) -> candidate.getId() > current.getId() ? candidate : current);
+        });
+    }
+    
+    public void conversationRead(Long userId, Long conversationId) {
+        record(userId, inbox -> inbox.conversationIds.add(conversationId));
+    }
+    
+    // Only the badge totals changed
+    public void countsChanged(Long userId) {
+        record(userId, inbox -> { });
+    }
+    
+    @EventListener
+    public void handleSubscribe(SessionSubscribeEvent event) {
+        StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
+        if (!("/user" + INBOX_DESTINATION).equals(headerAccessor.getDestination())) {
+            return;
+        }
+        
+        Map<String, Object> sessionAttributes = headerAccessor.getSessionAttributes();
+        Long userId = sessionAttributes != null ? (Long) sessionAttributes.get("userId") : null;
+        if (userId != null) {
+            countsChanged(userId);
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${messaging.inbox.coalesce-window-ms:500}")
+    public void publish() {
+        for (Long userId : pending.keySet()) {
+            PendingInbox inbox = pending.remove(userId);
+            if (inbox == null) {
+                continue;
+            }
+            
+            InboxUpdateDTO update = new InboxUpdateDTO();
+            update.setUnreadMessages(unreadCounterService.getUnreadMessages(userId));
+            update.setUnreadNotifications(unreadCounterService.getUnreadNotifications(userId));
+            
+            List<InboxConversationDTO> conversations = new ArrayList<>();
+            for (Long conversationId : inbox.conversationIds) {
+                InboxConversationDTO conversation = new InboxConversationDTO();
+                conversation.setConversationId(conversationId);
+                conversation.setUnreadCount(unreadCounterService.getUnreadMessages(userId, conversationId));
+                conversation.setLastMessage(inbox.lastMessages.get(conversationId));
+                conversations.add(conversation);
+            }
+            update.setConversations(conversations);
+            
+            // Kept for replay, including for users who are offline right now
+            userEventBuffer.sendToUser(userId, INBOX_DESTINATION, update);
+            meterRegistry.summary("messaging.inbox.coalesced").record(inbox.changes);
+        }
+    }
+    
+    // Runs under the map's lock for the user, so publish() never sees a half-applied change
+    private void record(Long userId, Consumer<PendingInbox> change) {
+        pending.compute(userId, (key, inbox) -> {
+            PendingInbox updated = inbox != null ? inbox : new PendingInbox();
+            change.accept(updated);
+            updated.changes++;
+            return updated;
+        });
+    }
+    
+    private static class PendingInbox {
+        
+        private final Set<Long> conversationIds = new LinkedHashSet<>();
+        
+        private final Map<Long, MessageDTO> lastMessages = new HashMap<>();
+        
+        private int changes;
+    }
+}
@@ -0,0 +1,68 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.PresenceDeltaDTO;
+import com.aimpact.messaging.dto.PresenceSnapshotDTO;
+import com.aimpact.messaging.service.PresenceService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes presence changes to {@code /topic/presence} as versioned deltas.
+ * <p>
+ * Once per coalescing window the users whose status may have changed, as
+ * reported by {@link PresenceService#drainStatusChanges()}, are compared with
+ * the last published statuses, and only users whose status differs go out,
+ * all in one frame. Users with no activity are never looked at, and a
+ * connection that drops and comes back inside a window produces no traffic at
+ * all. Clients load {@link #snapshot()} and apply every delta whose version
+ * follows the one they hold, reloading the snapshot when they see a gap.
+ */
+@Component
+public class PresenceBroadcaster {
+    
+    public static final String PRESENCE_TOPIC = "/topic/presence";
+    
+    @Autowired
+    private PresenceService presenceService;
+    
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+    
+    private final Map<Long, PresenceService.Status> published = new HashMap<>();
+    
+    private long version;
+    
+    @Scheduled(fixedDelayString = "${messaging.presence.coalesce-window-ms:1000}")
+    public synchronized void publishChanges() {
+        Map<Long, PresenceService.Status> changes = new HashMap<>();
+        presenceService.drainStatusChanges().forEach((userId, status) -> {
+            if (published.getOrDefault(userId, PresenceService.Status.OFFLINE) != status) {
+                changes.put(userId, status);
+            }
+        });
+        
+        if (changes.isEmpty()) {
+            return;
+        }
+        
+        changes.forEach((userId, status) -> {
+            if (status == PresenceService.Status.OFFLINE) {
+                published.remove(userId);
+            } else {
+                published.put(userId, status);
+            }
+        });
+        version++;
+        
+        messagingTemplate.convertAndSend(PRESENCE_TOPIC, new PresenceDeltaDTO(version, changes));
+    }
+    
+    public synchronized PresenceSnapshotDTO snapshot() {
+        return new PresenceSnapshotDTO(version, new HashMap<>(published));
+    }
+}
@@ -0,0 +1,9 @@
+package com.aimpact.messaging.websocket;
+
+import lombok.Data;
+
+@Data
+public class ReadReceiptMessage {
+    private Long conversationId;
+    private Long messageId;
+}
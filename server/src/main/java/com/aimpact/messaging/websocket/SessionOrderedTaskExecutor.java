@@ -0,0 +1,246 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.ChannelExecutorStatsDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Channel executor that runs each STOMP session's messages one at a time, in
+ * the order they were handed over, while different sessions run in parallel.
+ * <p>
+ * Tasks are keyed by the session id of the message they carry; a session's
+ * backlog is drained by a single worker that yields back to the pool every
+ * {@link #DRAIN_BATCH} tasks so a chatty session cannot pin a thread. Workers
+ * run either on this executor's own bounded pool or, in virtual mode, on a
+ * virtual thread per drain so that blocking handlers scale with the number of
+ * sessions rather than the pool size.
+ */
+public class SessionOrderedTaskExecutor extends ThreadPoolTaskExecutor {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SessionOrderedTaskExecutor.class);
+    
+    private static final int DRAIN_BATCH = 16;
+    
+    private final String mode;
+    
+    private final int sessionQueueCapacity;
+    
+    private final ConcurrentHashMap<String, SessionQueue> sessionQueues = new ConcurrentHashMap<>();
+    
+    private final AtomicInteger active = new AtomicInteger();
+    
+    private final LongAdder completed = new LongAdder();
+    
+    // Tasks refused to the channel that handed them over
+    private final LongAdder rejected = new LongAdder();
+    
+    // A drain's own hand-back to the pool refused; the drain just continues on its thread
+    private final LongAdder redispatchRejected = new LongAdder();
+    
+    private ExecutorService virtualThreads;
+    
+    public SessionOrderedTaskExecutor(String mode, int sessionQueueCapacity) {
+        this.sessionQueueCapacity = sessionQueueCapacity;
+        if ("virtual".equals(mode)) {
+            virtualThreads = newVirtualThreadPerTaskExecutor();
+        }
+        this.mode = virtualThreads != null ? "virtual" : "tuned";
+    }
+    
+    public String getMode() {
+        return mode;
+    }
+    
+    @Override
+    public void execute(Runnable task) {
+        String sessionId = sessionIdOf(task);
+        if (sessionId == null) {
+            try {
+                dispatch(task);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                throw e;
+            }
+            return;
+        }
+        
+        while (true) {
+            SessionQueue queue = sessionQueues.computeIfAbsent(sessionId, SessionQueue::new);
+            boolean start;
+            synchronized (queue) {
+                if (queue.retired) {
+                    continue; // Lost a race with the final drain; pick up the replacement queue
+                }
+                if (queue.tasks.size() >= sessionQueueCapacity) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("Session " + sessionId + " has " + queue.tasks.size() + " queued tasks");
+                }
+                queue.tasks.add(task);
+                start = !queue.draining;
+                queue.draining = true;
+            }
+            if (start) {
+                try {
+                    dispatch(queue);
+                } catch (RejectedExecutionException e) {
+                    rejected.increment();
+                    queue.abandon(task);
+                    throw e;
+                }
+            }
+            return;
+        }
+    }
+    
+    public ChannelExecutorStatsDTO getStats() {
+        ChannelExecutorStatsDTO stats = new ChannelExecutorStatsDTO();
+        stats.setMode(mode);
+        stats.setActiveCount(active.get());
+        stats.setCompletedTaskCount(completed.sum());
+        stats.setRejectedTaskCount(rejected.sum());
+        stats.setRedispatchRejectedCount(redispatchRejected.sum());
+        stats.setSessionQueues(sessionQueues.size());
+        
+        int backlog = 0;
+        for (SessionQueue queue : sessionQueues.values()) {
+            synchronized (queue) {
+                backlog += queue.tasks.size();
+            }
+        }
+        
+        if (virtualThreads != null) {
+            // Unbounded by design; only the per-session backlogs can grow
+            stats.setQueueDepth(backlog);
+            return stats;
+        }
+        
+        int poolQueue = getThreadPoolExecutor().getQueue().size();
+        stats.setPoolSize(getPoolSize());
+        stats.setMaxPoolSize(getMaxPoolSize());
+        stats.setQueueDepth(backlog + poolQueue);
+        stats.setQueueCapacity(getQueueCapacity());
+        stats.setSaturation((double) getActiveCount() / getMaxPoolSize());
+        return stats;
+    }
+    
+    @Override
+    public void shutdown() {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+        super.shutdown();
+    }
+    
+    private void dispatch(Runnable task) {
+        Runnable counted = () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+        if (virtualThreads != null) {
+            virtualThreads.execute(counted);
+        } else {
+            super.execute(counted);
+        }
+    }
+    
+    private static String sessionIdOf(Runnable task) {
+        if (!(task instanceof MessageHandlingRunnable)) {
+            return null;
+        }
+        Message<?> message = ((MessageHandlingRunnable) task).getMessage();
+        return SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+    }
+    
+    // Virtual threads need a Java 21 runtime; the build still targets 11, so look the factory up reflectively
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 (running {}); falling back to the tuned pool",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+    
+    private class SessionQueue implements Runnable {
+        
+        private final String sessionId;
+        
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        
+        private boolean draining;
+        
+        private boolean retired;
+        
+        SessionQueue(String sessionId) {
+            this.sessionId = sessionId;
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    Runnable next;
+                    synchronized (this) {
+                        next = tasks.poll();
+                        if (next == null) {
+                            retire();
+                            return;
+                        }
+                    }
+                    try {
+                        next.run();
+                    } catch (Throwable e) {
+                        logger.error("Failed to handle message for session {}", sessionId, e);
+                    }
+                    completed.increment();
+                }
+                
+                try {
+                    // Yield the worker and continue draining behind other sessions
+                    dispatch(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Pool is full; keep draining on this thread rather than stranding the backlog
+                    redispatchRejected.increment();
+                }
+            }
+        }
+        
+        // The drain that would have run this task was rejected
+        void abandon(Runnable task) {
+            synchronized (this) {
+                tasks.remove(task);
+                if (tasks.isEmpty()) {
+                    retire();
+                    return;
+                }
+            }
+            run(); // Messages queued behind it in the meantime still need a worker
+        }
+        
+        // Caller holds the lock; an idle session keeps no state
+        private void retire() {
+            draining = false;
+            retired = true;
+            sessionQueues.remove(sessionId, this);
+        }
+    }
+}
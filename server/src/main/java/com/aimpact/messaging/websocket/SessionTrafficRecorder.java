@@ -0,0 +1,185 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.SessionTrafficDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Counts the frames and payload bytes written to every WebSocket session and
+ * records which transport and compression extension it negotiated.
+ * <p>
+ * Tomcat compresses permessage-deflate sessions internally and does not
+ * report what it wrote, so when compression stats are enabled each deflate
+ * session also runs its outbound payloads through a shadow {@link Deflater}
+ * configured like the negotiated extension to estimate the bytes on the wire.
+ * That doubles the compression work, which is why it is off by default.
+ */
+@Component
+public class SessionTrafficRecorder implements WebSocketHandlerDecoratorFactory {
+    
+    public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    
+    @Value("${messaging.websocket.compression-stats:false}")
+    private boolean compressionStats;
+    
+    private final ConcurrentHashMap<String, SessionTraffic> sessions = new ConcurrentHashMap<>();
+    
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                SessionTraffic traffic = new SessionTraffic(session);
+                sessions.put(session.getId(), traffic);
+                super.afterConnectionEstablished(new WebSocketSessionDecorator(session) {
+                    @Override
+                    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                        super.sendMessage(message);
+                        traffic.sent(message);
+                    }
+                });
+            }
+            
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                SessionTraffic traffic = sessions.remove(session.getId());
+                if (traffic != null) {
+                    traffic.close();
+                }
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    public List<SessionTrafficDTO> getSessions() {
+        List<SessionTrafficDTO> result = new ArrayList<>();
+        for (SessionTraffic traffic : sessions.values()) {
+            result.add(traffic.toDTO());
+        }
+        return result;
+    }
+    
+    private class SessionTraffic {
+        
+        private final String sessionId;
+        
+        private final Object userId;
+        
+        private final String transport;
+        
+        private final String endpoint;
+        
+        private final WebSocketExtension compression;
+        
+        private final LongAdder frames = new LongAdder();
+        
+        private final LongAdder bytes = new LongAdder();
+        
+        private final boolean resetPerMessage;
+        
+        private Deflater deflater;
+        
+        private final byte[] scratch = new byte[8192];
+        
+        private long compressedBytes;
+        
+        SessionTraffic(WebSocketSession session) {
+            this.sessionId = session.getId();
+            this.userId = session.getAttributes().get("userId");
+            this.transport = WebSocketSessionDecorator.unwrap(session) instanceof SockJsSession ? "sockjs" : "websocket";
+            this.endpoint = session.getUri() != null ? session.getUri().getPath() : null;
+            this.compression = session.getExtensions().stream()
+                    .filter(extension -> PERMESSAGE_DEFLATE.equals(extension.getName()))
+                    .findFirst()
+                    .orElse(null);
+            this.resetPerMessage = compression != null && compression.getParameters().containsKey("server_no_context_takeover");
+            if (compression != null && compressionStats) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+        }
+        
+        void sent(WebSocketMessage<?> message) {
+            frames.increment();
+            bytes.add(message.getPayloadLength());
+            if (deflater != null) {
+                estimate(message);
+            }
+        }
+        
+        // Frames of one session are written one at a time, but stats reads can race them
+        private synchronized void estimate(WebSocketMessage<?> message) {
+            if (deflater == null) {
+                return;
+            }
+            byte[] payload;
+            if (message instanceof TextMessage) {
+                payload = ((TextMessage) message).asBytes();
+            } else if (message instanceof BinaryMessage) {
+                ByteBuffer buffer = ((BinaryMessage) message).getPayload().duplicate();
+                payload = new byte[buffer.remaining()];
+                buffer.get(payload);
+            } else {
+                return;
+            }
+            
+            deflater.setInput(payload);
+            int written;
+            while ((written = deflater.deflate(scratch, 0, scratch.length, Deflater.SYNC_FLUSH)) > 0) {
+                compressedBytes += written;
+            }
+            // The trailing empty block of a sync flush is stripped from each message on the wire
+            compressedBytes -= 4;
+            if (resetPerMessage) {
+                deflater.reset();
+            }
+        }
+        
+        synchronized void close() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+        
+        synchronized SessionTrafficDTO toDTO() {
+            SessionTrafficDTO dto = new SessionTrafficDTO();
+            dto.setSessionId(sessionId);
+            dto.setUserId(userId instanceof Long ? (Long) userId : null);
+            dto.setTransport(transport);
+            dto.setEndpoint(endpoint);
+            dto.setCompression(compression != null ? compression.toString() : null);
+            dto.setFramesSent(frames.sum());
+            dto.setBytesSent(bytes.sum());
+            if (compression != null && compressionStats) {
+                dto.setEstimatedCompressedBytes(compressedBytes);
+                if (bytes.sum() > 0) {
+                    dto.setCompressionRatio((double) compressedBytes / bytes.sum());
+                }
+            }
+            return dto;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.SlowConsumerStatsDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.NativeMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds what each WebSocket session may have queued on the client outbound
+ * channel.
+ * <p>
+ * Every MESSAGE frame counts against its session's byte and frame budget from
+ * the moment it is published until the transport has written it: frames are
+ * matched by their STOMP {@code message-id}, which is assigned here when the
+ * broker left it unset, as the session's send returns, so frames held in
+ * Spring's per-session send buffer still count. When a new
+ * frame does not fit, the policy of its destination decides: presence-style
+ * destinations are coalesced to their newest frame, notification-style ones
+ * drop their oldest frames, and everything else (chat) closes the session with
+ * {@link #SLOW_CONSUMER} so the client reconnects and reloads. Ephemeral
+ * destinations such as typing indicators rank below all of these: they are
+ * only admitted while the session uses less than half its budget, and their
+ * queued frames are the first dropped to make room for any other frame.
+ * Frames that were given up stay queued until the transport reaches them and
+ * are then skipped; once those exceed twice the budget the session is closed
+ * as well, which keeps the memory held for one connection bounded. What each
+ * policy did is counted per action and exported by {@link WebSocketMetrics}.
+ */
+@Component
+public class SlowConsumerGuard implements ExecutorChannelInterceptor, WebSocketHandlerDecoratorFactory {
+    
+    private static final Logger logger = LoggerFactory.getLogger(SlowConsumerGuard.class);
+    
+    // Clients reconnect and resync their views when closed with this status
+    public static final CloseStatus SLOW_CONSUMER = new CloseStatus(4008, "Slow consumer; reconnect and resync");
+    
+    public enum Policy {
+        SHED,
+        COALESCE,
+        DROP_OLDEST,
+        DISCONNECT
+    }
+    
+    public enum Action {
+        DROPPED,
+        COALESCED,
+        DISCONNECTED;
+        
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+    
+    private static final String OTHER_DESTINATIONS = "other";
+    
+    private static final String MESSAGE_ID_LINE = "\n" + StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER + ":";
+    
+    @Value("${messaging.websocket.slow-consumer.max-pending-bytes:262144}")
+    private long maxPendingBytes;
+    
+    @Value("${messaging.websocket.slow-consumer.max-pending-frames:256}")
+    private int maxPendingFrames;
+    
+    @Value("${messaging.websocket.slow-consumer.coalesce-destinations:/topic/presence}")
+    private String[] coalesceDestinations;
+    
+    @Value("${messaging.websocket.slow-consumer.drop-oldest-destinations:/topic/notifications,/queue/notifications}")
+    private String[] dropOldestDestinations;
+    
+    @Value("${messaging.websocket.slow-consumer.shed-destinations:/queue/ephemeral}")
+    private String[] shedDestinations;
+    
+    private final ConcurrentHashMap<String, SessionBudget> sessions = new ConcurrentHashMap<>();
+    
+    // Keyed by action, then by the configured destination prefix the frame matched
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> actions = new ConcurrentHashMap<>();
+    
+    // Keyed by the policy of the frames acted on, then by action
+    private final Map<Policy, Map<Action, LongAdder>> policyActions = new EnumMap<>(Policy.class);
+    
+    public SlowConsumerGuard() {
+        for (Policy policy : Policy.values()) {
+            Map<Action, LongAdder> counts = new EnumMap<>(Action.class);
+            for (Action action : Action.values()) {
+                counts.put(action, new LongAdder());
+            }
+            policyActions.put(policy, counts);
+        }
+    }
+    
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                SessionBudget budget = new SessionBudget(session);
+                sessions.put(session.getId(), budget);
+                // Spring's send buffer wraps this session, so sends reach it only once they go to the transport
+                super.afterConnectionEstablished(new WebSocketSessionDecorator(session) {
+                    @Override
+                    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                        try {
+                            super.sendMessage(message);
+                        } finally {
+                            String frameId = messageIdOf(message);
+                            if (frameId != null) {
+                                budget.sent(frameId);
+                            }
+                        }
+                    }
+                });
+            }
+            
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+    
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+            return message;
+        }
+        
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        SessionBudget budget = sessionId != null ? sessions.get(sessionId) : null;
+        if (budget == null) {
+            return message;
+        }
+        
+        String destination = destinationOf(message, sessionId);
+        int size = message.getPayload() instanceof byte[] ? ((byte[]) message.getPayload()).length : 0;
+        return budget.admit(message, destination, size);
+    }
+    
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        SessionBudget budget = sessionId != null ? sessions.get(sessionId) : null;
+        if (budget == null || budget.claim(message)) {
+            return message;
+        }
+        return null;
+    }
+    
+    // A frame that failed before reaching the session's send never gets there
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        SessionBudget budget = sessionId != null && ex != null ? sessions.get(sessionId) : null;
+        String frameId = frameIdOf(message);
+        if (budget != null && frameId != null) {
+            budget.sent(frameId);
+        }
+    }
+    
+    public SlowConsumerStatsDTO getStats() {
+        SlowConsumerStatsDTO stats = new SlowConsumerStatsDTO();
+        stats.setMaxPendingBytes(maxPendingBytes);
+        stats.setMaxPendingFrames(maxPendingFrames);
+        stats.setSessions(sessions.size());
+        
+        long pendingBytes = 0;
+        int pendingFrames = 0;
+        for (SessionBudget budget : sessions.values()) {
+            synchronized (budget) {
+                pendingBytes += budget.bytes;
+                pendingFrames += budget.frames;
+            }
+        }
+        stats.setPendingBytes(pendingBytes);
+        stats.setPendingFrames(pendingFrames);
+        
+        Map<String, Map<String, Long>> counts = new TreeMap<>();
+        actions.forEach((action, byDestination) -> {
+            Map<String, Long> values = new TreeMap<>();
+            byDestination.forEach((destination, count) -> values.put(destination, count.sum()));
+            counts.put(action, values);
+        });
+        stats.setActions(counts);
+        return stats;
+    }
+    
+    public long getActionCount(Policy policy, Action action) {
+        return policyActions.get(policy).get(action).sum();
+    }
+    
+    private void record(Action action, Policy policy, String destination, int count) {
+        actions.computeIfAbsent(action.tag(), key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(destination, key -> new LongAdder())
+                .add(count);
+        policyActions.get(policy).get(action).add(count);
+    }
+    
+    // User destinations arrive translated to "<destination>-user<sessionId>"
+    private static String destinationOf(Message<?> message, String sessionId) {
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (destination == null) {
+            return "";
+        }
+        String suffix = "-user" + sessionId;
+        return destination.endsWith(suffix) ? destination.substring(0, destination.length() - suffix.length()) : destination;
+    }
+    
+    private static String frameIdOf(Message<?> message) {
+        return NativeMessageHeaderAccessor.getFirstNativeHeader(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER, message.getHeaders());
+    }
+    
+    // The message-id of an encoded MESSAGE frame, read from its header block; null for any other frame
+    private static String messageIdOf(WebSocketMessage<?> frame) {
+        String head;
+        if (frame instanceof TextMessage) {
+            head = ((TextMessage) frame).getPayload();
+        } else if (frame instanceof BinaryMessage) {
+            ByteBuffer payload = ((BinaryMessage) frame).getPayload().duplicate();
+            byte[] bytes = new byte[Math.min(payload.remaining(), 1024)];
+            payload.get(bytes);
+            head = new String(bytes, StandardCharsets.ISO_8859_1);
+        } else {
+            return null;
+        }
+        if (!head.startsWith("MESSAGE")) {
+            return null;
+        }
+        
+        int headerEnd = head.indexOf("\n\n");
+        int start = head.lastIndexOf(MESSAGE_ID_LINE, headerEnd >= 0 ? headerEnd : head.length());
+        if (start < 0) {
+            return null;
+        }
+        start += MESSAGE_ID_LINE.length();
+        int end = head.indexOf('\n', start);
+        String value = head.substring(start, end < 0 ? head.length() : end);
+        // Header values are escaped on the wire
+        return value.replace("\r", "").replace("\\c", ":").replace("\\\\", "\\");
+    }
+    
+    private String prefixOf(String destination, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (destination.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+    
+    private static class Pending {
+        
+        private final String destination;
+        
+        private final String group;
+        
+        private final Policy policy;
+        
+        private final int size;
+        
+        private boolean dropped;
+        
+        Pending(String destination, String group, Policy policy, int size) {
+            this.destination = destination;
+            this.group = group;
+            this.policy = policy;
+            this.size = size;
+        }
+    }
+    
+    private class SessionBudget {
+        
+        private final WebSocketSession session;
+        
+        // Frames by message-id, in the order they were admitted
+        private final ArrayDeque<String> order = new ArrayDeque<>();
+        
+        private final Map<String, Pending> pending = new HashMap<>();
+        
+        private long sequence;
+        
+        // Frames still to be written
+        private long bytes;
+        
+        private int frames;
+        
+        // Everything still queued, including frames that will be skipped
+        private long queuedBytes;
+        
+        private boolean closed;
+        
+        SessionBudget(WebSocketSession session) {
+            this.session = session;
+        }
+        
+        Message<?> admit(Message<?> message, String destination, int size) {
+            Pending frame;
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                
+                String group = prefixOf(destination, shedDestinations);
+                Policy policy = Policy.SHED;
+                if (group == null) {
+                    group = prefixOf(destination, coalesceDestinations);
+                    policy = Policy.COALESCE;
+                }
+                if (group == null) {
+                    group = prefixOf(destination, dropOldestDestinations);
+                    policy = Policy.DROP_OLDEST;
+                }
+                if (group == null) {
+                    group = OTHER_DESTINATIONS;
+                    policy = Policy.DISCONNECT;
+                }
+                frame = new Pending(destination, group, policy, size);
+                
+                if (policy == Policy.SHED && !fitsShed(size)) {
+                    record(Action.DROPPED, policy, group, 1);
+                    return null;
+                }
+                if (!fits(size)) {
+                    dropOldest(size, Policy.SHED);
+                }
+                if (!fits(size) && policy == Policy.COALESCE) {
+                    coalesce(destination);
+                }
+                if (!fits(size) && policy != Policy.DISCONNECT) {
+                    dropOldest(size, Policy.COALESCE, Policy.DROP_OLDEST);
+                }
+                if (!fits(size) && policy == Policy.DROP_OLDEST) {
+                    record(Action.DROPPED, policy, group, 1);
+                    return null;
+                }
+                
+                if (fits(size) && queuedBytes + size <= 2 * maxPendingBytes && order.size() < 2 * maxPendingFrames) {
+                    String frameId = frameIdOf(message);
+                    if (frameId == null) {
+                        // Kept by the STOMP encoder, so the transport send can be matched back to this frame
+                        frameId = session.getId() + "-" + (++sequence);
+                        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+                        accessor.setNativeHeader(StompHeaderAccessor.STOMP_MESSAGE_ID_HEADER, frameId);
+                        message = MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+                    }
+                    order.add(frameId);
+                    pending.put(frameId, frame);
+                    bytes += size;
+                    frames++;
+                    queuedBytes += size;
+                    return message;
+                }
+                closed = true;
+                logger.info("Closing slow consumer session {} with {} bytes in {} frames queued", session.getId(), queuedBytes, order.size());
+            }
+            
+            record(Action.DISCONNECTED, frame.policy, frame.group, 1);
+            try {
+                session.close(SLOW_CONSUMER);
+            } catch (IOException e) {
+                logger.debug("Failed to close slow consumer session {}", session.getId(), e);
+            }
+            return null;
+        }
+        
+        // Skipped frames never reach the transport, so they are released here
+        synchronized boolean claim(Message<?> message) {
+            String frameId = frameIdOf(message);
+            Pending frame = frameId != null ? pending.get(frameId) : null;
+            if (!closed && (frame == null || !frame.dropped)) {
+                return true;
+            }
+            if (frameId != null) {
+                sent(frameId);
+            }
+            return false;
+        }
+        
+        synchronized void sent(String frameId) {
+            Pending frame = pending.remove(frameId);
+            if (frame == null) {
+                return;
+            }
+            if (frameId.equals(order.peekFirst())) {
+                order.pollFirst();
+            } else {
+                order.remove(frameId);
+            }
+            queuedBytes -= frame.size;
+            if (!frame.dropped) {
+                bytes -= frame.size;
+                frames--;
+            }
+        }
+        
+        private boolean fits(int size) {
+            return bytes + size <= maxPendingBytes && frames < maxPendingFrames;
+        }
+        
+        // Ephemeral frames leave the upper half of the budget to everything else
+        private boolean fitsShed(int size) {
+            return bytes + size <= maxPendingBytes / 2 && frames < maxPendingFrames / 2;
+        }
+        
+        // Only the newest frame for a coalesced destination matters
+        private void coalesce(String destination) {
+            int coalesced = 0;
+            String group = null;
+            for (String queued : order) {
+                Pending frame = pending.get(queued);
+                if (!frame.dropped && frame.destination.equals(destination)) {
+                    drop(frame);
+                    group = frame.group;
+                    coalesced++;
+                }
+            }
+            if (coalesced > 0) {
+                record(Action.COALESCED, Policy.COALESCE, group, coalesced);
+            }
+        }
+        
+        private void dropOldest(int size, Policy... policies) {
+            Set<Policy> droppable = EnumSet.copyOf(Arrays.asList(policies));
+            Iterator<String> iterator = order.iterator();
+            while (iterator.hasNext() && !fits(size)) {
+                Pending frame = pending.get(iterator.next());
+                if (!frame.dropped && droppable.contains(frame.policy)) {
+                    drop(frame);
+                    record(Action.DROPPED, frame.policy, frame.group, 1);
+                }
+            }
+        }
+        
+        private void drop(Pending frame) {
+            frame.dropped = true;
+            bytes -= frame.size;
+            frames--;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.aimpact.messaging.websocket;
+
+import lombok.Data;
+
+@Data
+public class TypingMessage {
+    private Long conversationId;
+    private boolean typing;
+}
@@ -0,0 +1,271 @@
+package com.aimpact.messaging.websocket;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.simp.user.UserDestinationMessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recent events sent to each user's {@code /user/queue/*} destinations, so a
+ * client that reconnects after a short drop gets only what it missed instead
+ * of reloading its views over REST.
+ * <p>
+ * Every event is stamped with an {@code event-id} header of the form
+ * {@code <epoch>-<sequence>}, where the epoch identifies this server run and
+ * the sequence increases with every event. A client that reconnects sends the
+ * last id it saw as the {@code last-event-id} CONNECT header. Once each of its
+ * user-queue subscriptions is registered with the broker, the newer events for
+ * that destination are sent to the new session only. If the buffer no longer
+ * reaches back to that id, a single frame with a {@code resync} header is sent
+ * instead, and the client reloads as it would after a fresh connect.
+ * <p>
+ * Events are replayed once the subscription is live, so an event that arrives
+ * between the subscription and the replay can reach the client twice. Clients
+ * drop ids they have already seen. With the broker relay, events are sent from
+ * whichever node produced them, so one node's buffer is not a complete record:
+ * events then carry no id and every resume attempt is answered with a resync.
+ */
+@Component
+public class UserEventBuffer implements ExecutorChannelInterceptor {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UserEventBuffer.class);
+    
+    public static final String EVENT_ID_HEADER = "event-id";
+    
+    public static final String LAST_EVENT_ID_HEADER = "last-event-id";
+    
+    public static final String RESYNC_HEADER = "resync";
+    
+    private static final String LAST_EVENT_ID_ATTRIBUTE = "lastEventId";
+    
+    // Resolved on first use; the template is built by the broker configuration this interceptor is part of
+    @Autowired
+    @Lazy
+    private SimpMessagingTemplate messagingTemplate;
+    
+    @Value("${messaging.websocket.resume.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${messaging.websocket.resume.events-per-user:100}")
+    private int eventsPerUser;
+    
+    @Value("${messaging.websocket.resume.max-users:10000}")
+    private long maxUsers;
+    
+    @Value("${messaging.websocket.resume.retention-seconds:300}")
+    private long retentionSeconds;
+    
+    @Value("${messaging.broker.mode:simple}")
+    private String brokerMode;
+    
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    
+    private final AtomicLong sequence = new AtomicLong();
+    
+    private Cache<String, Events> users;
+    
+    private final LongAdder resumed = new LongAdder();
+    
+    private final LongAdder resynced = new LongAdder();
+    
+    private final LongAdder replayed = new LongAdder();
+    
+    @PostConstruct
+    public void init() {
+        enabled = enabled && !"relay".equals(brokerMode);
+        users = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(Duration.ofSeconds(retentionSeconds))
+                .build();
+    }
+    
+    /**
+     * Sends a payload to every session of a user, keeping it for replay to
+     * sessions that reconnect later.
+     */
+    public void sendToUser(Long userId, String destination, Object payload) {
+        String user = userId.toString();
+        if (!enabled) {
+            messagingTemplate.convertAndSendToUser(user, destination, payload);
+            return;
+        }
+        
+        Events events = users.get(user, key -> new Events(sequence.get()));
+        synchronized (events) {
+            // Sequence order is send order for each user
+            long seq = sequence.incrementAndGet();
+            events.add(new Event(seq, destination, payload));
+            messagingTemplate.convertAndSendToUser(user, destination, payload, Map.of(EVENT_ID_HEADER, epoch + "-" + seq));
+        }
+    }
+    
+    // User-queue subscriptions that were resumed from the buffer
+    public long getResumedCount() {
+        return resumed.sum();
+    }
+    
+    // User-queue subscriptions that were told to resync instead
+    public long getResyncCount() {
+        return resynced.sum();
+    }
+    
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+    
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        Map<String, Object> sessionAttributes = accessor.getSessionAttributes();
+        if (accessor.getMessageType() == SimpMessageType.CONNECT && sessionAttributes != null) {
+            String lastEventId = accessor.getFirstNativeHeader(LAST_EVENT_ID_HEADER);
+            if (lastEventId != null) {
+                sessionAttributes.put(LAST_EVENT_ID_ATTRIBUTE, lastEventId);
+            }
+        }
+        return message;
+    }
+    
+    // The simple broker has registered a user-queue subscription by the time its user destination handler returns
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        if (ex != null || !(handler instanceof UserDestinationMessageHandler)
+                || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.SUBSCRIBE) {
+            return;
+        }
+        
+        Map<String, Object> sessionAttributes = SimpMessageHeaderAccessor.getSessionAttributes(message.getHeaders());
+        String lastEventId = sessionAttributes != null ? (String) sessionAttributes.get(LAST_EVENT_ID_ATTRIBUTE) : null;
+        String destination = SimpMessageHeaderAccessor.getDestination(message.getHeaders());
+        if (lastEventId == null || destination == null || !destination.startsWith("/user/queue/")) {
+            return;
+        }
+        
+        Object userId = sessionAttributes.get("userId");
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+        if (userId != null) {
+            replay(userId.toString(), sessionId, destination.substring("/user".length()), lastEventId);
+        }
+    }
+    
+    private void replay(String user, String sessionId, String destination, String lastEventId) {
+        long lastSeq = sequenceOf(lastEventId);
+        Events events = enabled && lastSeq >= 0 ? users.getIfPresent(user) : null;
+        if (events == null) {
+            resync(user, sessionId, destination);
+            return;
+        }
+        
+        synchronized (events) {
+            if (lastSeq < events.floor || lastSeq > sequence.get()) {
+                resync(user, sessionId, destination);
+                return;
+            }
+            
+            int count = 0;
+            for (Event event : events.after(lastSeq)) {
+                if (event.destination.equals(destination)) {
+                    messagingTemplate.convertAndSendToUser(user, destination, event.payload,
+                            headers(sessionId, EVENT_ID_HEADER, epoch + "-" + event.seq));
+                    count++;
+                }
+            }
+            resumed.increment();
+            replayed.add(count);
+            logger.debug("Replayed {} events on {} to session {} of user {}", count, destination, sessionId, user);
+        }
+    }
+    
+    private void resync(String user, String sessionId, String destination) {
+        resynced.increment();
+        messagingTemplate.convertAndSendToUser(user, destination, Map.of(), headers(sessionId, RESYNC_HEADER, "true"));
+    }
+    
+    // Ids from another run, or that do not parse, cannot be resumed from
+    private long sequenceOf(String eventId) {
+        int separator = eventId.lastIndexOf('-');
+        if (separator < 0 || !epoch.equals(eventId.substring(0, separator))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(eventId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    // Addressed to one session rather than all of the user's sessions
+    private static Map<String, Object> headers(String sessionId, String name, String value) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setNativeHeader(name, value);
+        accessor.setLeaveMutable(true);
+        return accessor.getMessageHeaders();
+    }
+    
+    private static class Event {
+        
+        private final long seq;
+        
+        private final String destination;
+        
+        private final Object payload;
+        
+        Event(long seq, String destination, Object payload) {
+            this.seq = seq;
+            this.destination = destination;
+            this.payload = payload;
+        }
+    }
+    
+    private class Events {
+        
+        private final ArrayDeque<Event> events = new ArrayDeque<>();
+        
+        // Every event for the user after this sequence is still held
+        private long floor;
+        
+        Events(long floor) {
+            this.floor = floor;
+        }
+        
+        void add(Event event) {
+            events.addLast(event);
+            if (events.size() > eventsPerUser) {
+                floor = events.removeFirst().seq;
+            }
+        }
+        
+        List<Event> after(long seq) {
+            List<Event> newer = new ArrayList<>();
+            for (Event event : events) {
+                if (event.seq > seq) {
+                    newer.add(event);
+                }
+            }
+            return newer;
+        }
+    }
+}
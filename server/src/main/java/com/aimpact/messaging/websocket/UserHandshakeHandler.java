@@ -0,0 +1,61 @@
+package com.aimpact.messaging.websocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Names each WebSocket session after the user id captured by
+ * {@link HttpHandshakeInterceptor}, so that the user registry knows which
+ * sessions belong to whom and {@code /user/queue/...} destinations resolve
+ * on every node. Also decides whether permessage-deflate may be negotiated.
+ */
+@Component
+public class UserHandshakeHandler extends DefaultHandshakeHandler {
+    
+    @Value("${messaging.websocket.permessage-deflate:true}")
+    private boolean permessageDeflate;
+    
+    @Override
+    protected Principal determineUser(ServerHttpRequest request, WebSocketHandler wsHandler, Map<String, Object> attributes) {
+        Object userId = attributes.get("userId");
+        if (userId == null) {
+            return super.determineUser(request, wsHandler, attributes);
+        }
+        return new UserPrincipal(userId.toString());
+    }
+    
+    @Override
+    protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request, List<WebSocketExtension> requestedExtensions,
+            List<WebSocketExtension> supportedExtensions) {
+        List<WebSocketExtension> extensions = super.filterRequestedExtensions(request, requestedExtensions, supportedExtensions);
+        if (permessageDeflate) {
+            return extensions;
+        }
+        return extensions.stream()
+                .filter(extension -> !SessionTrafficRecorder.PERMESSAGE_DEFLATE.equals(extension.getName()))
+                .collect(Collectors.toList());
+    }
+    
+    private static class UserPrincipal implements Principal {
+        
+        private final String name;
+        
+        UserPrincipal(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -1,36 +1,42 @@
 package com.aimpact.messaging.websocket;
 
-import com.aimpact.messaging.service.UserService;
+import com.aimpact.messaging.service.PresenceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
+import java.util.Map;
+
 @Component
 public class WebSocketEventListener {
     
     private static final Logger logger = LoggerFactory.getLogger(WebSocketEventListener.class);
     
     @Autowired
-    private UserService userService;
+    private PresenceService presenceService;
     
     @EventListener
     public void handleWebSocketConnectListener(SessionConnectedEvent event) {
         StompHeaderAccessor headerAccessor = StompHeaderAccessor.wrap(event.getMessage());
         
-        // Get user ID from session attributes
-        Long userId = (Long) headerAccessor.getSessionAttributes().get("userId");
+        // The CONNECTED ack carries the session attributes on the original CONNECT frame
+        Message<?> connectMessage = (Message<?>) headerAccessor.getHeader(SimpMessageHeaderAccessor.CONNECT_MESSAGE_HEADER);
+        Map<String, Object> sessionAttributes = connectMessage != null
+                ? SimpMessageHeaderAccessor.getSessionAttributes(connectMessage.getHeaders())
+                : null;
+        Long userId = sessionAttributes != null ? (Long) sessionAttributes.get("userId") : null;
         
         if (userId != null) {
             logger.info("User connected: {}", userId);
             
-            // Update user status to online
-            userService.updateUserStatus(userId, true);
+            presenceService.sessionConnected(userId, headerAccessor.getSessionId());
         }
     }
     
@@ -44,8 +50,8 @@ public class WebSocketEventListener {
         if (userId != null) {
             logger.info("User disconnected: {}", userId);
             
-            // Update user status to offline
-            userService.updateUserStatus(userId, false);
+            // Only goes offline once the user's last session has closed
+            presenceService.sessionDisconnected(userId, headerAccessor.getSessionId());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.aimpact.messaging.websocket;
+
+import com.aimpact.messaging.dto.ChannelExecutorStatsDTO;
+import com.aimpact.messaging.service.WebSocketStatsService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Gauges for the WebSocket layer, sampled whenever metrics are scraped:
+ * sessions connected to this node, subscriptions known to the user registry
+ * (cluster-wide in relay mode) and the backlog and busy threads of the client
+ * inbound and outbound channels, plus how reconnecting clients were resumed
+ * and what the slow-consumer policies did.
+ */
+@Component
+public class WebSocketMetrics implements MeterBinder {
+    
+    @Autowired
+    private SessionTrafficRecorder sessionTrafficRecorder;
+    
+    @Autowired
+    private SimpUserRegistry userRegistry;
+    
+    @Autowired
+    private WebSocketStatsService webSocketStatsService;
+    
+    @Autowired
+    private UserEventBuffer userEventBuffer;
+    
+    @Autowired
+    private SlowConsumerGuard slowConsumerGuard;
+    
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("messaging.websocket.sessions", sessionTrafficRecorder, SessionTrafficRecorder::getSessionCount)
+                .description("WebSocket sessions connected to this node")
+                .register(registry);
+        Gauge.builder("messaging.websocket.subscriptions", userRegistry,
+                        users -> users.findSubscriptions(subscription -> true).size())
+                .description("STOMP subscriptions of connected users")
+                .register(registry);
+        
+        FunctionCounter.builder("messaging.websocket.resume", userEventBuffer, UserEventBuffer::getResumedCount)
+                .tag("outcome", "resumed")
+                .description("User-queue subscriptions resumed by replaying missed events")
+                .register(registry);
+        FunctionCounter.builder("messaging.websocket.resume", userEventBuffer, UserEventBuffer::getResyncCount)
+                .tag("outcome", "resync")
+                .description("User-queue subscriptions told to resync because the gap was no longer buffered")
+                .register(registry);
+        FunctionCounter.builder("messaging.websocket.resume.replayed", userEventBuffer, UserEventBuffer::getReplayedCount)
+                .description("Events replayed to resumed subscriptions")
+                .register(registry);
+        
+        for (SlowConsumerGuard.Policy policy : SlowConsumerGuard.Policy.values()) {
+            for (SlowConsumerGuard.Action action : SlowConsumerGuard.Action.values()) {
+                FunctionCounter.builder("messaging.websocket.slow.consumer", slowConsumerGuard, guard -> guard.getActionCount(policy, action))
+                        .tag("policy", policy.name().toLowerCase())
+                        .tag("action", action.tag())
+                        .description("Frames a slow-consumer policy dropped or coalesced, and sessions it disconnected")
+                        .register(registry);
+            }
+        }
+        
+        channelGauges(registry, "inbound", webSocketStatsService::getInboundStats);
+        channelGauges(registry, "outbound", webSocketStatsService::getOutboundStats);
+    }
+    
+    private void channelGauges(MeterRegistry registry, String channel, Supplier<ChannelExecutorStatsDTO> stats) {
+        channelGauge(registry, "messaging.websocket.channel.queue.depth", channel, stats, ChannelExecutorStatsDTO::getQueueDepth,
+                "Tasks waiting on the channel executor");
+        channelGauge(registry, "messaging.websocket.channel.active", channel, stats, ChannelExecutorStatsDTO::getActiveCount,
+                "Channel executor threads handling a message");
+    }
+    
+    private void channelGauge(MeterRegistry registry, String name, String channel, Supplier<ChannelExecutorStatsDTO> stats,
+                              Function<ChannelExecutorStatsDTO, Integer> value, String description) {
+        Gauge.builder(name, () -> value.apply(stats.get()))
+                .tag("channel", channel)
+                .description(description)
+                .register(registry);
+    }
+}
@@ -0,0 +1,174 @@
+package com.aimpact.messaging.websocket;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets a STOMP session on the native {@code /stomp} endpoint ask for CBOR
+ * instead of JSON by sending {@code wire-format:cbor} on CONNECT.
+ * <p>
+ * Objects published through the messaging template reach the outbound channel
+ * still unencoded (see {@link WirePayloadMessageConverter}), and this
+ * interceptor, first on that channel, encodes each MESSAGE frame for the
+ * session it is addressed to: JSON, or CBOR with timestamps as epoch millis.
+ * Each format is encoded at most once per publish, so JSON-only traffic costs
+ * what it did before. Spring only writes {@code application/octet-stream}
+ * payloads as binary WebSocket frames, so CBOR frames are typed
+ * {@link #CBOR_CONTENT_TYPE}, and CBOR clients send with the same type.
+ * SockJS sessions on {@code /ws} cannot carry binary frames and always get
+ * JSON, as does every session in relay mode.
+ */
+@Component
+public class WireFormatNegotiator implements HandshakeInterceptor, ChannelInterceptor {
+    
+    private static final Logger logger = LoggerFactory.getLogger(WireFormatNegotiator.class);
+    
+    public static final String WIRE_FORMAT_HEADER = "wire-format";
+    
+    public static final String CBOR = "cbor";
+    
+    public static final MimeType CBOR_CONTENT_TYPE = new MimeType("application", "octet-stream", Map.of("format", CBOR));
+    
+    // Set on handshakes through the native endpoint, the only one that can carry binary frames
+    private static final String BINARY_FRAMES_ATTRIBUTE = "binaryFrames";
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    private final ObjectMapper cborMapper = createCborMapper();
+    
+    private final Set<String> cborSessions = ConcurrentHashMap.newKeySet();
+    
+    // Timestamps are written and read as epoch millis
+    public static ObjectMapper createCborMapper() {
+        return new ObjectMapper(new CBORFactory()).registerModule(new SimpleModule()
+                .addSerializer(LocalDateTime.class, new EpochMillisSerializer())
+                .addDeserializer(LocalDateTime.class, new EpochMillisDeserializer()));
+    }
+    
+    public static boolean isCbor(MimeType mimeType) {
+        return CBOR_CONTENT_TYPE.equals(mimeType);
+    }
+    
+    public ObjectMapper getCborMapper() {
+        return cborMapper;
+    }
+    
+    public boolean isCborSession(String sessionId) {
+        return sessionId != null && cborSessions.contains(sessionId);
+    }
+    
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Map<String, Object> attributes) {
+        attributes.put(BINARY_FRAMES_ATTRIBUTE, true);
+        return true;
+    }
+    
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler, Exception exception) {
+        // Nothing to do after handshake
+    }
+    
+    @EventListener
+    public void handleDisconnect(SessionDisconnectEvent event) {
+        cborSessions.remove(event.getSessionId());
+    }
+    
+    // CONNECT frames on the inbound channel, MESSAGE frames on the outbound one
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        if (SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) == SimpMessageType.CONNECT) {
+            negotiate(message);
+            return message;
+        }
+        if (!(message.getPayload() instanceof WirePayload)) {
+            return message;
+        }
+        
+        WirePayload payload = (WirePayload) message.getPayload();
+        if (isCborSession(SimpMessageHeaderAccessor.getSessionId(message.getHeaders()))) {
+            try {
+                MessageHeaderAccessor accessor = MessageHeaderAccessor.getMutableAccessor(message);
+                accessor.setContentType(CBOR_CONTENT_TYPE);
+                return MessageBuilder.createMessage(payload.cbor(cborMapper), accessor.getMessageHeaders());
+            } catch (JsonProcessingException e) {
+                logger.warn("Failed to encode CBOR frame, sending JSON", e);
+            }
+        }
+        try {
+            return MessageBuilder.createMessage(payload.json(objectMapper), message.getHeaders());
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to encode {} for session {}", payload.getValue().getClass().getSimpleName(),
+                    SimpMessageHeaderAccessor.getSessionId(message.getHeaders()), e);
+            return null;
+        }
+    }
+    
+    private void negotiate(Message<?> message) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+        Map<String, Object> sessionAttributes = accessor.getSessionAttributes();
+        if (CBOR.equalsIgnoreCase(accessor.getFirstNativeHeader(WIRE_FORMAT_HEADER))
+                && sessionAttributes != null && sessionAttributes.containsKey(BINARY_FRAMES_ATTRIBUTE)) {
+            cborSessions.add(accessor.getSessionId());
+        }
+    }
+    
+    private static class EpochMillisSerializer extends StdSerializer<LocalDateTime> {
+        
+        EpochMillisSerializer() {
+            super(LocalDateTime.class);
+        }
+        
+        @Override
+        public void serialize(LocalDateTime value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeNumber(value.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+    }
+    
+    private static class EpochMillisDeserializer extends StdDeserializer<LocalDateTime> {
+        
+        EpochMillisDeserializer() {
+            super(LocalDateTime.class);
+        }
+        
+        @Override
+        public LocalDateTime deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(parser.getLongValue()), ZoneId.systemDefault());
+        }
+    }
+}
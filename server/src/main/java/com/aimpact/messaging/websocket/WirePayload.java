@@ -0,0 +1,46 @@
+package com.aimpact.messaging.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The object a broker message was converted from, carried as its payload
+ * until the outbound channel encodes it for the session it is addressed to.
+ * Each format is produced at most once per publish and shared by every
+ * subscriber the message fans out to.
+ */
+public class WirePayload {
+    
+    private final Object value;
+    
+    private volatile byte[] json;
+    
+    private volatile byte[] cbor;
+    
+    public WirePayload(Object value) {
+        this.value = value;
+    }
+    
+    public Object getValue() {
+        return value;
+    }
+    
+    // Two sessions racing on the first encode both produce the same bytes
+    public byte[] json(ObjectMapper mapper) throws JsonProcessingException {
+        byte[] encoded = json;
+        if (encoded == null) {
+            encoded = mapper.writeValueAsBytes(value);
+            json = encoded;
+        }
+        return encoded;
+    }
+    
+    public byte[] cbor(ObjectMapper mapper) throws JsonProcessingException {
+        byte[] encoded = cbor;
+        if (encoded == null) {
+            encoded = mapper.writeValueAsBytes(value);
+            cbor = encoded;
+        }
+        return encoded;
+    }
+}
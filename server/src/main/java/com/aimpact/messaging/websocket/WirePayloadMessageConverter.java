@@ -0,0 +1,74 @@
+package com.aimpact.messaging.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.DefaultContentTypeResolver;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+
+/**
+ * Converter for objects published through the messaging template and for
+ * payloads clients send, registered ahead of the JSON converter Spring Boot
+ * adds.
+ * <p>
+ * Outbound, the object is left unencoded in a {@link WirePayload} for
+ * {@link WireFormatNegotiator} to encode per session; with {@code deferred}
+ * off, as in relay mode, where frames cross the external broker, it writes
+ * JSON like the Boot converter. Inbound, payloads typed as CBOR by
+ * {@link WireFormatNegotiator#CBOR_CONTENT_TYPE} are read as CBOR and
+ * everything else as JSON.
+ */
+public class WirePayloadMessageConverter extends MappingJackson2MessageConverter {
+    
+    private final ObjectMapper cborMapper;
+    
+    private final boolean deferred;
+    
+    public WirePayloadMessageConverter(ObjectMapper objectMapper, ObjectMapper cborMapper, boolean deferred) {
+        super(MimeTypeUtils.APPLICATION_JSON, WireFormatNegotiator.CBOR_CONTENT_TYPE);
+        setObjectMapper(objectMapper);
+        DefaultContentTypeResolver resolver = new DefaultContentTypeResolver();
+        resolver.setDefaultMimeType(MimeTypeUtils.APPLICATION_JSON);
+        setContentTypeResolver(resolver);
+        this.cborMapper = cborMapper;
+        this.deferred = deferred;
+    }
+    
+    // Strings and raw bytes keep going through their own converters
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz != String.class && clazz != byte[].class && super.supports(clazz);
+    }
+    
+    // Plain octet-stream payloads are not CBOR; MIME type matching would otherwise ignore the format parameter
+    @Override
+    protected boolean supportsMimeType(MessageHeaders headers) {
+        MimeType mimeType = getMimeType(headers);
+        if (mimeType != null && MimeTypeUtils.APPLICATION_OCTET_STREAM.equalsTypeAndSubtype(mimeType)) {
+            return WireFormatNegotiator.isCbor(mimeType);
+        }
+        return super.supportsMimeType(headers);
+    }
+    
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        if (!WireFormatNegotiator.isCbor(getMimeType(message.getHeaders()))) {
+            return super.convertFromInternal(message, targetClass, conversionHint);
+        }
+        try {
+            return cborMapper.readValue((byte[]) message.getPayload(), targetClass);
+        } catch (IOException e) {
+            throw new MessageConversionException(message, "Could not read CBOR: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        return deferred ? new WirePayload(payload) : super.convertToInternal(payload, headers, conversionHint);
+    }
+}
@@ -0,0 +1,189 @@
+package com.aimpact.messaging;
+
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.service.ConversationService;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two server nodes in relay mode behind an embedded Artemis broker, sharing
+ * one in-memory database. A message sent by a user connected to one node
+ * must reach the recipient connected to the other, quickly.
+ */
+class RelayBrokerIntegrationTest {
+
+    private static final int MESSAGES = 20;
+
+    private static final long MAX_MEDIAN_LATENCY_MS = 500;
+
+    private static EmbeddedActiveMQ broker;
+
+    private static ConfigurableApplicationContext nodeA;
+
+    private static ConfigurableApplicationContext nodeB;
+
+    private static ThreadPoolTaskScheduler scheduler;
+
+    @BeforeAll
+    static void start(@TempDir Path brokerDir) throws Exception {
+        int stompPort = freePort();
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.setPersistenceEnabled(false);
+        configuration.setSecurityEnabled(false);
+        configuration.setBrokerInstance(brokerDir.toFile());
+        configuration.addAcceptorConfiguration("stomp", "tcp://127.0.0.1:" + stompPort
+                + "?protocols=STOMP;anycastPrefix=/queue/;multicastPrefix=/topic/");
+        broker = new EmbeddedActiveMQ();
+        broker.setConfiguration(configuration);
+        broker.start();
+
+        nodeA = startNode(stompPort);
+        nodeB = startNode(stompPort);
+
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.initialize();
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        if (nodeA != null) {
+            nodeA.close();
+        }
+        if (broker != null) {
+            broker.stop();
+        }
+    }
+
+    @Test
+    void deliversAcrossNodes() throws Exception {
+        ConversationDTO conversation = nodeA.getBean(ConversationService.class).getOrCreateConversation(1L, 2L);
+
+        StompSession sender = connect(nodeA, 1L);
+        StompSession recipient = connect(nodeB, 2L);
+
+        BlockingQueue<Map<String, Object>> received = new LinkedBlockingQueue<>();
+        Map<String, Long> receivedAt = new ConcurrentHashMap<>();
+        subscribe(recipient, "/user/queue/messages", payload -> {
+            receivedAt.put((String) payload.get("text"), System.nanoTime());
+            received.add(payload);
+        });
+
+        // The first message also warms up both nodes and the broker connections
+        send(sender, conversation.getId(), "warm-up");
+        assertNotNull(received.poll(10, TimeUnit.SECONDS), "Warm-up message did not cross nodes");
+
+        // One at a time, so each latency is a single hop rather than time spent queued behind the others
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            long sentAt = System.nanoTime();
+            send(sender, conversation.getId(), "relay " + i);
+            Map<String, Object> message = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message, "Only " + i + " of " + MESSAGES + " messages crossed nodes");
+            assertEquals(1, ((Number) message.get("senderId")).intValue());
+            assertEquals("relay " + i, message.get("text"));
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(receivedAt.get("relay " + i) - sentAt));
+        }
+
+        Collections.sort(latencies);
+        long median = latencies.get(latencies.size() / 2);
+        System.out.printf("Cross-node delivery latency: median %d ms, max %d ms%n", median, latencies.get(latencies.size() - 1));
+        assertTrue(median <= MAX_MEDIAN_LATENCY_MS, "Median cross-node latency " + median + " ms");
+
+        sender.disconnect();
+        recipient.disconnect();
+    }
+
+    private void send(StompSession sender, Long conversationId, String text) {
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/app/chat.sendMessage");
+        sender.send(headers, Map.of("conversationId", conversationId, "recipientId", 2L, "text", text));
+    }
+
+    private static ConfigurableApplicationContext startNode(int stompPort) {
+        return new SpringApplicationBuilder(MessagingServerApplication.class).run(
+                "--server.port=0",
+                // The same named in-memory database in one JVM stands in for a shared one
+                "--spring.datasource.url=jdbc:h2:mem:relaytest;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.com.aimpact.messaging=INFO",
+                "--messaging.broker.mode=relay",
+                "--messaging.broker.relay.host=127.0.0.1",
+                "--messaging.broker.relay.port=" + stompPort);
+    }
+
+    private StompSession connect(ConfigurableApplicationContext node, Long userId) throws Exception {
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient());
+        client.setMessageConverter(new MappingJackson2MessageConverter());
+        client.setTaskScheduler(scheduler);
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        return client.connect("ws://localhost:" + port + "/stomp?userId=" + userId, new StompSessionHandlerAdapter() { })
+                .get(10, TimeUnit.SECONDS);
+    }
+
+    // Returns once the broker has confirmed the subscription
+    private void subscribe(StompSession session, String destination, PayloadHandler handler) throws Exception {
+        session.setAutoReceipt(true);
+        CompletableFuture<Void> subscribed = new CompletableFuture<>();
+        session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return Map.class;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void handleFrame(StompHeaders headers, Object payload) {
+                handler.handle((Map<String, Object>) payload);
+            }
+        }).addReceiptTask(() -> subscribed.complete(null));
+        subscribed.get(10, TimeUnit.SECONDS);
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private interface PayloadHandler {
+        void handle(Map<String, Object> payload);
+    }
+}
@@ -0,0 +1,142 @@
+package com.aimpact.messaging;
+
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.service.ConversationService;
+import com.aimpact.messaging.websocket.WireFormatNegotiator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A client that negotiates CBOR on {@code /stomp} sends a message as CBOR and
+ * gets the server's acknowledgement back as CBOR, while the JSON recipient of
+ * the same message still gets JSON.
+ */
+class WireFormatIntegrationTest {
+
+    private static ConfigurableApplicationContext node;
+
+    private static ThreadPoolTaskScheduler scheduler;
+
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    @BeforeAll
+    static void start() {
+        node = new SpringApplicationBuilder(MessagingServerApplication.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:wireformattest;DB_CLOSE_DELAY=-1",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.com.aimpact.messaging=INFO");
+
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.initialize();
+    }
+
+    @AfterAll
+    static void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (node != null) {
+            node.close();
+        }
+    }
+
+    @Test
+    void roundTripsCborClient() throws Exception {
+        ConversationDTO conversation = node.getBean(ConversationService.class).getOrCreateConversation(1L, 2L);
+
+        StompSession sender = connect(1L, true);
+        StompSession recipient = connect(2L, false);
+
+        BlockingQueue<byte[]> acknowledged = new LinkedBlockingQueue<>();
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        subscribe(sender, 1L, "/user/queue/sent", acknowledged);
+        subscribe(recipient, 2L, "/user/queue/messages", received);
+
+        StompHeaders headers = new StompHeaders();
+        headers.setDestination("/app/chat.sendMessage");
+        headers.setContentType(WireFormatNegotiator.CBOR_CONTENT_TYPE);
+        sender.send(headers, cborMapper.writeValueAsBytes(Map.of(
+                "conversationId", conversation.getId(), "recipientId", 2L, "text", "over cbor")));
+
+        byte[] ack = acknowledged.poll(10, TimeUnit.SECONDS);
+        assertNotNull(ack, "No acknowledgement for the CBOR message");
+        JsonNode sent = cborMapper.readTree(ack);
+        assertEquals("over cbor", sent.get("text").asText());
+        assertEquals(1L, sent.get("senderId").asLong());
+        assertTrue(sent.get("timestamp").isIntegralNumber(), "CBOR timestamp should be epoch millis: " + sent.get("timestamp"));
+
+        byte[] delivered = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull(delivered, "The JSON recipient did not get the message");
+        JsonNode message = jsonMapper.readTree(delivered);
+        assertEquals("over cbor", message.get("text").asText());
+        assertEquals(sent.get("id").asLong(), message.get("id").asLong());
+        assertTrue(message.get("timestamp").isTextual(), "JSON timestamp should stay ISO-8601: " + message.get("timestamp"));
+
+        sender.disconnect();
+        recipient.disconnect();
+    }
+
+    private StompSession connect(Long userId, boolean cbor) throws Exception {
+        // The default converter hands frames over as raw bytes
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient());
+        client.setTaskScheduler(scheduler);
+        StompHeaders connectHeaders = new StompHeaders();
+        if (cbor) {
+            connectHeaders.add(WireFormatNegotiator.WIRE_FORMAT_HEADER, WireFormatNegotiator.CBOR);
+        }
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        return client.connect("ws://localhost:" + port + "/stomp?userId=" + userId, new WebSocketHttpHeaders(),
+                connectHeaders, new StompSessionHandlerAdapter() { }).get(10, TimeUnit.SECONDS);
+    }
+
+    // The simple broker sends no receipts, so this waits for the subscription to show up in the user registry
+    private void subscribe(StompSession session, Long userId, String destination, BlockingQueue<byte[]> frames) throws Exception {
+        session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return byte[].class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                frames.add((byte[]) payload);
+            }
+        });
+        SimpUserRegistry registry = node.getBean(SimpUserRegistry.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.findSubscriptions(subscription -> destination.equals(subscription.getDestination())
+                && userId.toString().equals(subscription.getSession().getUser().getName())).isEmpty()) {
+            assertTrue(System.nanoTime() < deadline, "Subscription to " + destination + " was not registered");
+            Thread.sleep(20);
+        }
+    }
+}
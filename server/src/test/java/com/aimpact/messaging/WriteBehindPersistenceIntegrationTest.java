@@ -0,0 +1,194 @@
+package com.aimpact.messaging;
+
+import com.aimpact.messaging.dto.ConversationDTO;
+import com.aimpact.messaging.model.Conversation;
+import com.aimpact.messaging.model.Message;
+import com.aimpact.messaging.model.User;
+import com.aimpact.messaging.service.ConversationService;
+import com.aimpact.messaging.service.MessagePersistenceService;
+import com.aimpact.messaging.service.MessageService;
+import com.aimpact.messaging.websocket.ChatMessage;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Type;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * With write-behind persistence, a batch that holds one message the database
+ * refuses is retried one message at a time: the bad message fails on its own
+ * and the others in the batch still commit and reach their recipient.
+ * <p>
+ * The writer is held on an earlier message by a row lock on its conversation,
+ * so the messages under test queue up behind it and are drained as one batch.
+ */
+class WriteBehindPersistenceIntegrationTest {
+
+    private static ConfigurableApplicationContext node;
+
+    private static ThreadPoolTaskScheduler scheduler;
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    @BeforeAll
+    static void start() {
+        node = new SpringApplicationBuilder(MessagingServerApplication.class).run(
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:writebehindtest;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=30000",
+                "--spring.jpa.show-sql=false",
+                "--messaging.persistence.mode=write-behind",
+                "--logging.level.com.aimpact.messaging=INFO");
+
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.initialize();
+    }
+
+    @AfterAll
+    static void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (node != null) {
+            node.close();
+        }
+    }
+
+    @Test
+    void retriesFailedBatchOneMessageAtATime() throws Exception {
+        ConversationService conversationService = node.getBean(ConversationService.class);
+        MessageService messageService = node.getBean(MessageService.class);
+        MessagePersistenceService persistenceService = node.getBean(MessagePersistenceService.class);
+        ConversationDTO held = conversationService.getOrCreateConversation(3L, 4L);
+        ConversationDTO conversation = conversationService.getOrCreateConversation(1L, 2L);
+
+        StompSession recipient = connect(2L);
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        subscribe(recipient, 2L, "/user/queue/messages", received);
+
+        try (Connection lock = node.getBean(DataSource.class).getConnection()) {
+            lock.setAutoCommit(false);
+            try (Statement statement = lock.createStatement()) {
+                statement.executeQuery("SELECT id FROM conversations WHERE id = " + held.getId() + " FOR UPDATE");
+            }
+
+            // The writer takes this message on its own and waits for the lock
+            messageService.sendMessage(chatMessage(held.getId(), 4L, "held"), 3L);
+            awaitQueueDepth(persistenceService, 0);
+            Thread.sleep(200);
+
+            messageService.sendMessage(chatMessage(conversation.getId(), 2L, "before"), 1L);
+            CompletableFuture<RuntimeException> refused = new CompletableFuture<>();
+            assertTrue(persistenceService.enqueue(messageInMissingConversation(), refused::complete));
+            messageService.sendMessage(chatMessage(conversation.getId(), 2L, "after"), 1L);
+            assertEquals(3, persistenceService.getQueueDepth());
+
+            lock.commit();
+
+            assertNotNull(refused.get(10, TimeUnit.SECONDS), "The message in a missing conversation was committed");
+        }
+
+        JdbcTemplate jdbcTemplate = node.getBean(JdbcTemplate.class);
+        Set<String> delivered = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            byte[] frame = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(frame, "Only " + delivered + " reached the recipient");
+            JsonNode message = jsonMapper.readTree(frame);
+            delivered.add(message.get("text").asText());
+            assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM messages WHERE id = ?",
+                    Integer.class, message.get("id").asLong()));
+        }
+        assertEquals(Set.of("before", "after"), delivered);
+
+        recipient.disconnect();
+    }
+
+    private static ChatMessage chatMessage(Long conversationId, Long recipientId, String text) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setConversationId(conversationId);
+        chatMessage.setRecipientId(recipientId);
+        chatMessage.setText(text);
+        return chatMessage;
+    }
+
+    // Fails the batched insert on its foreign key
+    private static Message messageInMissingConversation() {
+        Conversation conversation = new Conversation();
+        conversation.setId(Long.MAX_VALUE);
+        User sender = new User();
+        sender.setId(1L);
+        User recipient = new User();
+        recipient.setId(2L);
+
+        Message message = new Message();
+        message.setConversation(conversation);
+        message.setSender(sender);
+        message.setRecipient(recipient);
+        message.setText("refused");
+        return message;
+    }
+
+    private static void awaitQueueDepth(MessagePersistenceService persistenceService, int depth) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (persistenceService.getQueueDepth() != depth) {
+            assertTrue(System.nanoTime() < deadline, "The writer did not drain the queue");
+            Thread.sleep(20);
+        }
+    }
+
+    private StompSession connect(Long userId) throws Exception {
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient());
+        client.setTaskScheduler(scheduler);
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        return client.connect("ws://localhost:" + port + "/stomp?userId=" + userId, new StompSessionHandlerAdapter() { })
+                .get(10, TimeUnit.SECONDS);
+    }
+
+    // The simple broker sends no receipts, so this waits for the subscription to show up in the user registry
+    private void subscribe(StompSession session, Long userId, String destination, BlockingQueue<byte[]> frames) throws Exception {
+        session.subscribe(destination, new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return byte[].class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                frames.add((byte[]) payload);
+            }
+        });
+        SimpUserRegistry registry = node.getBean(SimpUserRegistry.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.findSubscriptions(subscription -> destination.equals(subscription.getDestination())
+                && userId.toString().equals(subscription.getSession().getUser().getName())).isEmpty()) {
+            assertTrue(System.nanoTime() < deadline, "Subscription to " + destination + " was not registered");
+            Thread.sleep(20);
+        }
+    }
+}
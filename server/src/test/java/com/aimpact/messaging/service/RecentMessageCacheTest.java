@@ -0,0 +1,88 @@
+package com.aimpact.messaging.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A window of four messages is appended to well past its size. With the
+ * default sizing its buffer holds 416 bytes, a record header 40 of them.
+ */
+class RecentMessageCacheTest {
+
+    private static final int MESSAGES_PER_CONVERSATION = 4;
+
+    private static final LocalDateTime START = LocalDateTime.of(2026, 1, 1, 12, 0);
+
+    private RecentMessageCache.Window window;
+
+    @BeforeEach
+    void createWindow() {
+        RecentMessageCache cache = new RecentMessageCache();
+        ReflectionTestUtils.setField(cache, "messagesPerConversation", MESSAGES_PER_CONVERSATION);
+        window = cache.new Window(7L, List.of(), false);
+    }
+
+    @Test
+    void keepsNewestMessagesAcrossBufferWraps() {
+        boolean wrapped = false;
+        for (long id = 1; id <= 30; id++) {
+            window.append(record(id, "message " + id));
+            wrapped |= (boolean) ReflectionTestUtils.getField(window, "wrapped");
+
+            assertEquals(id, window.latest().getId());
+            assertEquals("message " + id, window.latest().getText());
+            RecentMessageCache.Page page = window.page(null, null, MESSAGES_PER_CONVERSATION);
+            long oldest = Math.max(1, id - MESSAGES_PER_CONVERSATION + 1);
+            assertEquals(ids(oldest, id), idsOf(page));
+            assertEquals(oldest > 1, page.hasMore());
+        }
+        assertTrue(wrapped, "Records never wrapped around the end of the buffer");
+
+        // Dropped messages are left to the database
+        assertNull(window.page(null, null, MESSAGES_PER_CONVERSATION + 1));
+        assertNull(window.page(null, 26L, 2));
+        assertEquals(ids(28, 30), idsOf(window.page(null, 27L, 10)));
+    }
+
+    @Test
+    void dropsOldestMessagesWhenBytesRunOut() {
+        // 190 bytes a record, so two fit in the buffer although there are four slots
+        String text = "x".repeat(150);
+        for (long id = 1; id <= 5; id++) {
+            window.append(record(id, text));
+        }
+
+        RecentMessageCache.Page page = window.page(null, null, 2);
+        assertEquals(ids(4, 5), idsOf(page));
+        assertTrue(page.hasMore());
+        assertNull(window.page(null, null, 3));
+        assertNull(window.page(null, 3L, 2));
+
+        RecentMessageCache.Page newer = window.page(null, 4L, 2);
+        assertEquals(ids(5, 5), idsOf(newer));
+        assertFalse(newer.hasMore());
+    }
+
+    private static MessageRecord record(long id, String text) {
+        return new MessageRecord(id, 7L, 1L, 2L, text, START.plusSeconds(id));
+    }
+
+    private static List<Long> idsOf(RecentMessageCache.Page page) {
+        return page.getRecords().stream().map(MessageRecord::getId).collect(Collectors.toList());
+    }
+
+    private static List<Long> ids(long from, long to) {
+        return LongStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,125 @@
+package com.aimpact.messaging.websocket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Messages of several sessions are handed over interleaved to a pool with
+ * more threads than sessions, so any session could be picked up by any
+ * thread at any time.
+ */
+class SessionOrderedTaskExecutorTest {
+
+    private static final int SESSIONS = 4;
+
+    private static final int MESSAGES_PER_SESSION = 500;
+
+    private SessionOrderedTaskExecutor executor;
+
+    @BeforeEach
+    void startExecutor() {
+        executor = new SessionOrderedTaskExecutor("tuned", MESSAGES_PER_SESSION);
+        executor.setCorePoolSize(8);
+        executor.setMaxPoolSize(8);
+        executor.setQueueCapacity(SESSIONS * MESSAGES_PER_SESSION);
+        executor.initialize();
+    }
+
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    void runsEachSessionInOrderAndSessionsInParallel() throws Exception {
+        // Every session's first message waits for the others, which only passes if they run at the same time
+        CyclicBarrier firstMessages = new CyclicBarrier(SESSIONS);
+        CountDownLatch done = new CountDownLatch(SESSIONS * MESSAGES_PER_SESSION);
+        Map<String, List<Integer>> handled = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+
+        for (int seq = 0; seq < MESSAGES_PER_SESSION; seq++) {
+            for (int session = 0; session < SESSIONS; session++) {
+                String sessionId = "session-" + session;
+                int position = seq;
+                executor.execute(new SessionTask(sessionId, () -> {
+                    if (running.computeIfAbsent(sessionId, id -> new AtomicInteger()).incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    try {
+                        if (position == 0) {
+                            firstMessages.await(10, TimeUnit.SECONDS);
+                        }
+                        handled.computeIfAbsent(sessionId, id -> Collections.synchronizedList(new ArrayList<>())).add(position);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        running.get(sessionId).decrementAndGet();
+                        done.countDown();
+                    }
+                }));
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS), "Not every message was handled");
+        assertEquals(0, overlaps.get(), "A session ran two messages at once");
+        List<Integer> inOrder = IntStream.range(0, MESSAGES_PER_SESSION).boxed().collect(Collectors.toList());
+        for (int session = 0; session < SESSIONS; session++) {
+            assertEquals(inOrder, handled.get("session-" + session), "session-" + session + " ran out of order");
+        }
+        assertEquals(0, executor.getStats().getRejectedTaskCount());
+    }
+
+    // What the channel hands over: the handler run for one session's message
+    private static class SessionTask implements MessageHandlingRunnable {
+
+        private final Message<?> message;
+
+        private final Runnable handler;
+
+        SessionTask(String sessionId, Runnable handler) {
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+            accessor.setSessionId(sessionId);
+            this.message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+            this.handler = handler;
+        }
+
+        @Override
+        public Message<?> getMessage() {
+            return message;
+        }
+
+        @Override
+        public MessageHandler getMessageHandler() {
+            return message -> handler.run();
+        }
+
+        @Override
+        public void run() {
+            handler.run();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.aimpact.messaging.websocket;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A session whose transport never drains is driven past its budget with
+ * frames of each destination policy. The budget is 1000 bytes and frames are
+ * 100 bytes, so ten frames fill it.
+ */
+class SlowConsumerGuardTest {
+
+    private static final String SESSION_ID = "slow";
+
+    private static final int FRAME_SIZE = 100;
+
+    private SlowConsumerGuard guard;
+
+    private WebSocketSession session;
+
+    @BeforeEach
+    void connect() throws Exception {
+        guard = new SlowConsumerGuard();
+        ReflectionTestUtils.setField(guard, "maxPendingBytes", 10L * FRAME_SIZE);
+        ReflectionTestUtils.setField(guard, "maxPendingFrames", 100);
+        ReflectionTestUtils.setField(guard, "coalesceDestinations", new String[] {"/topic/presence"});
+        ReflectionTestUtils.setField(guard, "dropOldestDestinations", new String[] {"/queue/notifications"});
+        ReflectionTestUtils.setField(guard, "shedDestinations", new String[] {"/queue/ephemeral"});
+
+        session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(SESSION_ID);
+        guard.decorate(mock(WebSocketHandler.class)).afterConnectionEstablished(session);
+    }
+
+    @Test
+    void shedsEphemeralFramesPastHalfTheBudget() {
+        List<Message<?>> admitted = publish("/queue/ephemeral-user" + SESSION_ID, 5);
+        assertEquals(5, admitted.size());
+
+        assertNull(guard.preSend(frame("/queue/ephemeral-user" + SESSION_ID), null));
+        assertEquals(1, guard.getActionCount(SlowConsumerGuard.Policy.SHED, SlowConsumerGuard.Action.DROPPED));
+    }
+
+    @Test
+    void dropsEphemeralFramesFirstToMakeRoom() throws Exception {
+        List<Message<?>> ephemeral = publish("/queue/ephemeral-user" + SESSION_ID, 4);
+        publish("/queue/messages-user" + SESSION_ID, 6);
+
+        assertNotNull(guard.preSend(frame("/queue/messages-user" + SESSION_ID), null));
+        assertNull(guard.beforeHandle(ephemeral.get(0), null, null));
+        assertNotNull(guard.beforeHandle(ephemeral.get(1), null, null));
+        assertEquals(1, guard.getActionCount(SlowConsumerGuard.Policy.SHED, SlowConsumerGuard.Action.DROPPED));
+        verify(session, never()).close(SlowConsumerGuard.SLOW_CONSUMER);
+    }
+
+    @Test
+    void coalescesPresenceToTheNewestFrame() {
+        List<Message<?>> stale = publish("/topic/presence", 10);
+
+        Message<?> newest = guard.preSend(frame("/topic/presence"), null);
+        assertNotNull(newest);
+        for (Message<?> message : stale) {
+            assertNull(guard.beforeHandle(message, null, null));
+        }
+        assertNotNull(guard.beforeHandle(newest, null, null));
+        assertEquals(10, guard.getActionCount(SlowConsumerGuard.Policy.COALESCE, SlowConsumerGuard.Action.COALESCED));
+    }
+
+    @Test
+    void dropsOldestNotifications() {
+        List<Message<?>> queued = publish("/queue/notifications-user" + SESSION_ID, 10);
+
+        assertNotNull(guard.preSend(frame("/queue/notifications-user" + SESSION_ID), null));
+        assertNull(guard.beforeHandle(queued.get(0), null, null));
+        assertNotNull(guard.beforeHandle(queued.get(1), null, null));
+        assertEquals(1, guard.getActionCount(SlowConsumerGuard.Policy.DROP_OLDEST, SlowConsumerGuard.Action.DROPPED));
+    }
+
+    @Test
+    void disconnectsWhenChatDoesNotFit() throws Exception {
+        List<Message<?>> queued = publish("/queue/messages-user" + SESSION_ID, 10);
+
+        assertNull(guard.preSend(frame("/queue/messages-user" + SESSION_ID), null));
+        verify(session).close(SlowConsumerGuard.SLOW_CONSUMER);
+        assertEquals(1, guard.getActionCount(SlowConsumerGuard.Policy.DISCONNECT, SlowConsumerGuard.Action.DISCONNECTED));
+
+        // Nothing more is queued for the closed session, and what was queued is skipped
+        assertNull(guard.preSend(frame("/topic/presence"), null));
+        assertNull(guard.beforeHandle(queued.get(0), null, null));
+    }
+
+    private List<Message<?>> publish(String destination, int count) {
+        List<Message<?>> admitted = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message<?> message = guard.preSend(frame(destination), null);
+            if (message != null) {
+                admitted.add(message);
+            }
+        }
+        return admitted;
+    }
+
+    private static Message<byte[]> frame(String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(SESSION_ID);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[FRAME_SIZE], accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,123 @@
+package com.aimpact.messaging.websocket;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.simp.user.UserDestinationMessageHandler;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * User 1 is sent five events on {@code /queue/messages} with room for three
+ * in the buffer, then reconnects with the id of one of them.
+ */
+class UserEventBufferTest {
+
+    private static final String DESTINATION = "/queue/messages";
+
+    private static final String SESSION_ID = "resumed";
+
+    private UserEventBuffer buffer;
+
+    private SimpMessagingTemplate messagingTemplate;
+
+    private final List<String> eventIds = new ArrayList<>();
+
+    @BeforeEach
+    void sendEvents() {
+        buffer = new UserEventBuffer();
+        messagingTemplate = mock(SimpMessagingTemplate.class);
+        ReflectionTestUtils.setField(buffer, "messagingTemplate", messagingTemplate);
+        ReflectionTestUtils.setField(buffer, "enabled", true);
+        ReflectionTestUtils.setField(buffer, "eventsPerUser", 3);
+        ReflectionTestUtils.setField(buffer, "maxUsers", 100L);
+        ReflectionTestUtils.setField(buffer, "retentionSeconds", 300L);
+        ReflectionTestUtils.setField(buffer, "brokerMode", "simple");
+        buffer.init();
+
+        for (int i = 1; i <= 5; i++) {
+            buffer.sendToUser(1L, DESTINATION, "event " + i);
+        }
+        ArgumentCaptor<Map<String, Object>> headers = headersCaptor();
+        verify(messagingTemplate, times(5)).convertAndSendToUser(eq("1"), eq(DESTINATION), any(), headers.capture());
+        for (Map<String, Object> sent : headers.getAllValues()) {
+            eventIds.add((String) sent.get(UserEventBuffer.EVENT_ID_HEADER));
+        }
+        clearInvocations(messagingTemplate);
+    }
+
+    @Test
+    void resyncsWhenLastEventIdIsOlderThanTheBuffer() {
+        reconnect(eventIds.get(0));
+
+        ArgumentCaptor<Map<String, Object>> headers = headersCaptor();
+        verify(messagingTemplate).convertAndSendToUser(eq("1"), eq(DESTINATION), eq(Map.of()), headers.capture());
+        assertEquals("true", SimpMessageHeaderAccessor.getFirstNativeHeader(UserEventBuffer.RESYNC_HEADER, headers.getValue()));
+        assertEquals(SESSION_ID, SimpMessageHeaderAccessor.getSessionId(headers.getValue()));
+        assertEquals(1, buffer.getResyncCount());
+        assertEquals(0, buffer.getReplayedCount());
+    }
+
+    @Test
+    void replaysOnlyNewerEventsWhenTheBufferReachesBack() {
+        reconnect(eventIds.get(2));
+
+        ArgumentCaptor<Object> payloads = ArgumentCaptor.forClass(Object.class);
+        ArgumentCaptor<Map<String, Object>> headers = headersCaptor();
+        verify(messagingTemplate, times(2)).convertAndSendToUser(eq("1"), eq(DESTINATION), payloads.capture(), headers.capture());
+        assertEquals(List.of("event 4", "event 5"), payloads.getAllValues());
+        for (Map<String, Object> sent : headers.getAllValues()) {
+            assertEquals(SESSION_ID, SimpMessageHeaderAccessor.getSessionId(sent));
+            assertNull(SimpMessageHeaderAccessor.getFirstNativeHeader(UserEventBuffer.RESYNC_HEADER, sent));
+        }
+        assertEquals(eventIds.subList(3, 5), List.of(
+                SimpMessageHeaderAccessor.getFirstNativeHeader(UserEventBuffer.EVENT_ID_HEADER, headers.getAllValues().get(0)),
+                SimpMessageHeaderAccessor.getFirstNativeHeader(UserEventBuffer.EVENT_ID_HEADER, headers.getAllValues().get(1))));
+        assertEquals(0, buffer.getResyncCount());
+        assertEquals(1, buffer.getResumedCount());
+    }
+
+    // CONNECT with the last id seen, then the user-queue subscription once the user destination handler took it
+    private void reconnect(String lastEventId) {
+        Map<String, Object> sessionAttributes = new HashMap<>();
+        sessionAttributes.put("userId", 1L);
+
+        StompHeaderAccessor connect = StompHeaderAccessor.create(StompCommand.CONNECT);
+        connect.setSessionId(SESSION_ID);
+        connect.setSessionAttributes(sessionAttributes);
+        connect.setNativeHeader(UserEventBuffer.LAST_EVENT_ID_HEADER, lastEventId);
+        buffer.preSend(MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders()), null);
+
+        SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        subscribe.setSessionId(SESSION_ID);
+        subscribe.setSessionAttributes(sessionAttributes);
+        subscribe.setDestination("/user" + DESTINATION);
+        Message<byte[]> subscription = MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders());
+        buffer.afterMessageHandled(subscription, null, mock(UserDestinationMessageHandler.class), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<Map<String, Object>> headersCaptor() {
+        return ArgumentCaptor.forClass(Map.class);
+    }
+}
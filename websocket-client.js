@@ -9,6 +9,28 @@ let isConnected = false;
 let reconnectInterval = null;
 let userId = null;
 
+// Prefer the native WebSocket endpoint; fall back to SockJS once it fails to connect
+let useNativeWebSocket = typeof WebSocket !== 'undefined';
+
+// Close code the server uses when this client falls too far behind
+const SLOW_CONSUMER_CLOSE_CODE = 4008;
+
+// Last user-queue event seen, sent on reconnect so the server replays only what was missed
+let lastEventId = null;
+let recentEventIds = [];
+let resyncRequested = false;
+
+// Presence view kept current by versioned deltas from /topic/presence
+let presenceVersion = -1;
+let presenceStatuses = {};
+
+// Sent messages waiting for their copy on /user/queue/sent or an error, by client message id
+const pendingMessages = new Map();
+const SEND_TIMEOUT_MS = 10000;
+
+// Unread notifications as of the last inbox update, plus broadcasts received since
+let unreadNotificationCount = 0;
+
 // Initialize WebSocket connection
 function initializeWebSocket(currentUserId) {
     userId = currentUserId;
@@ -57,33 +79,80 @@ function connectWebSocket() {
         reconnectInterval = null;
     }
     
-    // Create SockJS connection
-    const socket = new SockJS('http://localhost:8080/ws?userId=' + userId);
+    // Create a native WebSocket connection, or a SockJS one as the fallback
+    const connectedNatively = useNativeWebSocket;
+    const socket = connectedNatively
+        ? new WebSocket('ws://localhost:8080/stomp?userId=' + userId)
+        : new SockJS('http://localhost:8080/ws?userId=' + userId);
     stompClient = Stomp.over(socket);
     
+    let socketOpened = false;
+    socket.addEventListener('open', function() {
+        socketOpened = true;
+    });
+    
+    // Frames were dropped while we were slow: reconnect now and let views reload their state
+    socket.addEventListener('close', function(event) {
+        if (event.code === SLOW_CONSUMER_CLOSE_CODE) {
+            isConnected = false;
+            lastEventId = null; // Dropped frames are older than the last one seen; a replay would miss them
+            document.dispatchEvent(new CustomEvent('websocket-resync'));
+            connectWebSocket();
+        }
+    });
+    
     // Disable debug logging
     stompClient.debug = null;
     
+    // Ask for a replay of the events missed since the last one seen
+    const resuming = lastEventId !== null;
+    const connectHeaders = resuming ? { 'last-event-id': lastEventId } : {};
+    resyncRequested = false;
+    
     // Connect to server
-    stompClient.connect({}, function(frame) {
+    stompClient.connect(connectHeaders, function(frame) {
         isConnected = true;
         console.log('Connected to WebSocket server');
         
         // Subscribe to user-specific message channel
-        stompClient.subscribe('/user/' + userId + '/queue/messages', onMessageReceived);
+        stompClient.subscribe('/user/queue/messages', onMessageReceived);
+        
+        // Subscribe to the server's copies of messages this user sent, and to send failures
+        stompClient.subscribe('/user/queue/sent', onMessageSent);
+        stompClient.subscribe('/user/queue/errors', onMessageError);
         
         // Subscribe to user-specific notification channel
-        stompClient.subscribe('/user/' + userId + '/queue/notifications', onNotificationReceived);
+        stompClient.subscribe('/user/queue/notifications', onNotificationReceived);
+        
+        // Subscribe to badge totals and conversation changes; the server sends the current totals first
+        stompClient.subscribe('/user/queue/inbox', onInboxUpdate);
+        
+        // Subscribe to typing indicators and read receipts in this user's conversations
+        stompClient.subscribe('/user/queue/ephemeral', onConversationActivity);
+        
+        // Subscribe to broadcasts, which are published once for everyone
+        stompClient.subscribe('/topic/notifications', onBroadcastReceived);
+        
+        // Subscribe to presence deltas, then load the snapshot they apply to
+        stompClient.subscribe('/topic/presence', onPresenceDelta);
+        loadPresenceSnapshot();
         
         // Update user's online status
         updateUserStatus(true);
         
-        // Notify listeners that connection is established
-        document.dispatchEvent(new CustomEvent('websocket-connected'));
+        // Notify listeners that connection is established; a resumed connection needs no reload
+        document.dispatchEvent(new CustomEvent('websocket-connected', {
+            detail: { resumed: resuming }
+        }));
     }, function(error) {
         isConnected = false;
         console.error('Error connecting to WebSocket server:', error);
         
+        // Never got a session over the native endpoint: use SockJS from now on
+        if (connectedNatively && !socketOpened) {
+            useNativeWebSocket = false;
+        }
+        
         // Set up reconnection
         if (!reconnectInterval) {
             reconnectInterval = setInterval(function() {
@@ -140,23 +209,41 @@ function sendMessage(conversationId, recipientId, text) {
         return Promise.reject('Not connected to WebSocket server');
     }
     
+    // Resolved with the stored message once the server confirms it, rejected on an error frame
+    const clientMessageId = userId + '-' + Date.now() + '-' + Math.random().toString(36).slice(2);
     return new Promise((resolve, reject) => {
+        const timeout = setTimeout(() => {
+            pendingMessages.delete(clientMessageId);
+            reject(new Error('Message was not confirmed'));
+        }, SEND_TIMEOUT_MS);
+        pendingMessages.set(clientMessageId, { resolve, reject, timeout });
+        
         try {
             stompClient.send('/app/chat.sendMessage', {}, JSON.stringify({
                 conversationId: conversationId,
                 recipientId: recipientId,
-                text: text
+                text: text,
+                clientMessageId: clientMessageId
             }));
-            
-            // Resolve immediately, as we don't wait for a response
-            resolve();
         } catch (error) {
             console.error('Error sending message:', error);
+            clearTimeout(timeout);
+            pendingMessages.delete(clientMessageId);
             reject(error);
         }
     });
 }
 
+// Hand a confirmation or failure to the send that is waiting for it
+function settlePendingMessage(clientMessageId, settle) {
+    const pending = pendingMessages.get(clientMessageId);
+    if (!pending) return;
+    
+    pendingMessages.delete(clientMessageId);
+    clearTimeout(pending.timeout);
+    settle(pending);
+}
+
 // Send notification via WebSocket
 function sendNotification(title, message, type, recipientIds) {
     if (!isConnected || !stompClient) {
@@ -206,21 +293,112 @@ function sendNotificationToAll(title, message, type) {
     });
 }
 
+// Send typing state; ephemeral, so it is dropped rather than queued when not connected
+function sendTyping(conversationId, typing) {
+    if (!isConnected || !stompClient) return;
+    
+    stompClient.send('/app/conversation.typing', {}, JSON.stringify({
+        conversationId: conversationId,
+        typing: typing
+    }));
+}
+
+// Tell the other participants how far this user has read
+function sendReadReceipt(conversationId, messageId) {
+    if (!isConnected || !stompClient) return;
+    
+    stompClient.send('/app/conversation.read', {}, JSON.stringify({
+        conversationId: conversationId,
+        messageId: messageId
+    }));
+}
+
+// Track user-queue event ids; false for duplicates and for the server's resync signal
+function acceptUserEvent(payload) {
+    if (payload.headers['resync']) {
+        // The server no longer holds what was missed: reload once, then follow live events
+        lastEventId = null;
+        if (!resyncRequested) {
+            resyncRequested = true;
+            document.dispatchEvent(new CustomEvent('websocket-resync'));
+        }
+        return false;
+    }
+    
+    const eventId = payload.headers['event-id'];
+    if (!eventId) return true;
+    
+    // An event sent while a replay was starting can arrive twice
+    if (recentEventIds.includes(eventId)) return false;
+    recentEventIds.push(eventId);
+    if (recentEventIds.length > 200) recentEventIds.shift();
+    
+    // Ids are <epoch>-<sequence>; a new epoch means the server restarted
+    const [epoch, sequence] = eventId.split('-');
+    const [lastEpoch, lastSequence] = lastEventId ? lastEventId.split('-') : [null, null];
+    if (epoch !== lastEpoch || Number(sequence) > Number(lastSequence)) {
+        lastEventId = eventId;
+    }
+    return true;
+}
+
 // Handle received message
 function onMessageReceived(payload) {
+    if (!acceptUserEvent(payload)) return;
+    
     const message = JSON.parse(payload.body);
     
     // Dispatch event with message data
     document.dispatchEvent(new CustomEvent('message-received', {
         detail: message
     }));
+}
+
+// Handle received broadcast, skipping the ones this user sent
+// The stored copy of a message this user sent
+function onMessageSent(payload) {
+    if (!acceptUserEvent(payload)) return;
     
-    // Update unread message count
-    updateUnreadMessageCount();
+    const message = JSON.parse(payload.body);
+    settlePendingMessage(message.clientMessageId, pending => pending.resolve(message));
+    
+    document.dispatchEvent(new CustomEvent('message-sent', {
+        detail: message
+    }));
+}
+
+// A message this user sent was refused or could not be stored
+function onMessageError(payload) {
+    if (!acceptUserEvent(payload)) return;
+    
+    const error = JSON.parse(payload.body);
+    settlePendingMessage(error.clientMessageId, pending => pending.reject(new Error('Message not sent: ' + error.reason)));
+    
+    document.dispatchEvent(new CustomEvent('message-failed', {
+        detail: error
+    }));
+}
+
+function onBroadcastReceived(payload) {
+    const notification = JSON.parse(payload.body);
+    
+    if (notification.senderId == userId) {
+        return;
+    }
+    
+    onNotificationReceived(payload);
+    
+    // Broadcasts are not in the inbox updates, so count them here
+    unreadNotificationCount++;
+    document.dispatchEvent(new CustomEvent('unread-notifications-updated', {
+        detail: { count: unreadNotificationCount }
+    }));
 }
 
 // Handle received notification
 function onNotificationReceived(payload) {
+    if (!acceptUserEvent(payload)) return;
+    
     const notification = JSON.parse(payload.body);
     
     // Dispatch event with notification data
@@ -228,45 +406,82 @@ function onNotificationReceived(payload) {
         detail: notification
     }));
     
-    // Update unread notification count
-    updateUnreadNotificationCount();
-    
     // Show notification toast
     showNotificationToast(notification);
 }
 
-// Update unread message count
-function updateUnreadMessageCount() {
-    if (!userId) return;
-    
-    fetch('http://localhost:8080/api/messages/unread/count?userId=' + userId)
+// Load the full presence view and the version deltas apply against
+function loadPresenceSnapshot() {
+    fetch('http://localhost:8080/api/users/presence')
         .then(response => response.json())
-        .then(count => {
-            // Dispatch event with unread count
-            document.dispatchEvent(new CustomEvent('unread-messages-updated', {
-                detail: { count: count }
+        .then(snapshot => {
+            presenceVersion = snapshot.version;
+            presenceStatuses = snapshot.statuses;
+            
+            document.dispatchEvent(new CustomEvent('presence-changed', {
+                detail: { statuses: presenceStatuses }
             }));
         })
         .catch(error => {
-            console.error('Error getting unread message count:', error);
+            console.error('Error loading presence snapshot:', error);
         });
 }
 
-// Update unread notification count
-function updateUnreadNotificationCount() {
-    if (!userId) return;
+// Handle presence delta
+function onPresenceDelta(payload) {
+    const delta = JSON.parse(payload.body);
     
-    fetch('http://localhost:8080/api/notifications/unread/count?userId=' + userId)
-        .then(response => response.json())
-        .then(count => {
-            // Dispatch event with unread count
-            document.dispatchEvent(new CustomEvent('unread-notifications-updated', {
-                detail: { count: count }
-            }));
-        })
-        .catch(error => {
-            console.error('Error getting unread notification count:', error);
-        });
+    // Snapshot not loaded yet, or already newer than this delta
+    if (presenceVersion < 0 || delta.version <= presenceVersion) return;
+    
+    // Missed a delta; start over from a fresh snapshot
+    if (delta.version !== presenceVersion + 1) {
+        loadPresenceSnapshot();
+        return;
+    }
+    
+    Object.entries(delta.changes).forEach(([changedUserId, status]) => {
+        if (status === 'OFFLINE') {
+            delete presenceStatuses[changedUserId];
+        } else {
+            presenceStatuses[changedUserId] = status;
+        }
+    });
+    presenceVersion = delta.version;
+    
+    document.dispatchEvent(new CustomEvent('presence-changed', {
+        detail: { statuses: presenceStatuses, changes: delta.changes }
+    }));
+}
+
+// Handle typing and read receipt changes for one conversation
+function onConversationActivity(payload) {
+    const activity = JSON.parse(payload.body);
+    
+    document.dispatchEvent(new CustomEvent('conversation-activity', {
+        detail: activity
+    }));
+}
+
+// Handle inbox update: badge totals and the conversations that changed since the last one
+function onInboxUpdate(payload) {
+    if (!acceptUserEvent(payload)) return;
+    
+    const update = JSON.parse(payload.body);
+    unreadNotificationCount = update.unreadNotifications;
+    
+    document.dispatchEvent(new CustomEvent('unread-messages-updated', {
+        detail: { count: update.unreadMessages }
+    }));
+    document.dispatchEvent(new CustomEvent('unread-notifications-updated', {
+        detail: { count: update.unreadNotifications }
+    }));
+    
+    if (update.conversations.length > 0) {
+        document.dispatchEvent(new CustomEvent('inbox-updated', {
+            detail: { conversations: update.conversations }
+        }));
+    }
 }
 
 // Show notification toast
@@ -327,6 +542,9 @@ const WebSocketAPI = {
     sendMessage: sendMessage,
     sendNotification: sendNotification,
     sendNotificationToAll: sendNotificationToAll,
+    sendTyping: sendTyping,
+    sendReadReceipt: sendReadReceipt,
     updateActivity: updateUserActivity,
+    getPresence: () => presenceStatuses,
     isConnected: () => isConnected
 };
\ No newline at end of file